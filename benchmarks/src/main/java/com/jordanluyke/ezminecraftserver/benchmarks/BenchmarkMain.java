@@ -0,0 +1,116 @@
+package com.jordanluyke.ezminecraftserver.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Runs the benchmarks with the gc profiler and writes JMH's JSON results. Scores are then compared
+ * with a baseline file: a score or allocation rate that got worse by more than the allowed percentage
+ * fails the run. Without a baseline, or with -Dbaseline.update=true, the run becomes the new baseline.
+ *
+ * <pre>
+ * java [-Dbaseline=baseline.json] [-Dbaseline.update=true] [-Dregression.percent=10] -jar target/benchmarks.jar [include regex]
+ * </pre>
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class BenchmarkMain {
+    private static final String allocationRate = "·gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : BenchmarkMain.class.getPackage().getName() + ".*";
+        Path resultPath = Paths.get(System.getProperty("result", "target/jmh-result.json"));
+        Path baselinePath = Paths.get(System.getProperty("baseline", "baseline.json"));
+        double allowedPercent = Double.parseDouble(System.getProperty("regression.percent", "10"));
+
+        Files.createDirectories(resultPath.toAbsolutePath().getParent());
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend("-Dlog4j.configurationFile=log4j2-benchmarks.properties")
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultPath.toString())
+                .build();
+        ObjectNode scores = summarize(new Runner(options).run());
+
+        if(Boolean.getBoolean("baseline.update") || !Files.exists(baselinePath)) {
+            Files.write(baselinePath, NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(scores));
+            System.out.println("Baseline written to " + baselinePath);
+            return;
+        }
+        List<String> regressions = compare(NodeUtil.getJsonNode(Files.readAllBytes(baselinePath)), scores, allowedPercent);
+        if(!regressions.isEmpty()) {
+            System.out.println("Regressions beyond " + allowedPercent + "% against " + baselinePath + ":");
+            regressions.forEach(regression -> System.out.println("  " + regression));
+            System.exit(1);
+        }
+        System.out.println("No regressions beyond " + allowedPercent + "% against " + baselinePath);
+    }
+
+    /**
+     * One entry per benchmark and parameter combination, keyed like "ManifestBenchmark.streaming:latestPosition=newest,versions=700".
+     */
+    private static ObjectNode summarize(Collection<RunResult> results) {
+        ObjectNode scores = NodeUtil.mapper.createObjectNode();
+        for(RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            StringBuilder key = new StringBuilder(params.getBenchmark().substring(BenchmarkMain.class.getPackage().getName().length() + 1));
+            String separator = ":";
+            for(String param : new TreeSet<>(params.getParamsKeys())) {
+                key.append(separator).append(param).append('=').append(params.getParam(param));
+                separator = ",";
+            }
+            Result primary = result.getPrimaryResult();
+            ObjectNode score = scores.putObject(key.toString());
+            score.put("mode", params.getMode().shortLabel());
+            score.put("score", primary.getScore());
+            score.put("error", primary.getScoreError());
+            score.put("unit", primary.getScoreUnit());
+            Result allocation = result.getSecondaryResults().get(allocationRate);
+            if(allocation != null)
+                score.put("allocatedBytesPerOp", allocation.getScore());
+        }
+        return scores;
+    }
+
+    private static List<String> compare(JsonNode baseline, ObjectNode scores, double allowedPercent) {
+        List<String> regressions = new ArrayList<>();
+        scores.fields().forEachRemaining(entry -> {
+            JsonNode before = baseline.get(entry.getKey());
+            if(before == null)
+                return;
+            JsonNode after = entry.getValue();
+            // throughput is better when higher, times are better when lower
+            boolean higherIsBetter = after.get("mode").asText().equals("thrpt");
+            double change = percentChange(before.get("score").asDouble(), after.get("score").asDouble());
+            if(higherIsBetter ? change < -allowedPercent : change > allowedPercent)
+                regressions.add(String.format("%s score %.3f -> %.3f %s (%+.1f%%)", entry.getKey(), before.get("score").asDouble(), after.get("score").asDouble(), after.get("unit").asText(), change));
+            if(before.has("allocatedBytesPerOp") && after.has("allocatedBytesPerOp")) {
+                double allocationChange = percentChange(before.get("allocatedBytesPerOp").asDouble(), after.get("allocatedBytesPerOp").asDouble());
+                if(allocationChange > allowedPercent)
+                    regressions.add(String.format("%s allocation %.0f -> %.0f B/op (%+.1f%%)", entry.getKey(), before.get("allocatedBytesPerOp").asDouble(), after.get("allocatedBytesPerOp").asDouble(), allocationChange));
+            }
+        });
+        return regressions;
+    }
+
+    private static double percentChange(double before, double after) {
+        if(before == 0)
+            return after == 0 ? 0 : 100;
+        return (after - before) / before * 100;
+    }
+}
@@ -0,0 +1,71 @@
+package com.jordanluyke.ezminecraftserver.benchmarks;
+
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.telemetry.ServerTelemetry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Console lines per second through the pump into a listener, and through the telemetry parser. The
+ * line mix is mostly ordinary log lines with some chat, joins and lag warnings.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsoleBenchmark {
+    private static final int lineCount = 100000;
+    private static final String[] sampleLines = {
+            "[12:00:00] [Server thread/INFO]: Preparing spawn area: 42%",
+            "[12:00:00] [Server thread/INFO]: <Steve> has anyone seen my diamonds",
+            "[12:00:00] [Server thread/INFO]: Steve joined the game",
+            "[12:00:00] [Server thread/WARN]: Can't keep up! Is the server overloaded? Running 2345ms or 46 ticks behind",
+            "[12:00:00] [Server thread/INFO]: Saving the game (this may take a moment!)",
+            "[12:00:00] [Server thread/INFO]: Saved the game",
+            "[12:00:00] [Server thread/INFO]: Steve left the game",
+            "[12:00:00] [User Authenticator #1/INFO]: UUID of player Alex is 069a79f4-44e9-4726-a5be-fca90e38aaf5"
+    };
+
+    private ConsolePump consolePump;
+    private ServerTelemetry telemetry;
+    private String[] lines;
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        consolePump = new ConsolePump();
+        telemetry = new ServerTelemetry("benchmark", "1.0");
+        lines = new String[lineCount];
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < lineCount; i++) {
+            // ordinary lines dominate real output
+            lines[i] = i % 4 == 0 ? sampleLines[(i / 4) % sampleLines.length] : sampleLines[0];
+            sb.append(lines[i]).append('\n');
+        }
+        output = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(lineCount)
+    public void pump(Blackhole blackhole) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        consolePump.pump(new ByteArrayInputStream(output), false, blackhole::consume, done::countDown);
+        done.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(lineCount)
+    public void telemetry() {
+        for(String line : lines)
+            telemetry.onLine(line);
+    }
+}
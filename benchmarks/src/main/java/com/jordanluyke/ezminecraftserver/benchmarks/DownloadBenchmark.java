@@ -0,0 +1,60 @@
+package com.jordanluyke.ezminecraftserver.benchmarks;
+
+import com.jordanluyke.ezminecraftserver.util.NettyHttpClient;
+import com.jordanluyke.ezminecraftserver.util.RangedDownloader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a file from an in-process HTTP server, as one stream and as parallel byte ranges.
+ * Run with the gc profiler (the default in BenchmarkMain) for bytes allocated per download.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({"16", "64"})
+    private int sizeMb;
+
+    private LocalHttpServer server;
+    private String url;
+    private Path dir;
+    private RangedDownloader rangedDownloader;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        byte[] content = new byte[sizeMb * 1024 * 1024];
+        new Random(1).nextBytes(content);
+        server = new LocalHttpServer(content);
+        url = server.start();
+        dir = Files.createTempDirectory("ezmc-download-benchmark");
+        rangedDownloader = new RangedDownloader(new RangedDownloader.Options());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.deleteIfExists(dir.resolve("server.jar"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public NettyHttpClient.DownloadResponse singleStream() {
+        return NettyHttpClient.download(url, dir.resolve("server.jar")).blockingGet();
+    }
+
+    @Benchmark
+    public NettyHttpClient.DownloadResponse ranged() {
+        return rangedDownloader.download(url, dir.resolve("server.jar")).blockingGet();
+    }
+}
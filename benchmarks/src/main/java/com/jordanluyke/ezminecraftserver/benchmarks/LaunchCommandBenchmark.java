@@ -0,0 +1,56 @@
+package com.jordanluyke.ezminecraftserver.benchmarks;
+
+import com.jordanluyke.ezminecraftserver.jvm.CpuPinning;
+import com.jordanluyke.ezminecraftserver.jvm.HostInfo;
+import com.jordanluyke.ezminecraftserver.jvm.JvmLauncher;
+import com.jordanluyke.ezminecraftserver.jvm.JvmProfile;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the server command line the way an instance launch does: JVM flags for a profile on a fixed
+ * host, then the taskset wrapper for a pinned instance.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LaunchCommandBenchmark {
+    @Param({"vanilla", "g1"})
+    private String profile;
+
+    private JvmLauncher launcher;
+    private final Path directory = Paths.get("/srv/minecraft");
+    private final Path jarPath = Paths.get("/srv/minecraft/minecraft_server.jar");
+    private final List<String> serverArgs = Arrays.asList("--port", "25566");
+
+    @Setup
+    public void setup() {
+        JvmLauncher.Options options = new JvmLauncher.Options();
+        options.setProfile(JvmProfile.fromName(profile));
+        HostInfo host = new HostInfo(16, 64L * 1024 * 1024 * 1024, Optional.of("madvise"), false);
+        launcher = new JvmLauncher(options, host.pinnedTo(4));
+        // the java version is probed once per java path and cached; keep that out of the measurement
+        launcher.buildCommand(directory, jarPath, 8, serverArgs);
+    }
+
+    @Benchmark
+    public List<String> buildCommand() {
+        return launcher.buildCommand(directory, jarPath, 8, serverArgs);
+    }
+
+    @Benchmark
+    public List<String> buildPinnedCommand() {
+        return CpuPinning.wrap(launcher.buildCommand(directory, jarPath, 8, serverArgs), "0-3", null);
+    }
+}
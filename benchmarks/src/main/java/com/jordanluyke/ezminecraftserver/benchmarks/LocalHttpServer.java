@@ -0,0 +1,83 @@
+package com.jordanluyke.ezminecraftserver.benchmarks;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.net.InetSocketAddress;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process HTTP server that serves one in-memory file, with HEAD and single byte ranges, so
+ * download benchmarks measure the client rather than the network.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class LocalHttpServer {
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final ByteBuf content;
+    private final EventLoopGroup group = new NioEventLoopGroup(2, new DefaultThreadFactory("benchmark-http", true));
+    private Channel serverChannel;
+
+    public LocalHttpServer(byte[] content) {
+        this.content = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(content));
+    }
+
+    public String start() throws InterruptedException {
+        serverChannel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast(new HttpServerCodec());
+                        channel.pipeline().addLast(new HttpObjectAggregator(8192));
+                        channel.pipeline().addLast(new FileHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        return "http://127.0.0.1:" + port + "/server.jar";
+    }
+
+    public void stop() {
+        if(serverChannel != null)
+            serverChannel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    private class FileHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+            int length = content.readableBytes();
+            int start = 0;
+            int end = length - 1;
+            HttpResponseStatus status = HttpResponseStatus.OK;
+            Matcher range = rangePattern.matcher(req.headers().get(HttpHeaderNames.RANGE, ""));
+            if(range.matches()) {
+                start = Integer.parseInt(range.group(1));
+                end = Math.min(Integer.parseInt(range.group(2)), length - 1);
+                status = HttpResponseStatus.PARTIAL_CONTENT;
+            }
+            boolean head = req.method().equals(HttpMethod.HEAD);
+            ByteBuf body = head ? Unpooled.EMPTY_BUFFER : content.retainedSlice(start, end - start + 1);
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+            res.headers().set(HttpHeaderNames.CONTENT_LENGTH, end - start + 1);
+            res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            if(status == HttpResponseStatus.PARTIAL_CONTENT)
+                res.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            ctx.writeAndFlush(res);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.jordanluyke.ezminecraftserver.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the latest release in a manifest the size of Mojang's, with the streaming parser used by the
+ * update check and with a full tree parse for comparison. "newest" puts the latest release first in
+ * the list, as Mojang does, and "oldest" puts it last.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManifestBenchmark {
+    @Param({"700"})
+    private int versions;
+
+    @Param({"newest", "oldest"})
+    private String latestPosition;
+
+    private byte[] manifest;
+    private String latestId;
+
+    @Setup
+    public void setup() {
+        ObjectNode root = NodeUtil.mapper.createObjectNode();
+        ArrayNode list = NodeUtil.mapper.createArrayNode();
+        for(int i = 0; i < versions; i++) {
+            ObjectNode version = list.addObject();
+            version.put("id", "1." + (versions - i));
+            version.put("type", i % 5 == 0 ? "release" : "snapshot");
+            version.put("url", "https://launchermeta.mojang.com/v1/packages/" + Integer.toHexString(i * 7919) + "/1." + (versions - i) + ".json");
+            version.put("time", "2020-01-01T00:00:00+00:00");
+            version.put("releaseTime", "2020-01-01T00:00:00+00:00");
+        }
+        latestId = latestPosition.equals("newest") ? "1." + versions : "1.1";
+        list.forEach(version -> {
+            if(version.get("id").asText().equals(latestId))
+                ((ObjectNode) version).put("type", "release");
+        });
+        root.putObject("latest").put("release", latestId).put("snapshot", "1." + versions);
+        root.set("versions", list);
+        manifest = NodeUtil.writeValueAsBytes(root);
+    }
+
+    @Benchmark
+    public Optional<NodeUtil.ManifestVersion> streaming() {
+        return NodeUtil.getLatestRelease(manifest);
+    }
+
+    @Benchmark
+    public JsonNode tree() {
+        JsonNode root = NodeUtil.getJsonNode(manifest);
+        String release = root.get("latest").get("release").asText();
+        for(JsonNode version : root.get("versions")) {
+            if(version.get("id").asText().equals(release))
+                return version;
+        }
+        return null;
+    }
+}
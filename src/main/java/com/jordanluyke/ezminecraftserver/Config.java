@@ -1,8 +1,24 @@
 package com.jordanluyke.ezminecraftserver;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jordanluyke.ezminecraftserver.backup.BackupEngine;
+import com.jordanluyke.ezminecraftserver.jvm.ClassDataSharing;
+import com.jordanluyke.ezminecraftserver.jvm.JvmLauncher;
+import com.jordanluyke.ezminecraftserver.loadtest.LoadTest;
+import com.jordanluyke.ezminecraftserver.metrics.MetricsServer;
+import com.jordanluyke.ezminecraftserver.proxy.TcpProxy;
+import com.jordanluyke.ezminecraftserver.rcon.RconClient;
+import com.jordanluyke.ezminecraftserver.util.NettyHttpClient;
 import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.RangedDownloader;
+import com.jordanluyke.ezminecraftserver.versions.JarStore;
+import com.jordanluyke.ezminecraftserver.versions.MirrorServer;
+import com.jordanluyke.ezminecraftserver.watchdog.Watchdog;
+import com.jordanluyke.ezminecraftserver.world.RamWorld;
+import com.jordanluyke.ezminecraftserver.world.WorldUpgrader;
+import com.jordanluyke.ezminecraftserver.world.RegionCompactor;
 import io.reactivex.rxjava3.core.Completable;
 import lombok.Getter;
 import lombok.Setter;
@@ -14,10 +30,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.Scanner;
+import java.util.*;
 import java.util.stream.Stream;
 
 /**
@@ -37,6 +50,24 @@ public class Config {
     private String path;
     private String version;
     private String memoryAllocation;
+    private NettyHttpClient.Options http = new NettyHttpClient.Options();
+    private TcpProxy.Options proxy = new TcpProxy.Options();
+    private MinecraftServer.Options server = new MinecraftServer.Options();
+    private MetricsServer.Options metrics = new MetricsServer.Options();
+    private JvmLauncher.Options jvm = new JvmLauncher.Options();
+    private ClassDataSharing.Options classDataSharing = new ClassDataSharing.Options();
+    private RconClient.Options rcon = new RconClient.Options();
+    private BackupEngine.Options backup = new BackupEngine.Options();
+    private RegionCompactor.Options compaction = new RegionCompactor.Options();
+    private RamWorld.Options ramWorld = new RamWorld.Options();
+    private WorldUpgrader.Options worldUpgrade = new WorldUpgrader.Options();
+    private JarStore.Options versions = new JarStore.Options();
+    private MirrorServer.Options mirror = new MirrorServer.Options();
+    private RangedDownloader.Options downloads = new RangedDownloader.Options();
+    private RestartScheduler.Options updates = new RestartScheduler.Options();
+    private Watchdog.Options watchdog = new Watchdog.Options();
+    private LoadTest.Options loadTest = new LoadTest.Options();
+    private List<ServerInstance.Options> instances = new ArrayList<>();
 
     public Completable load() {
         try {
@@ -48,6 +79,42 @@ public class Config {
             NodeUtil.get("path", body).ifPresent(p -> path = p);
             NodeUtil.get("version", body).ifPresent(v -> version = v);
             NodeUtil.get("memoryAllocation", body).ifPresent(m -> memoryAllocation = m);
+            if(body.hasNonNull("http"))
+                http = NodeUtil.mapper.treeToValue(body.get("http"), NettyHttpClient.Options.class);
+            if(body.hasNonNull("proxy"))
+                proxy = NodeUtil.mapper.treeToValue(body.get("proxy"), TcpProxy.Options.class);
+            if(body.hasNonNull("server"))
+                server = NodeUtil.mapper.treeToValue(body.get("server"), MinecraftServer.Options.class);
+            if(body.hasNonNull("metrics"))
+                metrics = NodeUtil.mapper.treeToValue(body.get("metrics"), MetricsServer.Options.class);
+            if(body.hasNonNull("jvm"))
+                jvm = NodeUtil.mapper.treeToValue(body.get("jvm"), JvmLauncher.Options.class);
+            if(body.hasNonNull("classDataSharing"))
+                classDataSharing = NodeUtil.mapper.treeToValue(body.get("classDataSharing"), ClassDataSharing.Options.class);
+            if(body.hasNonNull("rcon"))
+                rcon = NodeUtil.mapper.treeToValue(body.get("rcon"), RconClient.Options.class);
+            if(body.hasNonNull("backup"))
+                backup = NodeUtil.mapper.treeToValue(body.get("backup"), BackupEngine.Options.class);
+            if(body.hasNonNull("compaction"))
+                compaction = NodeUtil.mapper.treeToValue(body.get("compaction"), RegionCompactor.Options.class);
+            if(body.hasNonNull("ramWorld"))
+                ramWorld = NodeUtil.mapper.treeToValue(body.get("ramWorld"), RamWorld.Options.class);
+            if(body.hasNonNull("worldUpgrade"))
+                worldUpgrade = NodeUtil.mapper.treeToValue(body.get("worldUpgrade"), WorldUpgrader.Options.class);
+            if(body.hasNonNull("versions"))
+                versions = NodeUtil.mapper.treeToValue(body.get("versions"), JarStore.Options.class);
+            if(body.hasNonNull("mirror"))
+                mirror = NodeUtil.mapper.treeToValue(body.get("mirror"), MirrorServer.Options.class);
+            if(body.hasNonNull("downloads"))
+                downloads = NodeUtil.mapper.treeToValue(body.get("downloads"), RangedDownloader.Options.class);
+            if(body.hasNonNull("updates"))
+                updates = NodeUtil.mapper.treeToValue(body.get("updates"), RestartScheduler.Options.class);
+            if(body.hasNonNull("watchdog"))
+                watchdog = NodeUtil.mapper.treeToValue(body.get("watchdog"), Watchdog.Options.class);
+            if(body.hasNonNull("loadTest"))
+                loadTest = NodeUtil.mapper.treeToValue(body.get("loadTest"), LoadTest.Options.class);
+            if(body.hasNonNull("instances"))
+                instances = NodeUtil.mapper.convertValue(body.get("instances"), new TypeReference<List<ServerInstance.Options>>() {});
             if(Stream.of(path, version, memoryAllocation).anyMatch(Objects::isNull))
                 return setup();
             logger.info("Config loaded");
@@ -62,6 +129,25 @@ public class Config {
         node.put("path", path);
         node.put("version", version);
         node.put("memoryAllocation", memoryAllocation);
+        node.set("http", NodeUtil.mapper.valueToTree(http));
+        node.set("proxy", NodeUtil.mapper.valueToTree(proxy));
+        node.set("server", NodeUtil.mapper.valueToTree(server));
+        node.set("metrics", NodeUtil.mapper.valueToTree(metrics));
+        node.set("jvm", NodeUtil.mapper.valueToTree(jvm));
+        node.set("classDataSharing", NodeUtil.mapper.valueToTree(classDataSharing));
+        node.set("rcon", NodeUtil.mapper.valueToTree(rcon));
+        node.set("backup", NodeUtil.mapper.valueToTree(backup));
+        node.set("compaction", NodeUtil.mapper.valueToTree(compaction));
+        node.set("ramWorld", NodeUtil.mapper.valueToTree(ramWorld));
+        node.set("worldUpgrade", NodeUtil.mapper.valueToTree(worldUpgrade));
+        node.set("versions", NodeUtil.mapper.valueToTree(versions));
+        node.set("mirror", NodeUtil.mapper.valueToTree(mirror));
+        node.set("downloads", NodeUtil.mapper.valueToTree(downloads));
+        node.set("updates", NodeUtil.mapper.valueToTree(updates));
+        node.set("watchdog", NodeUtil.mapper.valueToTree(watchdog));
+        node.set("loadTest", NodeUtil.mapper.valueToTree(loadTest));
+        if(!instances.isEmpty())
+            node.set("instances", NodeUtil.mapper.valueToTree(instances));
         try {
             Path configFilePath = getConfigFilePath().orElse(defaultConfigFilePath);
             Files.write(configFilePath, NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(node));
@@ -72,6 +158,42 @@ public class Config {
         }
     }
 
+    /**
+     * The instances to run, with unset fields taken from the top level. Without an "instances"
+     * list the top-level path is run as a single instance named "default".
+     */
+    public List<ServerInstance.Options> getResolvedInstances() {
+        if(instances.isEmpty())
+            return Collections.singletonList(resolve(new ServerInstance.Options(), "default"));
+        List<ServerInstance.Options> resolved = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        Set<Path> paths = new HashSet<>();
+        for(int i = 0; i < instances.size(); i++) {
+            ServerInstance.Options instance = resolve(instances.get(i), "instance-" + (i + 1));
+            if(!names.add(instance.getName()))
+                throw new RuntimeException("Duplicate instance name: " + instance.getName());
+            // two servers in one directory would fight over the world lock
+            if(!paths.add(Paths.get(instance.getPath()).toAbsolutePath().normalize()))
+                throw new RuntimeException("Duplicate instance path: " + instance.getPath());
+            resolved.add(instance);
+        }
+        return resolved;
+    }
+
+    private ServerInstance.Options resolve(ServerInstance.Options instance, String defaultName) {
+        ServerInstance.Options resolved = new ServerInstance.Options();
+        resolved.setName(instance.getName() != null ? instance.getName() : defaultName);
+        resolved.setPath(instance.getPath() != null ? Paths.get(path).resolve(instance.getPath()).toString() : path);
+        resolved.setMemoryAllocation(instance.getMemoryAllocation() != null ? instance.getMemoryAllocation() : memoryAllocation);
+        resolved.setCpus(instance.getCpus());
+        resolved.setNumaNode(instance.getNumaNode());
+        resolved.setProxy(instance.getProxy() != null ? instance.getProxy() : proxy);
+        resolved.setServer(instance.getServer() != null ? instance.getServer() : server);
+        resolved.setJvm(instance.getJvm() != null ? instance.getJvm() : jvm);
+        resolved.setRcon(instance.getRcon() != null ? instance.getRcon() : rcon);
+        return resolved;
+    }
+
     private Completable setup() {
         Scanner scanner = new Scanner(System.in);
 
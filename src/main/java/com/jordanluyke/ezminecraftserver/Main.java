@@ -1,6 +1,8 @@
 package com.jordanluyke.ezminecraftserver;
 
 import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.jordanluyke.ezminecraftserver.loadtest.LoadTest;
 import com.jordanluyke.ezminecraftserver.util.ErrorHandlingCompletableObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -10,9 +12,15 @@ public class Main {
 
     public static void main(String[] args) {
         logger.info("Initializing");
-        Guice.createInjector(new MainModule())
-                .getInstance(MainManager.class)
+        Injector injector = Guice.createInjector(new MainModule());
+        if(args.length > 0 && args[0].equals("loadtest")) {
+            injector.getInstance(LoadTest.class)
+                    .run()
+                    .blockingSubscribe(new ErrorHandlingCompletableObserver());
+            return;
+        }
+        injector.getInstance(MainManager.class)
                 .start()
-                .subscribe(new ErrorHandlingCompletableObserver());
+                .blockingSubscribe(new ErrorHandlingCompletableObserver());
     }
 }
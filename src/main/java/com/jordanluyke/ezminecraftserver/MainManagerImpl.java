@@ -2,141 +2,417 @@ package com.jordanluyke.ezminecraftserver;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
-import com.jordanluyke.ezminecraftserver.util.ErrorHandlingObserver;
+import com.jordanluyke.ezminecraftserver.backup.BackupEngine;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.jvm.ClassDataSharing;
+import com.jordanluyke.ezminecraftserver.metrics.MetricsServer;
+import com.jordanluyke.ezminecraftserver.metrics.SupervisorStats;
+import com.jordanluyke.ezminecraftserver.metrics.UpdateLog;
+import com.jordanluyke.ezminecraftserver.metrics.UpdateTrace;
+import com.jordanluyke.ezminecraftserver.telemetry.Telemetry;
+import com.jordanluyke.ezminecraftserver.util.ErrorHandlingCompletableObserver;
+import com.jordanluyke.ezminecraftserver.util.HttpCache;
 import com.jordanluyke.ezminecraftserver.util.NettyHttpClient;
 import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.RangedDownloader;
+import com.jordanluyke.ezminecraftserver.versions.JarStore;
+import com.jordanluyke.ezminecraftserver.versions.MirrorServer;
+import com.jordanluyke.ezminecraftserver.watchdog.Watchdog;
+import com.jordanluyke.ezminecraftserver.world.RamWorld;
+import com.jordanluyke.ezminecraftserver.world.RegionCompactor;
+import com.jordanluyke.ezminecraftserver.world.WorldUpgrader;
 import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Maybe;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 /**
  * @author Jordan Luyke <jordanluyke@gmail.com>
  */
 public class MainManagerImpl implements MainManager {
     private static final Logger logger = LogManager.getLogger(MainManager.class);
-    private static final long updateInterval = 30;
-    private static final TimeUnit updateUnit = TimeUnit.MINUTES;
 
-    private Process minecraftProcess;
+    private static final String manifestUrl = "https://launchermeta.mojang.com" + MirrorServer.manifestPath;
+
+    private List<ServerInstance> instances;
+    private HttpCache manifestCache;
+    private BackupEngine backupEngine;
+    private RegionCompactor regionCompactor;
+    private JarStore jarStore;
+    private RestartScheduler restartScheduler;
+    private ClassDataSharing classDataSharing;
+    private RamWorld ramWorld;
+    private WorldUpgrader worldUpgrader;
+    private Disposable pendingRestarts;
+    private boolean manifestCurrent;
 
     private Config config;
+    private ConsolePump consolePump;
+    private Telemetry telemetry;
+    private SupervisorStats stats;
+    private MetricsServer metricsServer;
+    private UpdateLog updateLog;
 
     @Inject
-    public MainManagerImpl(Config config) {
+    public MainManagerImpl(Config config, ConsolePump consolePump, Telemetry telemetry, SupervisorStats stats, MetricsServer metricsServer, UpdateLog updateLog) {
         this.config = config;
+        this.consolePump = consolePump;
+        this.telemetry = telemetry;
+        this.stats = stats;
+        this.metricsServer = metricsServer;
+        this.updateLog = updateLog;
     }
 
     @Override
     public Completable start() {
         return config.load()
-                .andThen(runMinecraft())
                 .doOnComplete(() -> {
-                    Observable.interval(updateInterval, updateInterval, updateUnit)
-                            .flatMapCompletable(Void1 -> update())
-                            .blockingAwait();
-                });
+                    NettyHttpClient.configure(config.getHttp());
+                    manifestCache = new HttpCache(Paths.get(config.getPath(), "cache"));
+                    Path jarPath = Paths.get(config.getPath(), "minecraft_server.jar");
+                    classDataSharing = new ClassDataSharing(config.getClassDataSharing(), config.getServer(), consolePump);
+                    ramWorld = new RamWorld(config.getRamWorld());
+                    instances = config.getResolvedInstances()
+                            .stream()
+                            .map(options -> new ServerInstance(options, jarPath, consolePump, telemetry, stats, classDataSharing, ramWorld))
+                            .collect(Collectors.toList());
+                    stopOnExit();
+                    stats.setInstances(instances);
+                    backupEngine = new BackupEngine(Paths.get(config.getPath(), "backups"), config.getBackup());
+                    regionCompactor = new RegionCompactor(config.getCompaction());
+                    worldUpgrader = new WorldUpgrader(config.getWorldUpgrade(), config.getServer(), consolePump);
+                    jarStore = new JarStore(Paths.get(config.getPath(), "versions"), config.getVersions(), new RangedDownloader(config.getDownloads()));
+                    restartScheduler = new RestartScheduler(config.getUpdates());
+                    updateLog.load(Paths.get(config.getPath(), "update-log.json"), config.getUpdates().getHistorySize());
+                })
+                .andThen(startMetrics())
+                .andThen(startMirror())
+                .andThen(Completable.defer(() -> Observable.fromIterable(instances)
+                        .concatMapCompletable(instance -> instance.start(config.getVersion()))))
+                .doOnComplete(() -> {
+                    startWatchdogs();
+                    scheduleBackups();
+                    scheduleWorldSyncs();
+                    trainSharedArchives().subscribe(new ErrorHandlingCompletableObserver());
+                })
+                .andThen(scheduleUpdates());
     }
 
-    private Completable update() {
-        return NettyHttpClient.get("https://launchermeta.mojang.com/mc/game/version_manifest.json")
-                .map(res -> NodeUtil.getJsonNode(res.getRawBody()))
-                .flatMapMaybe(versionBody -> {
-                    JsonNode versions = versionBody.get("versions");
-                    Optional<String> url = Optional.empty();
-                    for(JsonNode version : versions) {
-                        String id = NodeUtil.getOrThrow("id", version);
-                        String type = NodeUtil.getOrThrow("type", version);
-                        url = NodeUtil.get("url", version);
-                        if(type.equals("release")) {
-                            if(id.equals(config.getVersion()))
-                                return Maybe.empty();
-                            logger.info("{} is latest version", id);
-                            config.setVersion(id);
-                            break;
-                        }
-                    }
-                    if(!url.isPresent())
-                        return Maybe.error(new RuntimeException("url not found"));
-                    return NettyHttpClient.get(url.get())
-                            .toMaybe();
-                })
-                .map(res -> NodeUtil.getJsonNode(res.getRawBody()))
-                .flatMapSingle(packageBody -> {
-                    String version = NodeUtil.getOrThrow("id", packageBody);
-                    JsonNode downloads = packageBody.get("downloads");
-                    if(downloads == null)
-                        return Single.error(new RuntimeException("Bad response"));
-                    JsonNode server = downloads.get("server");
-                    if(server == null)
-                        return Single.error(new RuntimeException("Bad response"));
-                    String url = NodeUtil.getOrThrow("url", server);
-                    logger.info("Fetching server version: {}", version);
-                    return NettyHttpClient.get(url);
+    private Completable startMetrics() {
+        return Completable.defer(() -> {
+            if(!config.getMetrics().isEnabled())
+                return Completable.complete();
+            return metricsServer.start(config.getMetrics());
+        });
+    }
+
+    private Completable startMirror() {
+        return Completable.defer(() -> {
+            if(!config.getMirror().isEnabled())
+                return Completable.complete();
+            return new MirrorServer(config.getMirror(), getManifestUrl(), manifestCache, jarStore).start();
+        });
+    }
+
+    /**
+     * Mojang's manifest, or the one served by another supervisor's mirror when a base url is set.
+     */
+    private String getManifestUrl() {
+        String baseUrl = config.getMirror().getBaseUrl();
+        return baseUrl != null ? MirrorServer.trimSlash(baseUrl) + MirrorServer.manifestPath : manifestUrl;
+    }
+
+    private void startWatchdogs() {
+        if(!config.getWatchdog().isEnabled())
+            return;
+        instances.forEach(instance -> new Watchdog(instance, config.getWatchdog(), server -> recover(instance, server)).start());
+    }
+
+    private void scheduleBackups() {
+        if(!config.getBackup().isEnabled())
+            return;
+        long interval = config.getBackup().getIntervalMinutes();
+        Observable.interval(interval, interval, TimeUnit.MINUTES)
+                .concatMapCompletable(Void -> backupInstances())
+                .subscribe(new ErrorHandlingCompletableObserver());
+    }
+
+    /**
+     * Writes RAM worlds back to disk on a timer. A failed write-back is logged and retried at the next interval.
+     */
+    private void scheduleWorldSyncs() {
+        if(!config.getRamWorld().isEnabled())
+            return;
+        long interval = config.getRamWorld().getSyncIntervalMinutes();
+        Observable.interval(interval, interval, TimeUnit.MINUTES)
+                .concatMapCompletable(Void -> Observable.fromIterable(instances)
+                        .concatMapCompletable(instance -> ramWorld.sync(instance)
+                                .doOnError(e -> logger.error("World sync of {} failed: {}", instance.getName(), e.getMessage()))
+                                .onErrorComplete()))
+                .subscribe(new ErrorHandlingCompletableObserver());
+    }
+
+    /**
+     * Worlds running from RAM only reach the disk once their server stops, so on exit the servers are
+     * stopped and their worlds written back before the supervisor goes away.
+     */
+    private void stopOnExit() {
+        if(!config.getRamWorld().isEnabled())
+            return;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping instances to write their worlds back");
+            instances.forEach(instance -> {
+                try {
+                    instance.stop().blockingAwait();
+                } catch(RuntimeException e) {
+                    logger.error("Stop of {} failed: {}", instance.getName(), e.getMessage());
+                }
+            });
+        }, "stop-on-exit"));
+    }
+
+    /**
+     * Backs up instances one after another so only one server has saving turned off at a time.
+     * A failed backup is logged and does not stop later ones.
+     */
+    private Completable backupInstances() {
+        return Observable.fromIterable(instances)
+                .concatMapCompletable(instance -> Completable.defer(() -> {
+                    long backupStart = System.nanoTime();
+                    return backupEngine.backup(instance)
+                            .doOnComplete(() -> stats.recordBackup(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - backupStart)));
                 })
-                .flatMapCompletable(res -> {
-                    Path serverPath = Paths.get(config.getPath(), "minecraft_server.jar");
-                    Files.write(serverPath, res.getRawBody());
-                    config.save();
-
-                    if(minecraftProcess != null) {
-                        logger.info("Stopping Minecraft Server");
-                        minecraftProcess.destroy();
-                        return runMinecraft();
-                    }
-                    return Completable.complete();
-                });
+                        .doOnError(e -> logger.error("Backup of {} failed: {}", instance.getName(), e.getMessage()))
+                        .onErrorComplete());
     }
 
-    private Completable runMinecraft() {
-        Path minecraftJarPath = Paths.get(config.getPath(), "minecraft_server.jar");
-        String[] cmd = String.format("java -server -Xmx%sG -Xms%sG -jar %s nogui", config.getMemoryAllocation(), config.getMemoryAllocation(), minecraftJarPath)
-                .split(" ");
-        Process proc;
-        try {
-            logger.info("Starting Minecraft Server");
-            proc = new ProcessBuilder()
-                    .directory(new File(config.getPath()))
-                    .command(cmd)
-                    .start();
-        } catch(IOException e) {
-            return Completable.error(new RuntimeException(e.getMessage()));
-        }
-        minecraftProcess = proc;
+    /**
+     * Checks for updates on a timer for as long as the supervisor runs. A failed check is logged and
+     * the next one still goes ahead.
+     */
+    private Completable scheduleUpdates() {
+        return Completable.defer(() -> {
+            long interval = config.getUpdates().getCheckIntervalMinutes();
+            return Observable.interval(interval, interval, TimeUnit.MINUTES)
+                    .concatMapCompletable(Void -> update()
+                            .doOnError(e -> logger.error("Update check failed: {}", e.getMessage()))
+                            .onErrorComplete());
+        });
+    }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-        BufferedReader err = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
+    /**
+     * Stages a new version straight away. Restarts onto it are left to the restart scheduler.
+     */
+    private Completable update() {
+        return Completable.defer(() -> {
+            long updateStart = System.nanoTime();
+            UpdateTrace trace = updateLog.begin(config.getVersion());
+            return findUpdate(trace)
+                    .flatMapCompletable(entry -> trace.time("activate", null, Completable.fromAction(() -> jarStore.activate(entry, Paths.get(config.getPath(), "minecraft_server.jar"))))
+                            .andThen(Completable.defer(() -> {
+                                config.setVersion(entry.getVersion());
+                                return trace.time("config", null, config.save());
+                            }))
+                            .doOnComplete(() -> stats.recordUpdate(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - updateStart)))
+                            .andThen(trace.time("train", null, trainSharedArchives()))
+                            .doOnComplete(trace::staged))
+                    .doOnError(trace::fail)
+                    .doOnComplete(() -> {
+                        manifestCurrent = true;
+                        scheduleRestarts();
+                    });
+        });
+    }
 
-        fromBufferedReader(in)
-                .doOnNext(System.out::println)
-                .subscribeOn(Schedulers.newThread())
-                .subscribe(new ErrorHandlingObserver<>());
+    /**
+     * Makes class data archives of the live jar for each Java the instances launch with, so restarts onto
+     * it start faster. A failed training run is logged and the instances launch without an archive.
+     */
+    private Completable trainSharedArchives() {
+        Path jarPath = Paths.get(config.getPath(), "minecraft_server.jar");
+        return Observable.fromIterable(instances)
+                .distinct(instance -> instance.getOptions().getJvm().getJavaPath())
+                .concatMapCompletable(instance -> classDataSharing.train(jarPath, instance.getOptions().getJvm().getJavaPath(), instance.getDirectory())
+                        .doOnError(e -> logger.error("Class data archive for {} failed: {}", instance.getOptions().getJvm().getJavaPath(), e.getMessage()))
+                        .onErrorComplete());
+    }
 
-        fromBufferedReader(err)
-                .doOnNext(System.err::println)
-                .subscribeOn(Schedulers.newThread())
-                .subscribe(new ErrorHandlingObserver<>());
+    /**
+     * Restarts instances that run an older version than the staged one, one at a time, each once the
+     * restart scheduler allows it. The version is read again when an instance's turn comes, so a newer
+     * version staged while waiting is picked up. Instances missed by a failed restart are retried after
+     * the next update check.
+     */
+    private synchronized void scheduleRestarts() {
+        if(config.getVersion() == null || pendingRestarts != null && !pendingRestarts.isDisposed())
+            return;
+        List<ServerInstance> outdated = instances.stream()
+                .filter(instance -> !config.getVersion().equals(instance.getVersion()))
+                .collect(Collectors.toList());
+        if(outdated.isEmpty())
+            return;
+        long stagedAt = System.currentTimeMillis();
+        logger.info("Restart onto {} pending for {}", config.getVersion(), outdated.stream().map(ServerInstance::getName).collect(Collectors.joining(", ")));
+        pendingRestarts = Observable.fromIterable(outdated)
+                .concatMapCompletableDelayError(instance -> Completable.defer(() -> updateLog.trace(config.getVersion())
+                        .time("wait", instance.getName(), restartScheduler.awaitRestartWindow(instance, stagedAt)))
+                        .andThen(Completable.defer(() -> restartOutdated(instance, config.getVersion()))))
+                .subscribe(() -> logger.info("All instances restarted onto {}", config.getVersion()),
+                        e -> logger.error("Restart failed: {}", e.getMessage()));
+    }
+
+    /**
+     * Restarts the instance onto the version unless it already runs it, e.g. after the watchdog
+     * restarted it onto the staged version while this restart waited.
+     */
+    private Completable restartOutdated(ServerInstance instance, String version) {
+        return instance.exclusive(Completable.defer(() -> {
+            if(version.equals(instance.getVersion())) {
+                logger.info("Instance {} already runs {}", instance.getName(), version);
+                return Completable.complete();
+            }
+            return restart(instance, version);
+        }));
+    }
+
+    /**
+     * Restarts a hung or crashed server for the watchdog. The jar behind the live link may already be a
+     * staged version, so the server comes back on that version, through the update stages when it is
+     * newer than the one the server ran. A recovery queued behind a restart that already replaced the
+     * server is dropped.
+     */
+    private Completable recover(ServerInstance instance, MinecraftServer server) {
+        return instance.exclusive(Completable.defer(() -> {
+            if(instance.getServer().orElse(null) != server) {
+                logger.info("Recovery of {} dropped, its server was already replaced", instance.getName());
+                return Completable.complete();
+            }
+            String version = config.getVersion() != null ? config.getVersion() : instance.getVersion();
+            if(!Objects.equals(version, instance.getVersion()))
+                return restart(instance, version);
+            return instance.restart(version, compactWorld(instance));
+        }));
+    }
 
-        return Completable.complete();
+    /**
+     * Restarts the instance onto the version, timing the stop, the world upgrade and maintenance while
+     * it is stopped and the start up to the "Done" line. The instance counts as down for all of them.
+     * Only call while holding the instance's world.
+     */
+    private Completable restart(ServerInstance instance, String version) {
+        UpdateTrace trace = updateLog.trace(version);
+        long downSince = System.nanoTime();
+        UpdateTrace.Stage stop = trace.start("stop", instance.getName());
+        AtomicReference<UpdateTrace.Stage> start = new AtomicReference<>();
+        Completable whileStopped = Completable.fromAction(stop::end)
+                .andThen(upgradeWorld(instance, version, trace))
+                .andThen(trace.time("maintenance", instance.getName(), compactWorld(instance)))
+                .doOnComplete(() -> start.set(trace.start("start", instance.getName())));
+        return instance.restart(version, whileStopped)
+                .doOnError(e -> {
+                    stop.fail(e);
+                    if(start.get() != null)
+                        start.get().fail(e);
+                })
+                .andThen(Completable.defer(() -> instance.getServer().get().awaitReady(instance.getOptions().getProxy().getStartTimeoutSeconds(), TimeUnit.SECONDS))
+                        .doOnComplete(() -> {
+                            start.get().end();
+                            trace.restarted(instance.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downSince));
+                        })
+                        // a slow start is recorded on the trace but does not fail the restart
+                        .doOnError(e -> start.get().fail(e))
+                        .onErrorComplete());
     }
 
-    private Observable<String> fromBufferedReader(BufferedReader reader) {
-        return Observable.create(e -> {
-            String line;
-            while (!e.isDisposed() && (line = reader.readLine()) != null) {
-                e.onNext(line);
+    /**
+     * The stored jar to switch to, if any. A pinned version that is already stored is used without
+     * touching the network; anything else is looked up in the manifest and fetched into the store.
+     */
+    private Maybe<JarStore.Entry> findUpdate(UpdateTrace trace) {
+        String pinned = config.getVersions().getPinnedVersion();
+        if(pinned != null) {
+            if(pinned.equals(config.getVersion()))
+                return Maybe.empty();
+            Optional<JarStore.Entry> stored = jarStore.findByVersion(pinned);
+            if(stored.isPresent()) {
+                logger.info("Switching to stored version {}", pinned);
+                trace.setVersion(pinned);
+                return Maybe.just(stored.get());
             }
-            e.onComplete();
+        }
+        return trace.time("manifest", NettyHttpClient.get(getManifestUrl(), manifestCache), res -> res.getRawBody().length)
+                .filter(res -> !(res.isNotModified() && manifestCurrent))
+                .flatMap(res -> {
+                    NodeUtil.ManifestVersion target = (pinned != null ? NodeUtil.getVersion(res.getRawBody(), pinned) : NodeUtil.getLatestRelease(res.getRawBody()))
+                            .orElseThrow(() -> new RuntimeException(pinned != null ? "Version " + pinned + " not found" : "Release not found"));
+                    if(target.getId().equals(config.getVersion()))
+                        return Maybe.empty();
+                    logger.info(pinned != null ? "{} is pinned version" : "{} is latest version", target.getId());
+                    trace.setVersion(target.getId());
+                    Optional<JarStore.Entry> stored = jarStore.findByVersion(target.getId());
+                    if(stored.isPresent())
+                        return Maybe.just(stored.get());
+                    if(target.getUrl() == null)
+                        return Maybe.error(new RuntimeException("url not found"));
+                    return trace.time("package", NettyHttpClient.get(target.getUrl()), packageRes -> packageRes.getRawBody().length)
+                            .flatMap(packageRes -> trace.time("download", fetchServerJar(NodeUtil.getJsonNode(packageRes.getRawBody())), JarStore.Entry::getSize))
+                            .toMaybe();
+                });
+    }
+
+    private Single<JarStore.Entry> fetchServerJar(JsonNode packageBody) {
+        String version = NodeUtil.getOrThrow("id", packageBody);
+        JsonNode downloads = packageBody.get("downloads");
+        if(downloads == null)
+            return Single.error(new RuntimeException("Bad response"));
+        JsonNode server = downloads.get("server");
+        if(server == null || !server.hasNonNull("sha1") || !server.hasNonNull("size"))
+            return Single.error(new RuntimeException("Bad response"));
+        return jarStore.fetch(version, NodeUtil.getOrThrow("url", server), NodeUtil.getOrThrow("sha1", server), server.get("size").asLong());
+    }
+
+    /**
+     * Upgrades the instance's world with the new jar before it starts on it. A failed upgrade is
+     * recorded on the trace and the server starts on the world as it was.
+     */
+    private Completable upgradeWorld(ServerInstance instance, String version, UpdateTrace trace) {
+        return Completable.defer(() -> {
+            if(!config.getWorldUpgrade().isEnabled())
+                return Completable.complete();
+            Path jarPath = Paths.get(config.getPath(), "minecraft_server.jar");
+            return trace.time("upgrade", instance.getName(), worldUpgrader.upgrade(instance, jarPath, version))
+                    .doOnError(e -> logger.error("World upgrade of {} failed: {}", instance.getName(), e.getMessage()))
+                    .onErrorComplete();
+        });
+    }
+
+    /**
+     * Compacts the instance's region files while its server is stopped. A failure is logged and the restart goes ahead.
+     */
+    private Completable compactWorld(ServerInstance instance) {
+        return Completable.defer(() -> {
+            RegionCompactor.Options options = config.getCompaction();
+            Path worldDir = instance.getWorldDirectory();
+            if(!options.isEnabled() || !Files.isDirectory(worldDir))
+                return Completable.complete();
+            return Completable.fromAction(() -> regionCompactor.compact(worldDir, options.isDryRun()))
+                    .subscribeOn(Schedulers.io())
+                    .doOnError(e -> logger.error("Compaction of {} failed: {}", instance.getName(), e.getMessage()))
+                    .onErrorComplete();
         });
     }
 }
@@ -0,0 +1,298 @@
+package com.jordanluyke.ezminecraftserver;
+
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.rcon.RconClient;
+import com.jordanluyke.ezminecraftserver.util.ErrorHandlingCompletableObserver;
+import com.jordanluyke.ezminecraftserver.util.ProcessUtil;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subjects.CompletableSubject;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single launched Minecraft server process and its console output.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class MinecraftServer {
+    private static final Logger logger = LogManager.getLogger(MinecraftServer.class);
+    private static final Pattern donePattern = Pattern.compile("]: Done \\((\\d+(?:\\.\\d+)?)s\\)");
+
+    private final Process process;
+    private final Options options;
+    private final Writer console;
+    private final RconClient rcon;
+    @Getter private final int port;
+    @Getter private final long startedAt = System.currentTimeMillis();
+    private final Subject<String> output = PublishSubject.<String>create().toSerialized();
+    private final CompletableSubject ready = CompletableSubject.create();
+    private final CompletableSubject exited = CompletableSubject.create();
+    private volatile boolean stopping;
+    private volatile Double startupSeconds;
+
+    private MinecraftServer(Process process, Options options, int port, RconClient rcon) {
+        this.process = process;
+        this.options = options;
+        this.console = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.port = port;
+        this.rcon = rcon;
+    }
+
+    /**
+     * @param listener called on the console reader thread for every stdout line
+     * @param port the port the server should listen on, or -1 to use the one in server.properties
+     * @param rcon a client for the server's RCON port, or null to only use the console
+     */
+    public static MinecraftServer start(ConsolePump consolePump, File directory, List<String> cmd, Options options, Consumer<String> listener, int port, RconClient rcon) throws IOException {
+        logger.info("Starting Minecraft Server");
+        Process proc = new ProcessBuilder()
+                .directory(directory)
+                .command(cmd)
+                .start();
+        MinecraftServer server = new MinecraftServer(proc, options, port, rcon);
+        consolePump.pump(proc.getInputStream(), false, line -> {
+            listener.accept(line);
+            server.onLine(line);
+        }, server::onExit);
+        consolePump.pump(proc.getErrorStream(), true, line -> {}, () -> {});
+        return server;
+    }
+
+    public Observable<String> getOutput() {
+        return output;
+    }
+
+    /**
+     * Completes once the server logs that it is done starting, or errors if it exits or the timeout passes first.
+     */
+    public Completable awaitReady(long timeout, TimeUnit unit) {
+        // hop off the console reader thread that completes the subject
+        return ready.timeout(timeout, unit)
+                .observeOn(Schedulers.io());
+    }
+
+    public boolean isReady() {
+        return ready.hasComplete();
+    }
+
+    /**
+     * The startup time the server reported in its "Done (12.345s)!" line, once it is ready.
+     */
+    public Optional<Double> getStartupSeconds() {
+        return Optional.ofNullable(startupSeconds);
+    }
+
+    /**
+     * Completes once the process has exited, whether it was stopped or not.
+     */
+    public Completable awaitExit() {
+        return exited.observeOn(Schedulers.io());
+    }
+
+    /**
+     * Whether the supervisor asked the server to stop, so an exit is expected.
+     */
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    public int getExitCode() {
+        return process.exitValue();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    public Optional<Long> getPid() {
+        return ProcessUtil.getPid(process);
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    public boolean hasRcon() {
+        return rcon != null;
+    }
+
+    /**
+     * Runs a command over RCON and returns its output. Without RCON the command is written to the
+     * console and the result is empty, since console output cannot be tied to a command.
+     */
+    public Single<String> command(String command) {
+        if(rcon == null)
+            return Single.fromCallable(() -> {
+                sendCommand(command);
+                return "";
+            });
+        return rcon.command(command);
+    }
+
+    /**
+     * Completes once the server confirms that "save-all flush" has written everything to disk.
+     */
+    public Completable saveAll() {
+        return Completable.fromAction(() -> {
+            if(!saveOverRcon() && !saveOverConsole())
+                throw new RuntimeException("Save not confirmed within " + options.getSaveTimeoutSeconds() + "s");
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Writes a command to the server console.
+     */
+    public synchronized void sendCommand(String command) {
+        try {
+            console.write(command);
+            console.write('\n');
+            console.flush();
+        } catch(IOException e) {
+            throw new RuntimeException("Unable to send command: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the server through its console: flush the world to disk, ask it to stop and wait for it to
+     * exit. The process is only killed if it is still running once the stop deadline has passed.
+     */
+    public Completable stop() {
+        return Completable.fromAction(() -> {
+            stopping = true;
+            if(!process.isAlive()) {
+                logger.info("Minecraft Server already exited with code {}", process.exitValue());
+                return;
+            }
+            logger.info("Stopping Minecraft Server");
+            long stopStart = System.nanoTime();
+
+            long phaseStart = System.nanoTime();
+            boolean savedInTime = saveOverRcon() || saveOverConsole();
+            logPhase(StopPhase.SAVE, phaseStart, savedInTime ? "saved" : "no save confirmation");
+
+            phaseStart = System.nanoTime();
+            trySendCommand("stop");
+            boolean exited = process.waitFor(options.getStopTimeoutSeconds(), TimeUnit.SECONDS);
+            logPhase(StopPhase.STOP, phaseStart, exited ? "exited" : "deadline passed");
+
+            if(!exited) {
+                phaseStart = System.nanoTime();
+                process.destroyForcibly();
+                process.waitFor();
+                logPhase(StopPhase.KILL, phaseStart, "killed");
+            }
+            logger.info("Minecraft Server exited with code {} after {}ms", process.exitValue(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStart));
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Kills the process without saving, for runs whose world is thrown away.
+     */
+    public Completable kill() {
+        return Completable.fromAction(() -> {
+            stopping = true;
+            process.destroyForcibly();
+            process.waitFor();
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * The RCON response to "save-all flush" only arrives once the flush has finished.
+     */
+    private boolean saveOverRcon() {
+        if(rcon == null)
+            return false;
+        try {
+            return rcon.command("save-all flush")
+                    .timeout(options.getSaveTimeoutSeconds(), TimeUnit.SECONDS)
+                    .blockingGet()
+                    .contains("Saved the game");
+        } catch(RuntimeException e) {
+            logger.warn("Unable to save over RCON, using the console: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean saveOverConsole() {
+        Completable saved = output.filter(line -> line.contains("Saved the game"))
+                .firstElement()
+                .ignoreElement()
+                .cache();
+        saved.subscribe(new ErrorHandlingCompletableObserver());
+        return trySendCommand("save-all flush") && saved.blockingAwait(options.getSaveTimeoutSeconds(), TimeUnit.SECONDS);
+    }
+
+    private boolean trySendCommand(String command) {
+        try {
+            sendCommand(command);
+            return true;
+        } catch(RuntimeException e) {
+            logger.warn(e.getMessage());
+            return false;
+        }
+    }
+
+    private void logPhase(StopPhase phase, long startNanos, String outcome) {
+        logger.info("Stop phase {}: {} in {}ms", phase, outcome, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private void onLine(String line) {
+        output.onNext(line);
+        if(!ready.hasComplete() && line.contains("]: Done (") && line.contains("For help")) {
+            Matcher matcher = donePattern.matcher(line);
+            if(matcher.find())
+                startupSeconds = Double.parseDouble(matcher.group(1));
+            ready.onComplete();
+        }
+    }
+
+    private void onExit() {
+        if(rcon != null)
+            rcon.close();
+        if(!ready.hasComplete() && !ready.hasThrowable())
+            ready.onError(new RuntimeException("Minecraft Server exited before it was ready"));
+        output.onComplete();
+        try {
+            // stdout closes as the process goes away, so this wait is short
+            process.waitFor();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exited.onComplete();
+    }
+
+    private enum StopPhase {
+        SAVE,
+        STOP,
+        KILL
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private int saveTimeoutSeconds = 60;
+        private int stopTimeoutSeconds = 60;
+    }
+}
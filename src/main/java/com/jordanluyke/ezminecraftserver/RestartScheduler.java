@@ -0,0 +1,104 @@
+package com.jordanluyke.ezminecraftserver;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when an instance running an outdated version may be restarted: once nobody is online,
+ * inside the maintenance window, or when the deadline after the update was staged has passed.
+ * Conditions are polled on RxJava timers, so waiting holds no thread.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RestartScheduler {
+    private static final Logger logger = LogManager.getLogger(RestartScheduler.class);
+
+    private final Options options;
+    private final LocalTime windowStart;
+    private final LocalTime windowEnd;
+
+    public RestartScheduler(Options options) {
+        this.options = options;
+        if(options.getMaintenanceWindow() != null) {
+            String[] window = options.getMaintenanceWindow().split("-");
+            try {
+                if(window.length != 2)
+                    throw new DateTimeParseException("Expected HH:mm-HH:mm", options.getMaintenanceWindow(), 0);
+                windowStart = LocalTime.parse(window[0].trim());
+                windowEnd = LocalTime.parse(window[1].trim());
+            } catch(DateTimeParseException e) {
+                throw new RuntimeException("maintenanceWindow must look like 04:00-06:00: " + options.getMaintenanceWindow());
+            }
+        } else {
+            windowStart = null;
+            windowEnd = null;
+        }
+    }
+
+    /**
+     * Completes once the instance may be restarted.
+     *
+     * @param stagedAt when the update was staged, in epoch millis; the deadline counts from here
+     */
+    public Completable awaitRestartWindow(ServerInstance instance, long stagedAt) {
+        long deadline = stagedAt + TimeUnit.HOURS.toMillis(options.getDeadlineHours());
+        return Observable.interval(0, options.getPollSeconds(), TimeUnit.SECONDS)
+                .concatMapSingle(tick -> getRestartReason(instance, deadline))
+                .filter(Optional::isPresent)
+                .firstElement()
+                .doOnSuccess(reason -> logger.info("Restarting {} for update: {}", instance.getName(), reason.get()))
+                .ignoreElement();
+    }
+
+    private Single<Optional<String>> getRestartReason(ServerInstance instance, long deadline) {
+        if(System.currentTimeMillis() >= deadline)
+            return Single.just(Optional.of("deadline reached"));
+        if(isInMaintenanceWindow(LocalTime.now()))
+            return Single.just(Optional.of("maintenance window " + options.getMaintenanceWindow()));
+        return instance.getOnlineCount()
+                .map(count -> {
+                    if(count == 0)
+                        return Optional.of("no players online");
+                    logger.debug("Holding restart of {}, {} players online", instance.getName(), count);
+                    return Optional.<String>empty();
+                })
+                .onErrorReturn(e -> {
+                    logger.warn("Unable to count players on {}: {}", instance.getName(), e.getMessage());
+                    return Optional.empty();
+                });
+    }
+
+    private boolean isInMaintenanceWindow(LocalTime now) {
+        if(windowStart == null)
+            return false;
+        if(windowStart.isBefore(windowEnd))
+            return !now.isBefore(windowStart) && now.isBefore(windowEnd);
+        // the window wraps past midnight
+        return !now.isBefore(windowStart) || now.isBefore(windowEnd);
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private int checkIntervalMinutes = 30;
+        private int pollSeconds = 60;
+        /** local time range such as "04:00-06:00" in which restarts go ahead with players online */
+        private String maintenanceWindow;
+        /** restart this long after the update was staged even with players online; 0 restarts straight away */
+        private int deadlineHours = 24;
+        /** update runs kept in update-log.json with their stage timings */
+        private int historySize = 20;
+    }
+}
@@ -0,0 +1,337 @@
+package com.jordanluyke.ezminecraftserver;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.jvm.ClassDataSharing;
+import com.jordanluyke.ezminecraftserver.jvm.CpuPinning;
+import com.jordanluyke.ezminecraftserver.jvm.HostInfo;
+import com.jordanluyke.ezminecraftserver.jvm.JvmLauncher;
+import com.jordanluyke.ezminecraftserver.metrics.SupervisorStats;
+import com.jordanluyke.ezminecraftserver.proxy.TcpProxy;
+import com.jordanluyke.ezminecraftserver.rcon.RconClient;
+import com.jordanluyke.ezminecraftserver.telemetry.ServerTelemetry;
+import com.jordanluyke.ezminecraftserver.telemetry.Telemetry;
+import com.jordanluyke.ezminecraftserver.util.ServerProperties;
+import com.jordanluyke.ezminecraftserver.world.RamWorld;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One server directory run by the supervisor, with its own process, proxy and launch settings.
+ * All instances run the same shared server jar.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ServerInstance {
+    private static final Logger logger = LogManager.getLogger(ServerInstance.class);
+
+    @Getter private final Options options;
+    private final Path jarPath;
+    private final ConsolePump consolePump;
+    private final Telemetry telemetry;
+    private final SupervisorStats stats;
+    private final ClassDataSharing classDataSharing;
+    private final RamWorld ramWorld;
+    // held by whatever needs the world to itself: backups, RAM write-backs, restarts and stops
+    private final Semaphore worldLock = new Semaphore(1, true);
+    private volatile MinecraftServer minecraftServer;
+    private volatile TcpProxy proxy;
+    private volatile ServerTelemetry serverTelemetry;
+    @Getter private volatile String version;
+
+    public ServerInstance(Options options, Path jarPath, ConsolePump consolePump, Telemetry telemetry, SupervisorStats stats, ClassDataSharing classDataSharing, RamWorld ramWorld) {
+        this.options = options;
+        this.jarPath = jarPath;
+        this.consolePump = consolePump;
+        this.telemetry = telemetry;
+        this.stats = stats;
+        this.classDataSharing = classDataSharing;
+        this.ramWorld = ramWorld;
+    }
+
+    public String getName() {
+        return options.getName();
+    }
+
+    public Path getDirectory() {
+        return Paths.get(options.getPath());
+    }
+
+    /**
+     * The world directory named by level-name in server.properties. This is the copy on disk, which
+     * can be behind the live world while it runs from RAM.
+     */
+    public Path getWorldDirectory() {
+        Path directory = getDirectory();
+        String world = ServerProperties.load(directory.resolve("server.properties"))
+                .get("level-name")
+                .filter(name -> !name.isEmpty())
+                .orElse("world");
+        return directory.resolve(world);
+    }
+
+    /**
+     * The world directory the server is running on.
+     */
+    public Path getLiveWorldDirectory() {
+        return ramWorld.getLiveWorld(getName())
+                .orElseGet(this::getWorldDirectory);
+    }
+
+    public Optional<MinecraftServer> getServer() {
+        return Optional.ofNullable(minecraftServer);
+    }
+
+    public Optional<TcpProxy> getProxy() {
+        return Optional.ofNullable(proxy);
+    }
+
+    public Optional<ServerTelemetry> getTelemetry() {
+        return Optional.ofNullable(serverTelemetry);
+    }
+
+    /**
+     * Where the server itself listens: the backend port behind the proxy, or server-port from server.properties.
+     */
+    public Optional<InetSocketAddress> getServerAddress() {
+        MinecraftServer server = minecraftServer;
+        if(server == null)
+            return Optional.empty();
+        if(server.getPort() != -1)
+            return Optional.of(server.getAddress());
+        int port = ServerProperties.load(getDirectory().resolve("server.properties"))
+                .get("server-port")
+                .map(String::trim)
+                .filter(p -> !p.isEmpty())
+                .map(Integer::parseInt)
+                .orElse(25565);
+        return Optional.of(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /**
+     * Players online, taken from "list" over RCON when it is available and otherwise from the joins
+     * and leaves seen in the console.
+     */
+    public Single<Integer> getOnlineCount() {
+        return Single.defer(() -> {
+            MinecraftServer server = minecraftServer;
+            if(server == null || !server.isAlive())
+                return Single.just(0);
+            ServerTelemetry logged = serverTelemetry;
+            int loggedCount = logged != null ? logged.getOnlineCount() : 0;
+            if(!server.hasRcon())
+                return Single.just(loggedCount);
+            return server.command("list")
+                    .map(ServerInstance::parsePlayerCount)
+                    .onErrorReturnItem(loggedCount);
+        });
+    }
+
+    /**
+     * Runs work once nothing else holds the instance's world, in the order it was asked for. Saves
+     * switched off by one holder are back on before the next one starts. Not reentrant: the work
+     * must not ask for the world again.
+     */
+    public Completable exclusive(Completable work) {
+        return Completable.defer(() -> {
+            worldLock.acquire();
+            return work.doFinally(worldLock::release);
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    public Completable start(String version) {
+        return startProxy()
+                .andThen(runMinecraft(version));
+    }
+
+    /**
+     * Only call while holding the world through {@link #exclusive(Completable)}.
+     *
+     * @param whileStopped maintenance to run between the old server exiting and the new one starting
+     */
+    public Completable restart(String version, Completable whileStopped) {
+        return Completable.defer(() -> {
+            if(minecraftServer == null)
+                return whileStopped.andThen(runMinecraft(version));
+            long restartStart = System.nanoTime();
+            stats.recordRestart();
+            if(proxy != null)
+                proxy.setBackend(null);
+            return minecraftServer.stop()
+                    .andThen(unstageWorld())
+                    .andThen(whileStopped)
+                    .andThen(runMinecraft(version))
+                    .doOnComplete(() -> logger.info("Restart of {} completed in {}ms", getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - restartStart)));
+        });
+    }
+
+    /**
+     * Stops the server for good, writing its world back to disk if it ran from RAM.
+     */
+    public Completable stop() {
+        return exclusive(Completable.defer(() -> {
+            if(proxy != null)
+                proxy.setBackend(null);
+            Completable stopServer = minecraftServer != null ? minecraftServer.stop() : Completable.complete();
+            return stopServer.andThen(Completable.fromAction(() -> ramWorld.release(this))
+                    .subscribeOn(Schedulers.io()));
+        }));
+    }
+
+    private Completable unstageWorld() {
+        return Completable.fromAction(() -> ramWorld.unstage(this))
+                .subscribeOn(Schedulers.io());
+    }
+
+    private Completable startProxy() {
+        return Completable.defer(() -> {
+            if(!options.getProxy().isEnabled())
+                return Completable.complete();
+            proxy = new TcpProxy(options.getProxy());
+            return proxy.start();
+        });
+    }
+
+    private Completable runMinecraft(String version) {
+        return Completable.defer(() -> {
+            int port = proxy != null ? findFreePort() : -1;
+            Path directory = getDirectory();
+            HostInfo host = HostInfo.detect();
+            if(options.getCpus() != null)
+                host = host.pinnedTo(CpuPinning.countCpus(options.getCpus()));
+            List<String> serverArgs = new ArrayList<>();
+            if(port != -1)
+                serverArgs.addAll(Arrays.asList("--port", String.valueOf(port)));
+            ramWorld.stage(this, getHeapGb())
+                    .ifPresent(universe -> serverArgs.addAll(Arrays.asList("--universe", universe.toString())));
+            Optional<Path> sharedArchive = classDataSharing.find(jarPath, options.getJvm().getJavaPath());
+            // the archive only matches the jar path it was trained with
+            Path jar = sharedArchive.isPresent() ? classDataSharing.resolveJar(jarPath) : jarPath;
+            List<String> cmd = new JvmLauncher(options.getJvm(), host)
+                    .buildCommand(directory, jar, getHeapGb(), serverArgs, sharedArchive);
+            cmd = CpuPinning.wrap(cmd, options.getCpus(), options.getNumaNode());
+            RconClient rcon = options.getRcon().isEnabled() ? configureRcon(directory) : null;
+            serverTelemetry = telemetry.forServer(getName(), version);
+            serverTelemetry.onServerStarted();
+            this.version = version;
+            logger.info("Starting instance {}", getName());
+            try {
+                minecraftServer = MinecraftServer.start(consolePump, directory.toFile(), cmd, options.getServer(), serverTelemetry::onLine, port, rcon);
+            } catch(IOException e) {
+                return Completable.error(new RuntimeException(e.getMessage()));
+            }
+            recordStartup(minecraftServer, sharedArchive.isPresent());
+            return goLive(minecraftServer);
+        });
+    }
+
+    /**
+     * Points the proxy at the server once it has finished starting. If it is slow to log "Done"
+     * the proxy is switched over anyway so held players are not turned away.
+     */
+    private Completable goLive(MinecraftServer server) {
+        if(proxy == null)
+            return Completable.complete();
+        return server.awaitReady(options.getProxy().getStartTimeoutSeconds(), TimeUnit.SECONDS)
+                .doOnComplete(() -> logger.info("Instance {} is ready on port {}", getName(), server.getPort()))
+                .onErrorComplete(e -> {
+                    logger.warn("Instance {} not ready: {}", getName(), e.getMessage());
+                    return server.isAlive();
+                })
+                .doOnComplete(() -> proxy.setBackend(server.getAddress()));
+    }
+
+    private void recordStartup(MinecraftServer server, boolean withArchive) {
+        server.awaitReady(1, TimeUnit.HOURS)
+                .doOnComplete(() -> classDataSharing.recordStartup(getName(), withArchive, server.getStartupSeconds(), System.currentTimeMillis() - server.getStartedAt()))
+                .onErrorComplete()
+                .subscribe();
+    }
+
+    /**
+     * Turns on RCON in server.properties before every launch, so a new server gets it on first start
+     * and a free port can be picked each time. A generated password is kept in the file.
+     */
+    private RconClient configureRcon(Path directory) throws IOException {
+        RconClient.Options rconOptions = options.getRcon();
+        ServerProperties properties = ServerProperties.load(directory.resolve("server.properties"));
+        int rconPort = rconOptions.getPort() != 0 ? rconOptions.getPort() : findFreePort();
+        String password = rconOptions.getPassword() != null
+                ? rconOptions.getPassword()
+                : properties.get("rcon.password").filter(p -> !p.isEmpty()).orElseGet(RconClient::generatePassword);
+        properties.set("enable-rcon", "true");
+        properties.set("rcon.port", String.valueOf(rconPort));
+        properties.set("rcon.password", password);
+        properties.save();
+        return new RconClient(new InetSocketAddress("127.0.0.1", rconPort), password, rconOptions);
+    }
+
+    private int getHeapGb() {
+        try {
+            return Integer.parseInt(options.getMemoryAllocation().trim());
+        } catch(NumberFormatException e) {
+            throw new RuntimeException("memoryAllocation must be a whole number of GB: " + options.getMemoryAllocation());
+        }
+    }
+
+    /**
+     * Reads the count from "There are 3 of a max of 20 players online" or the older "There are 3/20 players online".
+     */
+    private static int parsePlayerCount(String list) {
+        int start = list.indexOf("There are ");
+        if(start == -1)
+            throw new RuntimeException("Unexpected list output: " + list);
+        start += "There are ".length();
+        int end = start;
+        while(end < list.length() && Character.isDigit(list.charAt(end)))
+            end++;
+        if(end == start)
+            throw new RuntimeException("Unexpected list output: " + list);
+        return Integer.parseInt(list.substring(start, end));
+    }
+
+    private static int findFreePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * An entry of "instances" in ez-config.json. Unset fields are taken from the top level of the config.
+     */
+    @Getter
+    @Setter
+    @ToString
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Options {
+        private String name;
+        private String path;
+        private String memoryAllocation;
+        private String cpus;
+        private Integer numaNode;
+        private TcpProxy.Options proxy;
+        private MinecraftServer.Options server;
+        private JvmLauncher.Options jvm;
+        private RconClient.Options rcon;
+    }
+}
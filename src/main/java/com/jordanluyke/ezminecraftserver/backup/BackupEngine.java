@@ -0,0 +1,334 @@
+package com.jordanluyke.ezminecraftserver.backup;
+
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.RateLimiter;
+import com.jordanluyke.ezminecraftserver.world.RegionFile;
+import io.netty.buffer.ByteBufUtil;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Incremental world backups. The server is told to stop saving and flush, then every changed file
+ * is read once: region files are split into chunks and each chunk is hashed, so only chunks that
+ * changed since any earlier backup take up new space. Files whose size and modification time match
+ * the previous snapshot are not read at all. Hashing and compression run on a fork-join pool and
+ * disk reads and writes share a rate limit, so a backup never starves the running server of I/O.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class BackupEngine {
+    private static final Logger logger = LogManager.getLogger(BackupEngine.class);
+    private static final DateTimeFormatter snapshotName = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final int hashBytes = 20;
+    private static final int chunkEntryBytes = 2 + 4 + hashBytes;
+
+    private final Path dir;
+    private final Options options;
+    private final RateLimiter rateLimiter;
+    private final ObjectStore store;
+    private final ForkJoinPool pool;
+
+    public BackupEngine(Path dir, Options options) {
+        this.dir = dir;
+        this.options = options;
+        this.rateLimiter = new RateLimiter(options.getMaxBytesPerSecond());
+        this.store = new ObjectStore(dir.resolve("objects"), rateLimiter);
+        this.pool = new ForkJoinPool(options.getParallelism() > 0 ? options.getParallelism() : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Backs up the instance's world, holding off server saves for the duration if it is running.
+     * Holds the instance's world so a RAM write-back or restart cannot overlap the snapshot.
+     */
+    public Completable backup(ServerInstance instance) {
+        return instance.exclusive(Completable.defer(() -> {
+            Path worldDir = instance.getLiveWorldDirectory();
+            Completable snapshot = Completable.fromAction(() -> snapshot(instance.getName(), worldDir, worldDir.getFileName().toString()))
+                    .subscribeOn(Schedulers.io());
+            Optional<MinecraftServer> server = instance.getServer().filter(MinecraftServer::isAlive);
+            if(!server.isPresent())
+                return snapshot;
+            Completable saveOn = Completable.defer(() -> server.get().command("save-on").ignoreElement());
+            // save-on is sent before the world is released, so it cannot land in the next holder's window
+            return server.get().command("save-off")
+                    .ignoreElement()
+                    .andThen(server.get().saveAll())
+                    .andThen(snapshot)
+                    .onErrorResumeNext(e -> saveOn.onErrorComplete().andThen(Completable.error(e)))
+                    .andThen(saveOn);
+        }));
+    }
+
+    /**
+     * Stores the world directory as a new snapshot and prunes snapshots beyond the retention count.
+     */
+    public Snapshot snapshot(String instance, Path worldDir, String world) {
+        if(!Files.isDirectory(worldDir))
+            throw new RuntimeException("World not found: " + worldDir);
+        long start = System.nanoTime();
+        long objectsBefore = store.getObjectsWritten();
+        long bytesBefore = store.getBytesWritten();
+        Map<String, Snapshot.FileEntry> previous = getLatest(instance)
+                .map(s -> s.getFiles().stream().collect(Collectors.toMap(Snapshot.FileEntry::getPath, Function.identity())))
+                .orElse(Collections.emptyMap());
+        AtomicLong filesRead = new AtomicLong();
+
+        List<Path> paths;
+        try(Stream<Path> walk = Files.walk(worldDir)) {
+            paths = walk.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().equals("session.lock"))
+                    .collect(Collectors.toList());
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        List<Snapshot.FileEntry> files;
+        try {
+            files = pool.submit(() -> paths.parallelStream()
+                    .map(path -> backupFile(worldDir, path, previous, filesRead))
+                    .sorted(Comparator.comparing(Snapshot.FileEntry::getPath))
+                    .collect(Collectors.toList()))
+                    .get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted");
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage());
+        }
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.setInstance(instance);
+        snapshot.setWorld(world);
+        snapshot.setCreatedAt(System.currentTimeMillis());
+        snapshot.setFiles(files);
+        writeSnapshot(snapshot);
+        logger.info("Backed up {} of {}: {} files, {} read, {} new objects, {} bytes written in {}ms",
+                world, instance, files.size(), filesRead.get(), store.getObjectsWritten() - objectsBefore, store.getBytesWritten() - bytesBefore, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        prune(instance);
+        return snapshot;
+    }
+
+    /**
+     * Writes the snapshot's files into an empty or missing directory.
+     */
+    public void restore(Snapshot snapshot, Path target) {
+        try {
+            if(Files.isDirectory(target)) {
+                try(Stream<Path> existing = Files.list(target)) {
+                    if(existing.findAny().isPresent())
+                        throw new RuntimeException("Restore target is not empty: " + target);
+                }
+            }
+            for(Snapshot.FileEntry file : snapshot.getFiles()) {
+                Path path = target.resolve(file.getPath()).normalize();
+                if(!path.startsWith(target))
+                    throw new RuntimeException("Snapshot path escapes target: " + file.getPath());
+                byte[] content = file.isRegion()
+                        ? RegionFile.write(readChunkList(file.getHash()))
+                        : store.get(file.getHash());
+                Files.createDirectories(path.getParent());
+                Files.write(path, content);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        logger.info("Restored {} files of {} to {}", snapshot.getFiles().size(), snapshot.getWorld(), target);
+    }
+
+    public List<Snapshot> getSnapshots(String instance) {
+        Path instanceDir = dir.resolve("snapshots").resolve(instance);
+        if(!Files.isDirectory(instanceDir))
+            return new ArrayList<>();
+        try(Stream<Path> paths = Files.list(instanceDir)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(".json"))
+                    .sorted()
+                    .map(BackupEngine::readSnapshot)
+                    .collect(Collectors.toList());
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public Optional<Snapshot> getLatest(String instance) {
+        List<Snapshot> snapshots = getSnapshots(instance);
+        return snapshots.isEmpty() ? Optional.empty() : Optional.of(snapshots.get(snapshots.size() - 1));
+    }
+
+    private Snapshot.FileEntry backupFile(Path worldDir, Path path, Map<String, Snapshot.FileEntry> previous, AtomicLong filesRead) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String relativePath = worldDir.relativize(path).toString().replace('\\', '/');
+            Snapshot.FileEntry unchanged = previous.get(relativePath);
+            if(unchanged != null && unchanged.getSize() == attributes.size() && unchanged.getModified() == attributes.lastModifiedTime().toMillis())
+                return unchanged;
+
+            rateLimiter.acquire(attributes.size());
+            byte[] content = Files.readAllBytes(path);
+            filesRead.incrementAndGet();
+            Snapshot.FileEntry entry = new Snapshot.FileEntry();
+            entry.setPath(relativePath);
+            entry.setSize(attributes.size());
+            entry.setModified(attributes.lastModifiedTime().toMillis());
+            if(relativePath.endsWith(".mca")) {
+                try {
+                    List<RegionFile.Chunk> chunks = RegionFile.read(content);
+                    entry.setHash(store.put(writeChunkList(chunks)));
+                    entry.setRegion(true);
+                    return entry;
+                } catch(RuntimeException e) {
+                    logger.warn("Storing {} whole: {}", relativePath, e.getMessage());
+                }
+            }
+            entry.setHash(store.put(content));
+            return entry;
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stores each chunk and returns the region's chunk list: index, timestamp and hash per chunk.
+     * Unchanged regions produce the same list, so they share one object across snapshots.
+     */
+    private byte[] writeChunkList(List<RegionFile.Chunk> chunks) {
+        List<String> hashes = chunks.parallelStream()
+                .map(chunk -> store.put(chunk.getPayload()))
+                .collect(Collectors.toList());
+        ByteBuffer buf = ByteBuffer.allocate(chunks.size() * chunkEntryBytes);
+        for(int i = 0; i < chunks.size(); i++) {
+            buf.putShort((short) chunks.get(i).getIndex());
+            buf.putInt(chunks.get(i).getTimestamp());
+            buf.put(ByteBufUtil.decodeHexDump(hashes.get(i)));
+        }
+        return buf.array();
+    }
+
+    private List<RegionFile.Chunk> readChunkList(String hash) {
+        List<RegionFile.Chunk> chunks = new ArrayList<>();
+        for(ChunkRef ref : readChunkRefs(hash))
+            chunks.add(new RegionFile.Chunk(ref.index, ref.timestamp, store.get(ref.hash)));
+        return chunks;
+    }
+
+    private List<ChunkRef> readChunkRefs(String hash) {
+        ByteBuffer buf = ByteBuffer.wrap(store.get(hash));
+        List<ChunkRef> refs = new ArrayList<>();
+        byte[] chunkHash = new byte[hashBytes];
+        while(buf.remaining() >= chunkEntryBytes) {
+            int index = buf.getShort();
+            int timestamp = buf.getInt();
+            buf.get(chunkHash);
+            refs.add(new ChunkRef(index, timestamp, ByteBufUtil.hexDump(chunkHash)));
+        }
+        return refs;
+    }
+
+    /**
+     * Keeps the newest snapshots of the instance, then deletes objects no snapshot of any instance uses.
+     */
+    private void prune(String instance) {
+        List<Snapshot> snapshots = getSnapshots(instance);
+        int excess = snapshots.size() - Math.max(1, options.getRetain());
+        if(excess <= 0)
+            return;
+        try {
+            for(Snapshot snapshot : snapshots.subList(0, excess))
+                Files.deleteIfExists(getSnapshotPath(snapshot));
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        Set<String> live = new HashSet<>();
+        Set<String> regionsSeen = new HashSet<>();
+        try(Stream<Path> instanceDirs = Files.list(dir.resolve("snapshots"))) {
+            for(Path instanceDir : instanceDirs.collect(Collectors.toList())) {
+                for(Snapshot snapshot : getSnapshots(instanceDir.getFileName().toString())) {
+                    for(Snapshot.FileEntry file : snapshot.getFiles()) {
+                        live.add(file.getHash());
+                        if(file.isRegion() && regionsSeen.add(file.getHash()))
+                            readChunkRefs(file.getHash()).forEach(ref -> live.add(ref.hash));
+                    }
+                }
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        long deleted = store.prune(live);
+        logger.info("Pruned {} snapshots of {} and {} unused objects", excess, instance, deleted);
+    }
+
+    private void writeSnapshot(Snapshot snapshot) {
+        Path path = getSnapshotPath(snapshot);
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(tempPath, NodeUtil.writeValueAsBytes(snapshot));
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private Path getSnapshotPath(Snapshot snapshot) {
+        return dir.resolve("snapshots")
+                .resolve(snapshot.getInstance())
+                .resolve(snapshotName.format(Instant.ofEpochMilli(snapshot.getCreatedAt())) + ".json");
+    }
+
+    private static Snapshot readSnapshot(Path path) {
+        try {
+            return NodeUtil.mapper.readValue(path.toFile(), Snapshot.class);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private static class ChunkRef {
+        final int index;
+        final int timestamp;
+        final String hash;
+
+        ChunkRef(int index, int timestamp, String hash) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.hash = hash;
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        private long intervalMinutes = 60;
+        private int retain = 48;
+        private long maxBytesPerSecond = 64L * 1024 * 1024;
+        /** 0 uses one thread per core */
+        private int parallelism = 0;
+    }
+}
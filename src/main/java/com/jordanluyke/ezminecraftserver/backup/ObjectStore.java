@@ -0,0 +1,166 @@
+package com.jordanluyke.ezminecraftserver.backup;
+
+import com.jordanluyke.ezminecraftserver.util.RateLimiter;
+import io.netty.buffer.ByteBufUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed store of backup objects, each kept once under the SHA-1 of its content in
+ * objects/ab/cdef.... Objects are deflated when that saves at least a tenth of their size; chunk
+ * data the server already compressed is usually stored as is.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ObjectStore {
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+    private static final double maxCompressedRatio = 0.9;
+
+    private final Path dir;
+    private final RateLimiter rateLimiter;
+    private final AtomicLong objectsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public ObjectStore(Path dir, RateLimiter rateLimiter) {
+        this.dir = dir;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Stores the data unless an object with the same content is already present.
+     *
+     * @return the hash the data is stored under
+     */
+    public String put(byte[] data) {
+        String hash = hash(data);
+        Path path = getPath(hash);
+        if(Files.exists(path))
+            return hash;
+        byte[] compressed = deflate(data);
+        boolean useCompressed = compressed.length < data.length * maxCompressedRatio;
+        byte[] body = useCompressed ? compressed : data;
+        Path tempPath = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            rateLimiter.acquire(body.length + 1);
+            try(OutputStream out = Files.newOutputStream(tempPath)) {
+                out.write(useCompressed ? DEFLATED : RAW);
+                out.write(body);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        objectsWritten.incrementAndGet();
+        bytesWritten.addAndGet(body.length + 1);
+        return hash;
+    }
+
+    public byte[] get(String hash) {
+        try {
+            byte[] stored = Files.readAllBytes(getPath(hash));
+            rateLimiter.acquire(stored.length);
+            byte[] body = Arrays.copyOfRange(stored, 1, stored.length);
+            byte[] data = stored[0] == DEFLATED ? inflate(body) : body;
+            if(!hash(data).equals(hash))
+                throw new RuntimeException("Object " + hash + " is corrupt");
+            return data;
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes every object not in the live set.
+     *
+     * @return the number of objects deleted
+     */
+    public long prune(Set<String> live) {
+        if(!Files.isDirectory(dir))
+            return 0;
+        try(Stream<Path> paths = Files.walk(dir, 2)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> !live.contains(path.getParent().getFileName().toString() + path.getFileName()))
+                    .filter(path -> {
+                        try {
+                            return Files.deleteIfExists(path);
+                        } catch(IOException e) {
+                            return false;
+                        }
+                    })
+                    .count();
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public long getObjectsWritten() {
+        return objectsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public static String hash(byte[] data) {
+        try {
+            return ByteBufUtil.hexDump(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private Path getPath(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while(!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[8192];
+            while(!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new RuntimeException("Truncated object");
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch(DataFormatException e) {
+            throw new RuntimeException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
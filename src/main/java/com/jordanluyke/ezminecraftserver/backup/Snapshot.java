@@ -0,0 +1,35 @@
+package com.jordanluyke.ezminecraftserver.backup;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The files of one world at one point in time. Region files point at a chunk list object, other
+ * files at an object with their content.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+@Setter
+@ToString
+public class Snapshot {
+    private String instance;
+    private String world;
+    private long createdAt;
+    private List<FileEntry> files = new ArrayList<>();
+
+    @Getter
+    @Setter
+    @ToString
+    public static class FileEntry {
+        private String path;
+        private long size;
+        private long modified;
+        private String hash;
+        private boolean region;
+    }
+}
@@ -0,0 +1,141 @@
+package com.jordanluyke.ezminecraftserver.console;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Drains server stdout/stderr on pooled reader threads that are reused across restarts. Lines are
+ * handed to listeners straight away, then queued in a bounded buffer that a single writer drains
+ * in batches to the async "minecraft" loggers, stdout lines to the supervisor's stdout and stderr
+ * lines to its stderr. When the buffer is full lines are dropped from the log output and counted,
+ * so a chatty server never blocks on its pipes.
+ * <p>
+ * Reading still blocks: each open stream occupies one pooled reader thread until it ends, so a
+ * running server holds two. Process pipes cannot be registered with a selector, so there is no
+ * event-loop read path for them; pooling only saves creating threads on every restart.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Singleton
+public class ConsolePump {
+    private static final Logger logger = LogManager.getLogger(ConsolePump.class);
+    private static final Logger outLogger = LogManager.getLogger("minecraft.out");
+    private static final Logger errLogger = LogManager.getLogger("minecraft.err");
+    private static final int bufferLines = 8192;
+    private static final int batchLines = 512;
+    private static final long dropReportInterval = TimeUnit.SECONDS.toNanos(10);
+
+    private final ExecutorService readers = new ThreadPoolExecutor(2, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new DefaultThreadFactory("console-reader", true));
+    private final BlockingQueue<Line> buffer = new ArrayBlockingQueue<>(bufferLines);
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong linesDropped = new AtomicLong();
+
+    public ConsolePump() {
+        Thread writer = new DefaultThreadFactory("console-writer", true).newThread(this::writeLoop);
+        writer.start();
+    }
+
+    /**
+     * Reads the stream line by line until it ends, calling the listener on the reader thread for each line.
+     */
+    public void pump(InputStream stream, boolean error, Consumer<String> listener, Runnable onEnd) {
+        readers.execute(() -> {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    linesRead.incrementAndGet();
+                    try {
+                        listener.accept(line);
+                    } catch(RuntimeException e) {
+                        logger.error("Console listener failed", e);
+                    }
+                    if(!buffer.offer(new Line(line, error)))
+                        linesDropped.incrementAndGet();
+                }
+            } catch(IOException e) {
+                logger.warn("Console stream closed: {}", e.getMessage());
+            } finally {
+                onEnd.run();
+            }
+        });
+    }
+
+    public long getLinesRead() {
+        return linesRead.get();
+    }
+
+    public long getLinesDropped() {
+        return linesDropped.get();
+    }
+
+    private void writeLoop() {
+        List<Line> batch = new ArrayList<>(batchLines);
+        StringBuilder sb = new StringBuilder();
+        long reportedDropped = 0;
+        long reportedAt = System.nanoTime() - dropReportInterval;
+        while(true) {
+            try {
+                batch.add(buffer.take());
+                buffer.drainTo(batch, batchLines - 1);
+                boolean error = batch.get(0).error;
+                for(Line line : batch) {
+                    if(line.error != error) {
+                        write(sb, error);
+                        error = line.error;
+                    }
+                    if(sb.length() > 0)
+                        sb.append('\n');
+                    sb.append(line.text);
+                }
+                write(sb, error);
+                batch.clear();
+
+                long dropped = linesDropped.get();
+                if(dropped > reportedDropped && System.nanoTime() - reportedAt >= dropReportInterval) {
+                    logger.warn("Console output overloaded, dropped {} lines ({} total)", dropped - reportedDropped, dropped);
+                    reportedDropped = dropped;
+                    reportedAt = System.nanoTime();
+                }
+            } catch(InterruptedException e) {
+                return;
+            } catch(RuntimeException e) {
+                batch.clear();
+                sb.setLength(0);
+                logger.error("Console writer failed", e);
+            }
+        }
+    }
+
+    private void write(StringBuilder sb, boolean error) {
+        if(sb.length() == 0)
+            return;
+        if(error)
+            errLogger.warn(sb.toString());
+        else
+            outLogger.info(sb.toString());
+        sb.setLength(0);
+    }
+
+    private static class Line {
+        final String text;
+        final boolean error;
+
+        Line(String text, boolean error) {
+            this.text = text;
+            this.error = error;
+        }
+    }
+}
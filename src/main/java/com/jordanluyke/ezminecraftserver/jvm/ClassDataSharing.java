@@ -0,0 +1,223 @@
+package com.jordanluyke.ezminecraftserver.jvm;
+
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.util.ServerProperties;
+import com.jordanluyke.ezminecraftserver.versions.JarStore;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Application class data sharing archives for the server jar. A training run starts the jar in a
+ * scratch directory until it is ready and stops it, and the JVM dumps every class it loaded into an
+ * archive on exit. Later launches map that archive instead of loading and verifying the classes again.
+ * Archives sit next to the jar as &lt;sha1&gt;.java&lt;version&gt;-&lt;build&gt;.jsa, since one is only
+ * valid for the jar and the exact Java build that made it.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ClassDataSharing {
+    private static final Logger logger = LogManager.getLogger(ClassDataSharing.class);
+    // dynamic archives via -XX:ArchiveClassesAtExit arrived in 13
+    private static final int minJavaVersion = 13;
+    private static final Pattern sha1Pattern = Pattern.compile("[0-9a-f]{40}");
+
+    private final Options options;
+    private final MinecraftServer.Options serverOptions;
+    private final ConsolePump consolePump;
+    private final Set<Path> training = ConcurrentHashMap.newKeySet();
+    private final Map<String, Startup> startupsWithoutArchive = new ConcurrentHashMap<>();
+
+    public ClassDataSharing(Options options, MinecraftServer.Options serverOptions, ConsolePump consolePump) {
+        this.options = options;
+        this.serverOptions = serverOptions;
+        this.consolePump = consolePump;
+    }
+
+    /**
+     * The archive to launch the jar with. It is only valid when the jar is launched by the same real
+     * path it was trained with, which is the one returned by {@link #resolveJar(Path)}.
+     */
+    public Optional<Path> find(Path jarPath, String javaPath) {
+        if(!options.isEnabled() || JavaRuntime.getMajorVersion(javaPath) < minJavaVersion)
+            return Optional.empty();
+        Path archive = getArchivePath(resolveJar(jarPath), javaPath);
+        return Files.exists(archive) ? Optional.of(archive) : Optional.empty();
+    }
+
+    /**
+     * The jar behind the live link, e.g. versions/&lt;sha1&gt;.jar.
+     */
+    public Path resolveJar(Path jarPath) {
+        try {
+            return jarPath.toRealPath();
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Makes the archive for the jar and Java if there is none yet. Completes straight away when the
+     * archive exists, is being made already or cannot be made with this Java.
+     *
+     * @param serverDirectory a server directory whose eula.txt decides whether the training run may start
+     */
+    public Completable train(Path jarPath, String javaPath, Path serverDirectory) {
+        return Completable.defer(() -> {
+            if(!options.isEnabled())
+                return Completable.complete();
+            int javaVersion = JavaRuntime.getMajorVersion(javaPath);
+            if(javaVersion < minJavaVersion) {
+                logger.info("Class data archives need Java {} or newer, {} is Java {}", minJavaVersion, javaPath, javaVersion);
+                return Completable.complete();
+            }
+            Path jar = resolveJar(jarPath);
+            Path archive = getArchivePath(jar, javaPath);
+            if(Files.exists(archive) || !training.add(archive))
+                return Completable.complete();
+            if(!isEulaAccepted(serverDirectory)) {
+                training.remove(archive);
+                logger.info("Not training a class data archive until the EULA in {} is accepted", serverDirectory);
+                return Completable.complete();
+            }
+            Path unfinished = archive.resolveSibling(archive.getFileName() + ".tmp");
+            Path trainingDir = Files.createTempDirectory(jar.getParent(), "cds-training");
+            return runTraining(jar, javaPath, trainingDir, unfinished)
+                    .andThen(Completable.fromAction(() -> {
+                        if(!Files.exists(unfinished))
+                            throw new RuntimeException("Training run exited without writing " + unfinished.getFileName());
+                        Files.move(unfinished, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        logger.info("Class data archive {} is {} KB", archive.getFileName(), Files.size(archive) / 1024);
+                    }))
+                    .doOnTerminate(() -> {
+                        training.remove(archive);
+                        Files.deleteIfExists(unfinished);
+                        deleteRecursively(trainingDir);
+                    });
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Logs how long a launch took to become ready, next to the last launch of the instance without an archive.
+     *
+     * @param doneSeconds the time the server reported in its "Done" line
+     * @param readyMillis the time from starting the process to that line
+     */
+    public void recordStartup(String instance, boolean withArchive, Optional<Double> doneSeconds, long readyMillis) {
+        if(!options.isEnabled())
+            return;
+        Startup startup = new Startup(doneSeconds.orElse(Double.NaN), readyMillis);
+        if(!withArchive) {
+            startupsWithoutArchive.put(instance, startup);
+            logger.info("Instance {} ready after {}ms without a class data archive (Done {}s)", instance, readyMillis, startup.doneSeconds);
+            return;
+        }
+        Startup without = startupsWithoutArchive.get(instance);
+        if(without == null) {
+            logger.info("Instance {} ready after {}ms with its class data archive (Done {}s)", instance, readyMillis, startup.doneSeconds);
+            return;
+        }
+        logger.info("Instance {} ready after {}ms with its class data archive, {}ms without (Done {}s, {}s without)", instance, readyMillis, without.readyMillis, startup.doneSeconds, without.doneSeconds);
+    }
+
+    private Completable runTraining(Path jar, String javaPath, Path trainingDir, Path unfinished) throws IOException {
+        Files.deleteIfExists(unfinished);
+        Files.write(trainingDir.resolve("eula.txt"), "eula=true\n".getBytes(StandardCharsets.UTF_8));
+        String port = String.valueOf(findFreePort());
+        ServerProperties properties = ServerProperties.load(trainingDir.resolve("server.properties"));
+        properties.set("server-port", port);
+        properties.set("online-mode", "false");
+        properties.set("enable-query", "false");
+        properties.set("enable-rcon", "false");
+        properties.save();
+        List<String> cmd = Arrays.asList(
+                javaPath,
+                "-Xms" + options.getTrainingMemoryMb() + "M",
+                "-Xmx" + options.getTrainingMemoryMb() + "M",
+                "-XX:ArchiveClassesAtExit=" + unfinished,
+                "-jar",
+                jar.toString(),
+                "nogui",
+                "--port",
+                port
+        );
+        logger.info("Training class data archive for {} on {}", jar.getFileName(), javaPath);
+        long trainingStart = System.nanoTime();
+        MinecraftServer server = MinecraftServer.start(consolePump, trainingDir.toFile(), cmd, serverOptions, line -> {}, -1, null);
+        return server.awaitReady(options.getTrainingTimeoutSeconds(), TimeUnit.SECONDS)
+                .doOnComplete(() -> logger.info("Training run ready after {}ms (Done {}s), stopping it to write the archive", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - trainingStart), server.getStartupSeconds().orElse(Double.NaN)))
+                .andThen(server.stop())
+                .onErrorResumeNext(e -> server.stop()
+                        .onErrorComplete()
+                        .andThen(Completable.error(new RuntimeException("Training run failed: " + e.getMessage()))));
+    }
+
+    private Path getArchivePath(Path jar, String javaPath) {
+        String name = jar.getFileName().toString();
+        String key = name.endsWith(".jar") && sha1Pattern.matcher(name.substring(0, name.length() - 4)).matches()
+                ? name.substring(0, name.length() - 4)
+                : JarStore.sha1(jar);
+        return jar.resolveSibling(key + ".java" + JavaRuntime.getMajorVersion(javaPath) + "-" + JavaRuntime.getBuildId(javaPath) + ".jsa");
+    }
+
+    private static boolean isEulaAccepted(Path serverDirectory) {
+        return ServerProperties.load(serverDirectory.resolve("eula.txt"))
+                .get("eula")
+                .map(value -> value.trim().equalsIgnoreCase("true"))
+                .orElse(false);
+    }
+
+    private static int findFreePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try(Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        } catch(IOException e) {
+            logger.warn("Unable to delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static class Startup {
+        final double doneSeconds;
+        final long readyMillis;
+
+        Startup(double doneSeconds, long readyMillis) {
+            this.doneSeconds = doneSeconds;
+            this.readyMillis = readyMillis;
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        /** heap of the training run, which only generates a fresh world and stops */
+        private int trainingMemoryMb = 2048;
+        private int trainingTimeoutSeconds = 600;
+    }
+}
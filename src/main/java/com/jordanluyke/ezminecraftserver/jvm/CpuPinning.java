@@ -0,0 +1,90 @@
+package com.jordanluyke.ezminecraftserver.jvm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Restricts a launched server to a CPU set, and optionally a NUMA node, by prefixing its command
+ * with taskset or numactl. The affinity is inherited by every thread the JVM creates, and the JVM
+ * sizes its own thread pools from it.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class CpuPinning {
+    private static final Logger logger = LogManager.getLogger(CpuPinning.class);
+
+    /**
+     * @param cpus a cpu list such as "0-3,8", or null for no cpu pinning
+     * @param numaNode a NUMA node to bind cpus and memory to, or null
+     */
+    public static List<String> wrap(List<String> cmd, String cpus, Integer numaNode) {
+        if(cpus == null && numaNode == null)
+            return cmd;
+        List<String> wrapped = new ArrayList<>();
+        if(numaNode != null) {
+            if(!isOnPath("numactl")) {
+                logger.warn("numactl not found, running unpinned");
+                return cmd;
+            }
+            wrapped.add("numactl");
+            wrapped.add(cpus != null ? "--physcpubind=" + cpus : "--cpunodebind=" + numaNode);
+            wrapped.add("--membind=" + numaNode);
+        } else {
+            if(!isOnPath("taskset")) {
+                logger.warn("taskset not found, running unpinned");
+                return cmd;
+            }
+            wrapped.addAll(Arrays.asList("taskset", "-c", cpus));
+        }
+        logger.info("Pinning with: {}", String.join(" ", wrapped));
+        wrapped.addAll(cmd);
+        return wrapped;
+    }
+
+    /**
+     * @return the number of cpus in a cpu list such as "0-3,8"
+     */
+    public static int countCpus(String cpus) {
+        BitSet set = new BitSet();
+        for(String part : cpus.split(",")) {
+            String range = part.trim();
+            if(range.isEmpty())
+                continue;
+            try {
+                int dash = range.indexOf('-');
+                if(dash == -1) {
+                    set.set(Integer.parseInt(range));
+                } else {
+                    int from = Integer.parseInt(range.substring(0, dash).trim());
+                    int to = Integer.parseInt(range.substring(dash + 1).trim());
+                    if(to < from)
+                        throw new NumberFormatException();
+                    set.set(from, to + 1);
+                }
+            } catch(NumberFormatException e) {
+                throw new RuntimeException("Invalid cpu list: " + cpus);
+            }
+        }
+        if(set.isEmpty())
+            throw new RuntimeException("Invalid cpu list: " + cpus);
+        return set.cardinality();
+    }
+
+    private static boolean isOnPath(String executable) {
+        String path = System.getenv("PATH");
+        if(path == null)
+            return false;
+        return Arrays.stream(path.split(File.pathSeparator))
+                .map(dir -> Paths.get(dir, executable))
+                .anyMatch(Files::isExecutable);
+    }
+}
@@ -0,0 +1,98 @@
+package com.jordanluyke.ezminecraftserver.jvm;
+
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The cores, memory and transparent huge page mode of the box the server is launched on.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+@ToString
+public class HostInfo {
+    private static final Logger logger = LogManager.getLogger(HostInfo.class);
+    private static final Path transparentHugePagesPath = Paths.get("/sys/kernel/mm/transparent_hugepage/enabled");
+    private static final Pattern selectedModePattern = Pattern.compile("\\[(\\w+)]");
+    private static final Path memInfoPath = Paths.get("/proc/meminfo");
+    private static final Pattern memAvailablePattern = Pattern.compile("MemAvailable:\\s+(\\d+) kB");
+
+    private final int cores;
+    private final long totalMemoryBytes;
+    private final Optional<String> transparentHugePages;
+    private final boolean pinned;
+
+    public HostInfo(int cores, long totalMemoryBytes, Optional<String> transparentHugePages, boolean pinned) {
+        this.cores = cores;
+        this.totalMemoryBytes = totalMemoryBytes;
+        this.transparentHugePages = transparentHugePages;
+        this.pinned = pinned;
+    }
+
+    public static HostInfo detect() {
+        return new HostInfo(Runtime.getRuntime().availableProcessors(), detectTotalMemory(), detectTransparentHugePages(), false);
+    }
+
+    /**
+     * The host as seen by a server pinned to the given number of cores.
+     */
+    public HostInfo pinnedTo(int cores) {
+        return new HostInfo(cores, totalMemoryBytes, transparentHugePages, true);
+    }
+
+    /**
+     * True when the kernel will back madvised memory with huge pages, which is what -XX:+UseTransparentHugePages asks for.
+     */
+    public boolean supportsTransparentHugePages() {
+        return transparentHugePages.map(mode -> mode.equals("always") || mode.equals("madvise"))
+                .orElse(false);
+    }
+
+    /**
+     * Memory that can be handed out without swapping, as the kernel estimates it: free memory plus
+     * reclaimable page cache. Memory held by tmpfs files is not included.
+     */
+    public static Optional<Long> detectAvailableMemory() {
+        if(!Files.isReadable(memInfoPath))
+            return Optional.empty();
+        try {
+            Matcher matcher = memAvailablePattern.matcher(new String(Files.readAllBytes(memInfoPath), StandardCharsets.UTF_8));
+            return matcher.find() ? Optional.of(Long.parseLong(matcher.group(1)) * 1024) : Optional.empty();
+        } catch(IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static long detectTotalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        logger.warn("Unable to read total memory");
+        return 0;
+    }
+
+    private static Optional<String> detectTransparentHugePages() {
+        if(!Files.isReadable(transparentHugePagesPath))
+            return Optional.empty();
+        try {
+            // e.g. "always [madvise] never"
+            Matcher matcher = selectedModePattern.matcher(new String(Files.readAllBytes(transparentHugePagesPath), StandardCharsets.UTF_8));
+            return matcher.find() ? Optional.of(matcher.group(1)) : Optional.empty();
+        } catch(IOException e) {
+            return Optional.empty();
+        }
+    }
+}
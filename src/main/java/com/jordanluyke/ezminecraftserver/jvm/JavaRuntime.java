@@ -0,0 +1,93 @@
+package com.jordanluyke.ezminecraftserver.jvm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which Java the server will be launched with, since flag syntax and available collectors differ by version.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class JavaRuntime {
+    private static final Logger logger = LogManager.getLogger(JavaRuntime.class);
+    private static final Pattern versionPattern = Pattern.compile("version \"(\\d+)(?:\\.(\\d+))?");
+    private static final int fallbackMajorVersion = 8;
+    private static final Map<String, Integer> majorVersions = new ConcurrentHashMap<>();
+    private static final Map<String, String> versionOutputs = new ConcurrentHashMap<>();
+
+    /**
+     * @return the feature version, e.g. 8 for 1.8.0_292 and 17 for 17.0.1
+     */
+    public static int getMajorVersion(String javaPath) {
+        return majorVersions.computeIfAbsent(javaPath, JavaRuntime::detectMajorVersion);
+    }
+
+    /**
+     * Identifies the exact build behind the path, e.g. to tell class data archives of two 17.0.x updates apart.
+     *
+     * @return a short hash of the "java -version" output
+     */
+    public static String getBuildId(String javaPath) {
+        CRC32 crc = new CRC32();
+        crc.update(getVersionOutput(javaPath).getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static int detectMajorVersion(String javaPath) {
+        String output = getVersionOutput(javaPath);
+        if(output.isEmpty())
+            return fallbackMajorVersion;
+        Matcher matcher = versionPattern.matcher(output);
+        if(matcher.find()) {
+            int major = Integer.parseInt(matcher.group(1));
+            // 1.8 and earlier put the feature version second
+            if(major == 1 && matcher.group(2) != null)
+                major = Integer.parseInt(matcher.group(2));
+            return major;
+        }
+        logger.warn("Unable to parse version of {}, assuming Java {}", javaPath, fallbackMajorVersion);
+        return fallbackMajorVersion;
+    }
+
+    private static String getVersionOutput(String javaPath) {
+        return versionOutputs.computeIfAbsent(javaPath, JavaRuntime::runVersion);
+    }
+
+    private static String runVersion(String javaPath) {
+        try {
+            Process proc = new ProcessBuilder(Arrays.asList(javaPath, "-version"))
+                    .redirectErrorStream(true)
+                    .start();
+            String output = read(proc.getInputStream());
+            if(!proc.waitFor(10, TimeUnit.SECONDS))
+                proc.destroyForcibly();
+            return output;
+        } catch(IOException e) {
+            logger.warn("Unable to run {}: {}, assuming Java {}", javaPath, e.getMessage(), fallbackMajorVersion);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "";
+    }
+
+    private static String read(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = stream.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
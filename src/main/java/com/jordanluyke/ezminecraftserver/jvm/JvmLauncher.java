@@ -0,0 +1,196 @@
+package com.jordanluyke.ezminecraftserver.jvm;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Builds the server command line from the selected profile, the host and the heap size. The command
+ * is built as a list of arguments so paths containing spaces survive intact.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class JvmLauncher {
+    private static final Logger logger = LogManager.getLogger(JvmLauncher.class);
+    private static final long gb = 1024L * 1024 * 1024;
+    private static final String gcLogPath = "logs/gc.log";
+
+    private final Options options;
+    private final HostInfo host;
+
+    public JvmLauncher(Options options, HostInfo host) {
+        this.options = options;
+        this.host = host;
+    }
+
+    /**
+     * @param directory the server directory, which the process is started in
+     * @param heapGb the heap size in GB, used for both -Xms and -Xmx
+     * @param serverArgs arguments passed to the server after "nogui"
+     */
+    public List<String> buildCommand(Path directory, Path jarPath, int heapGb, List<String> serverArgs) {
+        return buildCommand(directory, jarPath, heapGb, serverArgs, Optional.empty());
+    }
+
+    /**
+     * @param sharedArchive a class data archive made from this jar by this Java, see {@link ClassDataSharing}
+     */
+    public List<String> buildCommand(Path directory, Path jarPath, int heapGb, List<String> serverArgs, Optional<Path> sharedArchive) {
+        int javaVersion = JavaRuntime.getMajorVersion(options.getJavaPath());
+        JvmProfile profile = resolveProfile(heapGb, javaVersion);
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add(options.getJavaPath());
+        cmd.add("-server");
+        cmd.add("-Xms" + heapGb + "G");
+        cmd.add("-Xmx" + heapGb + "G");
+        if(profile == JvmProfile.G1)
+            cmd.addAll(g1Flags(heapGb));
+        else if(profile == JvmProfile.ZGC)
+            cmd.addAll(zgcFlags(javaVersion));
+        if(profile != JvmProfile.VANILLA) {
+            cmd.addAll(gcThreadFlags(profile));
+            if(shouldPreTouch(heapGb))
+                cmd.add("-XX:+AlwaysPreTouch");
+            if(options.isTransparentHugePages() && host.supportsTransparentHugePages())
+                cmd.add("-XX:+UseTransparentHugePages");
+        }
+        if(options.isGcLogging())
+            cmd.addAll(gcLogFlags(directory, javaVersion));
+        sharedArchive.ifPresent(archive -> cmd.add("-XX:SharedArchiveFile=" + archive));
+        cmd.addAll(options.getExtraFlags());
+        cmd.add("-jar");
+        cmd.add(jarPath.toString());
+        cmd.add("nogui");
+        cmd.addAll(serverArgs);
+
+        logger.info("Launching with {} profile on Java {} ({} cores, {}GB RAM, THP {}, {})", profile.getName(), javaVersion, host.getCores(), host.getTotalMemoryBytes() / gb, host.getTransparentHugePages().orElse("unavailable"), sharedArchive.isPresent() ? "class data archive" : "no class data archive");
+        logger.debug("Command: {}", cmd);
+        return cmd;
+    }
+
+    private JvmProfile resolveProfile(int heapGb, int javaVersion) {
+        JvmProfile profile = options.getProfile();
+        if(profile == JvmProfile.ZGC && !supportsZgc(javaVersion)) {
+            logger.warn("ZGC needs Java 11 or newer, falling back to G1");
+            return JvmProfile.G1;
+        }
+        if(profile != JvmProfile.AUTO)
+            return profile;
+        // ZGC is production ready from 15; below that G1 is the safer choice at any heap size
+        return javaVersion >= 15 && heapGb >= options.getZgcMinHeapGb() ? JvmProfile.ZGC : JvmProfile.G1;
+    }
+
+    /**
+     * Aikar's flags: a young generation sized for bursts of chunk and entity garbage, and mixed
+     * collections that start early so old regions never pile up into a full GC.
+     */
+    private static List<String> g1Flags(int heapGb) {
+        boolean large = heapGb >= 12;
+        return Arrays.asList(
+                "-XX:+UseG1GC",
+                "-XX:+ParallelRefProcEnabled",
+                "-XX:MaxGCPauseMillis=200",
+                "-XX:+UnlockExperimentalVMOptions",
+                "-XX:+DisableExplicitGC",
+                "-XX:G1NewSizePercent=" + (large ? 40 : 30),
+                "-XX:G1MaxNewSizePercent=" + (large ? 50 : 40),
+                "-XX:G1HeapRegionSize=" + (large ? "16M" : "8M"),
+                "-XX:G1ReservePercent=" + (large ? 15 : 20),
+                "-XX:G1HeapWastePercent=5",
+                "-XX:G1MixedGCCountTarget=4",
+                "-XX:InitiatingHeapOccupancyPercent=" + (large ? 20 : 15),
+                "-XX:G1MixedGCLiveThresholdPercent=90",
+                "-XX:G1RSetUpdatingPauseTimePercent=5",
+                "-XX:SurvivorRatio=32",
+                "-XX:+PerfDisableSharedMem",
+                "-XX:MaxTenuringThreshold=1"
+        );
+    }
+
+    private static List<String> zgcFlags(int javaVersion) {
+        List<String> flags = new ArrayList<>();
+        if(javaVersion < 15)
+            flags.add("-XX:+UnlockExperimentalVMOptions");
+        flags.add("-XX:+UseZGC");
+        flags.add("-XX:+DisableExplicitGC");
+        flags.add("-XX:+PerfDisableSharedMem");
+        return flags;
+    }
+
+    /**
+     * Uses HotSpot's own sizing rule (all cores up to 8, then 5/8 of the rest) but over the cores
+     * the server may use, which is less than the JVM would see on a shared box. Pinned servers own
+     * their cores, so nothing is reserved from them.
+     */
+    private List<String> gcThreadFlags(JvmProfile profile) {
+        int cores = host.isPinned() ? host.getCores() : Math.max(1, host.getCores() - options.getReservedCores());
+        int parallel = cores <= 8 ? cores : 8 + (cores - 8) * 5 / 8;
+        int concurrent = profile == JvmProfile.ZGC ? Math.max(1, parallel / 2) : Math.max(1, (parallel + 2) / 4);
+        return Arrays.asList("-XX:ParallelGCThreads=" + parallel, "-XX:ConcGCThreads=" + concurrent);
+    }
+
+    /**
+     * Pre-touching commits the whole heap at startup, which turns later page faults into a slower
+     * start. It is skipped when the heap leaves too little memory for the OS, since it would push the box into swap.
+     */
+    private boolean shouldPreTouch(int heapGb) {
+        if(!options.isAlwaysPreTouch())
+            return false;
+        if(host.getTotalMemoryBytes() > 0 && heapGb * gb > host.getTotalMemoryBytes() * options.getPreTouchMaxMemoryPercent() / 100) {
+            logger.warn("Heap of {}GB is close to total memory, not pre-touching", heapGb);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The log path is relative to the server directory the process is started in.
+     */
+    private static List<String> gcLogFlags(Path directory, int javaVersion) {
+        try {
+            Files.createDirectories(directory.resolve(gcLogPath).getParent());
+        } catch(IOException e) {
+            logger.warn("Unable to create gc log directory: {}", e.getMessage());
+        }
+        if(javaVersion >= 9)
+            return Arrays.asList("-Xlog:gc*:file=" + gcLogPath + ":time,uptime:filecount=5,filesize=10M");
+        return Arrays.asList(
+                "-Xloggc:" + gcLogPath,
+                "-XX:+PrintGCDetails",
+                "-XX:+PrintGCDateStamps",
+                "-XX:+UseGCLogFileRotation",
+                "-XX:NumberOfGCLogFiles=5",
+                "-XX:GCLogFileSize=10M"
+        );
+    }
+
+    private static boolean supportsZgc(int javaVersion) {
+        return javaVersion >= 11;
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private JvmProfile profile = JvmProfile.AUTO;
+        private String javaPath = "java";
+        private int zgcMinHeapGb = 16;
+        private int reservedCores = 1;
+        private boolean alwaysPreTouch = true;
+        private int preTouchMaxMemoryPercent = 85;
+        private boolean transparentHugePages = true;
+        private boolean gcLogging = true;
+        private List<String> extraFlags = new ArrayList<>();
+    }
+}
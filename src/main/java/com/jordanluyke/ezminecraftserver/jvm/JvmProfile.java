@@ -0,0 +1,35 @@
+package com.jordanluyke.ezminecraftserver.jvm;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.Arrays;
+
+/**
+ * Named sets of JVM flags selectable with "jvm.profile" in ez-config.json.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public enum JvmProfile {
+    /** G1 or ZGC, picked from the heap size and Java version */
+    AUTO,
+    /** heap size only, the behaviour before launch profiles existed */
+    VANILLA,
+    /** G1 with a large young generation and early mixed collections, suited to Minecraft's short-lived allocations */
+    G1,
+    /** ZGC, for large heaps where G1 pauses grow with the heap */
+    ZGC;
+
+    @JsonValue
+    public String getName() {
+        return name().toLowerCase();
+    }
+
+    @JsonCreator
+    public static JvmProfile fromName(String name) {
+        return Arrays.stream(values())
+                .filter(profile -> profile.name().equalsIgnoreCase(name))
+                .findFirst()
+                .orElseThrow(() -> new RuntimeException("Unknown jvm profile: " + name));
+    }
+}
@@ -0,0 +1,200 @@
+package com.jordanluyke.ezminecraftserver.loadtest;
+
+import com.jordanluyke.ezminecraftserver.util.ProtocolUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * One offline-mode client: it logs in, confirms the spawn teleport, answers keep-alives, walks
+ * around and chats now and then. Everything runs on the channel's event loop.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+class Bot extends SimpleChannelInboundHandler<ByteBuf> {
+    private static final int loginState = 2;
+    private static final int loginDisconnect = 0x00;
+    private static final int encryptionRequest = 0x01;
+    private static final int loginSuccess = 0x02;
+    private static final int setCompression = 0x03;
+
+    private final String name;
+    private final InetSocketAddress address;
+    private final BotProtocol protocol;
+    private final LoadTest.Options options;
+    private final LoadTestStats stats;
+    private boolean playing;
+    private boolean joined;
+    private boolean spawned;
+    private boolean kicked;
+    private long connectedNanos;
+    private double x;
+    private double y;
+    private double z;
+    private double heading;
+    private int chatsSent;
+    private ScheduledFuture<?> moveTask;
+    private ScheduledFuture<?> chatTask;
+
+    Bot(String name, InetSocketAddress address, BotProtocol protocol, LoadTest.Options options, LoadTestStats stats) {
+        this.name = name;
+        this.address = address;
+        this.protocol = protocol;
+        this.options = options;
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        connectedNanos = System.nanoTime();
+        send(ctx, 0x00, buf -> {
+            ProtocolUtil.writeVarInt(buf, protocol.getProtocol());
+            ProtocolUtil.writeString(buf, address.getHostString());
+            buf.writeShort(address.getPort());
+            ProtocolUtil.writeVarInt(buf, loginState);
+        });
+        send(ctx, 0x00, buf -> ProtocolUtil.writeString(buf, name));
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf packet) {
+        int packetId = ProtocolUtil.readVarInt(packet);
+        if(playing)
+            onPlayPacket(ctx, packetId, packet);
+        else
+            onLoginPacket(ctx, packetId, packet);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if(moveTask != null)
+            moveTask.cancel(false);
+        if(chatTask != null)
+            chatTask.cancel(false);
+        if(kicked || stats.isFinished())
+            return;
+        if(joined)
+            stats.onDisconnected("connection closed");
+        else
+            stats.onFailure("connection closed during login");
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if(!stats.isFinished())
+            kick(ctx, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+    }
+
+    private void onLoginPacket(ChannelHandlerContext ctx, int packetId, ByteBuf packet) {
+        switch(packetId) {
+            case setCompression:
+                int threshold = ProtocolUtil.readVarInt(packet);
+                if(threshold >= 0)
+                    ctx.pipeline().addBefore(ctx.name(), "compression", new CompressionCodec(threshold));
+                break;
+            case loginSuccess:
+                playing = true;
+                stats.onLoggedIn();
+                break;
+            case loginDisconnect:
+                kick(ctx, "kicked during login: " + ProtocolUtil.readString(packet));
+                break;
+            case encryptionRequest:
+                kick(ctx, "server is in online mode");
+                break;
+            default:
+                kick(ctx, "unexpected login packet " + packetId);
+        }
+    }
+
+    private void onPlayPacket(ChannelHandlerContext ctx, int packetId, ByteBuf packet) {
+        if(packetId == protocol.getKeepAlive()) {
+            long id = packet.readLong();
+            send(ctx, protocol.getKeepAliveResponse(), buf -> buf.writeLong(id));
+            stats.onKeepAlive();
+        } else if(packetId == protocol.getJoinGame()) {
+            if(!joined) {
+                joined = true;
+                stats.onJoined((System.nanoTime() - connectedNanos) / 1e6);
+            }
+        } else if(packetId == protocol.getPositionAndLook()) {
+            onPositionAndLook(ctx, packet);
+        } else if(packetId == protocol.getDisconnect()) {
+            kick(ctx, ProtocolUtil.readString(packet));
+        }
+    }
+
+    /**
+     * The server places the player, at spawn and whenever it corrects a move. Flags mark the
+     * coordinates that are relative to the current position.
+     */
+    private void onPositionAndLook(ChannelHandlerContext ctx, ByteBuf packet) {
+        double newX = packet.readDouble();
+        double newY = packet.readDouble();
+        double newZ = packet.readDouble();
+        packet.skipBytes(8);
+        int flags = packet.readByte();
+        int teleportId = ProtocolUtil.readVarInt(packet);
+        x = (flags & 0x01) != 0 ? x + newX : newX;
+        y = (flags & 0x02) != 0 ? y + newY : newY;
+        z = (flags & 0x04) != 0 ? z + newZ : newZ;
+        send(ctx, protocol.getTeleportConfirm(), buf -> ProtocolUtil.writeVarInt(buf, teleportId));
+        if(!spawned) {
+            spawned = true;
+            startActivity(ctx);
+        }
+    }
+
+    /**
+     * Walks in a slowly turning line, one position per tick, and chats with a random offset so the
+     * bots do not all talk at once.
+     */
+    private void startActivity(ChannelHandlerContext ctx) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        heading = random.nextDouble(2 * Math.PI);
+        double step = options.getSpeedBlocksPerSecond() * options.getMoveIntervalMillis() / 1000.0;
+        moveTask = ctx.executor().scheduleAtFixedRate(() -> {
+            heading += ThreadLocalRandom.current().nextDouble(-0.1, 0.1);
+            x += Math.cos(heading) * step;
+            z += Math.sin(heading) * step;
+            send(ctx, protocol.getPosition(), buf -> {
+                buf.writeDouble(x);
+                buf.writeDouble(y);
+                buf.writeDouble(z);
+                buf.writeBoolean(true);
+            });
+            stats.onMove();
+        }, options.getMoveIntervalMillis(), options.getMoveIntervalMillis(), TimeUnit.MILLISECONDS);
+        if(options.getChatIntervalSeconds() > 0) {
+            long intervalMillis = TimeUnit.SECONDS.toMillis(options.getChatIntervalSeconds());
+            chatTask = ctx.executor().scheduleAtFixedRate(() -> {
+                send(ctx, protocol.getChatMessage(), buf -> ProtocolUtil.writeString(buf, "load test " + name + " #" + ++chatsSent));
+                stats.onChat();
+            }, random.nextLong(intervalMillis), intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void kick(ChannelHandlerContext ctx, String reason) {
+        if(kicked)
+            return;
+        kicked = true;
+        if(joined)
+            stats.onDisconnected(reason);
+        else
+            stats.onFailure(reason);
+        ctx.close();
+    }
+
+    private static void send(ChannelHandlerContext ctx, int packetId, Consumer<ByteBuf> body) {
+        ByteBuf buf = ctx.alloc().buffer();
+        ProtocolUtil.writeVarInt(buf, packetId);
+        body.accept(buf);
+        ctx.writeAndFlush(buf);
+    }
+}
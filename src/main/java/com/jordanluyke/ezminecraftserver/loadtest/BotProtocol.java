@@ -0,0 +1,64 @@
+package com.jordanluyke.ezminecraftserver.loadtest;
+
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * Packet ids a bot needs in the play state, which move around between releases. Login is the same
+ * for every version listed here: no configuration state and a Login Start that only carries the name.
+ * Newer releases, including the latest one the supervisor updates to, are not listed; 1.19 added signed
+ * chat and 1.20.2 the configuration state, which the bot does not speak.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+public class BotProtocol {
+    private static final Map<Integer, BotProtocol> versions = new TreeMap<>();
+
+    static {
+        register(new BotProtocol(578, "1.15.2", 0x21, 0x26, 0x36, 0x1B, 0x00, 0x03, 0x0F, 0x11));
+        register(new BotProtocol(754, "1.16.5", 0x1F, 0x24, 0x34, 0x19, 0x00, 0x03, 0x10, 0x12));
+    }
+
+    private final int protocol;
+    private final String name;
+    private final int keepAlive;
+    private final int joinGame;
+    private final int positionAndLook;
+    private final int disconnect;
+    private final int teleportConfirm;
+    private final int chatMessage;
+    private final int keepAliveResponse;
+    private final int position;
+
+    private BotProtocol(int protocol, String name, int keepAlive, int joinGame, int positionAndLook, int disconnect, int teleportConfirm, int chatMessage, int keepAliveResponse, int position) {
+        this.protocol = protocol;
+        this.name = name;
+        this.keepAlive = keepAlive;
+        this.joinGame = joinGame;
+        this.positionAndLook = positionAndLook;
+        this.disconnect = disconnect;
+        this.teleportConfirm = teleportConfirm;
+        this.chatMessage = chatMessage;
+        this.keepAliveResponse = keepAliveResponse;
+        this.position = position;
+    }
+
+    public static Optional<BotProtocol> forProtocol(int protocol) {
+        return Optional.ofNullable(versions.get(protocol));
+    }
+
+    /**
+     * e.g. "578 (1.15.2), 754 (1.16.5)"
+     */
+    public static String describeSupported() {
+        StringJoiner joiner = new StringJoiner(", ");
+        versions.values().forEach(version -> joiner.add(version.protocol + " (" + version.name + ")"));
+        return joiner.toString();
+    }
+
+    private static void register(BotProtocol version) {
+        versions.put(version.protocol, version);
+    }
+}
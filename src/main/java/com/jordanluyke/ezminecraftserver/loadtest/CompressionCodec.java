@@ -0,0 +1,80 @@
+package com.jordanluyke.ezminecraftserver.loadtest;
+
+import com.jordanluyke.ezminecraftserver.util.ProtocolUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageCodec;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packet compression, switched on by the server's Set Compression packet. Each frame starts with
+ * the uncompressed length, or 0 when the packet was below the threshold and sent as is.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+class CompressionCodec extends MessageToMessageCodec<ByteBuf, ByteBuf> {
+    private static final int maxPacketBytes = 1 << 21;
+
+    private final int threshold;
+    private final Inflater inflater = new Inflater();
+    private final Deflater deflater = new Deflater();
+
+    CompressionCodec(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf packet, List<Object> out) {
+        int length = packet.readableBytes();
+        ByteBuf frame = ctx.alloc().buffer(length + 5);
+        if(length < threshold) {
+            ProtocolUtil.writeVarInt(frame, 0);
+            frame.writeBytes(packet);
+            out.add(frame);
+            return;
+        }
+        byte[] input = new byte[length];
+        packet.readBytes(input);
+        ProtocolUtil.writeVarInt(frame, length);
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] chunk = new byte[8192];
+        while(!deflater.finished()) {
+            int written = deflater.deflate(chunk);
+            frame.writeBytes(chunk, 0, written);
+        }
+        deflater.reset();
+        out.add(frame);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) throws DataFormatException {
+        int length = ProtocolUtil.readVarInt(frame);
+        if(length == 0) {
+            out.add(frame.retain());
+            return;
+        }
+        if(length < 0 || length > maxPacketBytes)
+            throw new CorruptedFrameException("Bad uncompressed length " + length);
+        byte[] input = new byte[frame.readableBytes()];
+        frame.readBytes(input);
+        byte[] output = new byte[length];
+        inflater.setInput(input);
+        int inflated = inflater.inflate(output);
+        inflater.reset();
+        if(inflated != length)
+            throw new CorruptedFrameException("Inflated " + inflated + " bytes, expected " + length);
+        out.add(ctx.alloc().buffer(length).writeBytes(output));
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        inflater.end();
+        deflater.end();
+    }
+}
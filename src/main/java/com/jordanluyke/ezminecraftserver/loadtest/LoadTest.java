@@ -0,0 +1,341 @@
+package com.jordanluyke.ezminecraftserver.loadtest;
+
+import com.google.inject.Inject;
+import com.jordanluyke.ezminecraftserver.Config;
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.jvm.ClassDataSharing;
+import com.jordanluyke.ezminecraftserver.metrics.SupervisorStats;
+import com.jordanluyke.ezminecraftserver.proxy.TcpProxy;
+import com.jordanluyke.ezminecraftserver.rcon.RconClient;
+import com.jordanluyke.ezminecraftserver.telemetry.ServerTelemetry;
+import com.jordanluyke.ezminecraftserver.telemetry.Telemetry;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.RangedDownloader;
+import com.jordanluyke.ezminecraftserver.util.ServerProperties;
+import com.jordanluyke.ezminecraftserver.versions.JarStore;
+import com.jordanluyke.ezminecraftserver.watchdog.ServerListPing;
+import com.jordanluyke.ezminecraftserver.world.RamWorld;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
+import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Launches a server in its own directory, connects offline-mode bots that walk around and chat, and
+ * writes a JSON report of join rate, ping latency and the TPS the server measured. The server runs
+ * with the memory, CPUs and JVM settings of a configured instance, so reports from different versions
+ * and launch settings can be compared.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class LoadTest {
+    private static final Logger logger = LogManager.getLogger(LoadTest.class);
+    private static final String instanceName = "loadtest";
+    private static final String worldName = "world";
+    private static final int pingTimeoutMillis = 5000;
+    // "Stopped debug profiling after 120.00 seconds and 2398 ticks (19.98 ticks per second)"
+    private static final Pattern tpsPattern = Pattern.compile("\\(([\\d.,]+) ticks per second\\)");
+    private static final DateTimeFormatter reportTimeFormat = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private Config config;
+    private ConsolePump consolePump;
+    private Telemetry telemetry;
+    private SupervisorStats stats;
+
+    @Inject
+    public LoadTest(Config config, ConsolePump consolePump, Telemetry telemetry, SupervisorStats stats) {
+        this.config = config;
+        this.consolePump = consolePump;
+        this.telemetry = telemetry;
+        this.stats = stats;
+    }
+
+    public Completable run() {
+        return config.load()
+                .andThen(Completable.defer(() -> {
+                    Options options = config.getLoadTest();
+                    ServerInstance.Options base = findInstance(options.getInstance());
+                    String version = options.getVersion() != null ? options.getVersion() : config.getVersion();
+                    Path jarPath = findJar(options.getVersion());
+                    ServerInstance.Options launch = getLaunchOptions(base, prepareDirectory(base, options));
+                    ServerInstance instance = new ServerInstance(launch, jarPath, consolePump, telemetry, stats,
+                            new ClassDataSharing(config.getClassDataSharing(), config.getServer(), consolePump),
+                            new RamWorld(config.getRamWorld()));
+                    LoadTestReport report = new LoadTestReport();
+                    report.setStartedAt(LocalDateTime.now().toString());
+                    report.setVersion(version);
+                    report.setLaunch(launch);
+                    report.setBots(options.getBots());
+                    report.setDurationSeconds(options.getDurationSeconds());
+                    logger.info("Load testing {} with {} bots for {}s", version, options.getBots(), options.getDurationSeconds());
+                    return instance.start(version)
+                            .andThen(Completable.defer(() -> instance.getServer().get().awaitReady(options.getStartTimeoutSeconds(), TimeUnit.SECONDS)))
+                            .andThen(Completable.defer(() -> runBots(instance, options, report)))
+                            .onErrorResumeNext(e -> instance.stop()
+                                    .onErrorComplete()
+                                    .andThen(Completable.error(e)))
+                            .andThen(Completable.defer(instance::stop))
+                            .andThen(Completable.fromAction(() -> writeReport(report))
+                                    .subscribeOn(Schedulers.io()));
+                }));
+    }
+
+    /**
+     * Detects the protocol from a status ping, then joins the bots one at a time while pinging the
+     * server on the side. The server's own tick profiler runs for the whole test. A server speaking a
+     * protocol without bot packets fails the test before any bot connects.
+     */
+    private Completable runBots(ServerInstance instance, Options options, LoadTestReport report) {
+        MinecraftServer server = instance.getServer().get();
+        InetSocketAddress address = instance.getServerAddress().get();
+        return ServerListPing.ping(address, pingTimeoutMillis)
+                .flatMapCompletable(status -> {
+                    int protocolVersion = options.getProtocolVersion() != 0 ? options.getProtocolVersion() : status.getProtocol();
+                    BotProtocol protocol = BotProtocol.forProtocol(protocolVersion)
+                            .orElseThrow(() -> new RuntimeException("Unsupported protocol " + protocolVersion + " (" + status.getVersion() + "): bots only speak "
+                                    + BotProtocol.describeSupported() + ", set loadTest.version to a stored jar of one of those"));
+                    report.setProtocol(protocolVersion);
+                    if(status.getVersion() != null)
+                        report.setVersion(status.getVersion());
+                    LoadTestStats loadTestStats = new LoadTestStats();
+                    DefaultThreadFactory threadFactory = new DefaultThreadFactory("load-test-bot", true);
+                    EventLoopGroup group = Epoll.isAvailable() ? new EpollEventLoopGroup(0, threadFactory) : new NioEventLoopGroup(0, threadFactory);
+                    ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+                    Disposable pings = Observable.interval(options.getPingIntervalSeconds(), TimeUnit.SECONDS)
+                            .concatMapCompletable(Void -> ServerListPing.ping(address, pingTimeoutMillis)
+                                    .doOnSuccess(pong -> loadTestStats.onPing(pong.getLatencyMillis()))
+                                    .doOnError(e -> loadTestStats.onPingFailure())
+                                    .ignoreElement()
+                                    .onErrorComplete())
+                            .subscribe();
+                    server.sendCommand("debug start");
+                    return Observable.intervalRange(0, options.getBots(), 0, options.getJoinIntervalMillis(), TimeUnit.MILLISECONDS)
+                            .doOnNext(i -> connect("Bot" + i, address, protocol, options, loadTestStats, group, channels))
+                            .ignoreElements()
+                            .mergeWith(Completable.timer(options.getDurationSeconds(), TimeUnit.SECONDS))
+                            .andThen(stopProfiling(server))
+                            .doOnSuccess(report::setTps)
+                            .ignoreElement()
+                            .doFinally(() -> {
+                                pings.dispose();
+                                loadTestStats.finish();
+                                channels.close().awaitUninterruptibly();
+                                group.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+                                loadTestStats.fill(report);
+                                instance.getTelemetry().ifPresent(serverTelemetry -> fillLag(serverTelemetry, report));
+                            });
+                });
+    }
+
+    private void connect(String name, InetSocketAddress address, BotProtocol protocol, Options options, LoadTestStats loadTestStats, EventLoopGroup group, ChannelGroup channels) {
+        loadTestStats.onAttempt();
+        new Bootstrap()
+                .group(group)
+                .channel(Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, pingTimeoutMillis)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast(new ProtobufVarint32FrameDecoder());
+                        channel.pipeline().addLast(new ProtobufVarint32LengthFieldPrepender());
+                        channel.pipeline().addLast("bot", new Bot(name, address, protocol, options, loadTestStats));
+                    }
+                })
+                .connect(address)
+                .addListener((ChannelFuture future) -> {
+                    if(future.isSuccess())
+                        channels.add(future.channel());
+                    else
+                        loadTestStats.onFailure("unable to connect: " + future.cause().getMessage());
+                });
+    }
+
+    /**
+     * Ends the tick profiler and reads the average TPS it reports, if it does within a few seconds.
+     */
+    private Maybe<Double> stopProfiling(MinecraftServer server) {
+        return server.getOutput()
+                .mergeWith(Completable.fromAction(() -> server.sendCommand("debug stop")))
+                .map(tpsPattern::matcher)
+                .filter(Matcher::find)
+                .map(matcher -> Double.parseDouble(matcher.group(1).replace(',', '.')))
+                .firstElement()
+                .timeout(10, TimeUnit.SECONDS, Maybe.empty())
+                .doOnComplete(() -> logger.warn("Server did not report its TPS from debug profiling"));
+    }
+
+    private void writeReport(LoadTestReport report) throws IOException {
+        Path dir = Paths.get(config.getPath(), "loadtests");
+        Files.createDirectories(dir);
+        Path path = dir.resolve(LocalDateTime.now().format(reportTimeFormat) + "-" + report.getVersion() + ".json");
+        Files.write(path, NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(report));
+        logger.info("Load test of {}: {}/{} bots joined, {} disconnected, TPS {}, join p95 {}ms, ping p95 {}ms, {} lag events",
+                report.getVersion(), report.getJoined(), report.getAttempted(), report.getDisconnected(), report.getTps(),
+                report.getJoinMillis().getP95(), report.getPingMillis().getP95(), report.getLagEvents());
+        if(!report.getFailures().isEmpty())
+            logger.info("Failures: {}", report.getFailures());
+        logger.info("Report written to {}", path);
+    }
+
+    private ServerInstance.Options findInstance(String name) {
+        return config.getResolvedInstances()
+                .stream()
+                .filter(instance -> name == null || instance.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new RuntimeException("No instance named " + name));
+    }
+
+    /**
+     * The stored jar of the version to test, or the live jar when no version is given.
+     */
+    private Path findJar(String version) {
+        if(version == null)
+            return Paths.get(config.getPath(), "minecraft_server.jar");
+        JarStore jarStore = new JarStore(Paths.get(config.getPath(), "versions"), config.getVersions(), new RangedDownloader(config.getDownloads()));
+        return jarStore.findByVersion(version)
+                .map(jarStore::getPath)
+                .orElseThrow(() -> new RuntimeException("Version " + version + " is not in the jar store"));
+    }
+
+    /**
+     * Sets up the test directory with the base instance's server.properties and EULA, then overrides
+     * what a test needs: a free port, offline mode so bots need no accounts, and a fixed seed so runs
+     * generate the same terrain. Bots are spectators so they never fall, drown or get killed.
+     */
+    private Path prepareDirectory(ServerInstance.Options base, Options options) throws IOException {
+        Path directory = options.getPath() != null ? Paths.get(options.getPath()) : Paths.get(config.getPath(), instanceName);
+        Path baseDirectory = Paths.get(base.getPath());
+        if(directory.toAbsolutePath().normalize().equals(baseDirectory.toAbsolutePath().normalize()))
+            throw new RuntimeException("The load test cannot run in the directory of instance " + base.getName());
+        Files.createDirectories(directory);
+        if(options.isFreshWorld())
+            deleteRecursively(directory.resolve(worldName));
+        for(String file : new String[] {"server.properties", "eula.txt"}) {
+            if(Files.exists(baseDirectory.resolve(file)))
+                Files.copy(baseDirectory.resolve(file), directory.resolve(file), StandardCopyOption.REPLACE_EXISTING);
+        }
+        ServerProperties properties = ServerProperties.load(directory.resolve("server.properties"));
+        properties.set("server-port", String.valueOf(findFreePort()));
+        properties.set("online-mode", "false");
+        properties.set("level-name", worldName);
+        if(options.getSeed() != null)
+            properties.set("level-seed", options.getSeed());
+        properties.set("gamemode", "spectator");
+        properties.set("force-gamemode", "true");
+        properties.set("allow-flight", "true");
+        properties.set("spawn-protection", "0");
+        properties.set("max-players", String.valueOf(options.getBots() + 10));
+        properties.set("enable-query", "false");
+        properties.set("enable-rcon", "false");
+        properties.save();
+        return directory;
+    }
+
+    /**
+     * The base instance's memory, CPUs and JVM settings in the test directory, without a proxy or RCON.
+     */
+    private static ServerInstance.Options getLaunchOptions(ServerInstance.Options base, Path directory) {
+        ServerInstance.Options launch = new ServerInstance.Options();
+        launch.setName(instanceName);
+        launch.setPath(directory.toString());
+        launch.setMemoryAllocation(base.getMemoryAllocation());
+        launch.setCpus(base.getCpus());
+        launch.setNumaNode(base.getNumaNode());
+        launch.setServer(base.getServer());
+        launch.setJvm(base.getJvm());
+        launch.setProxy(new TcpProxy.Options());
+        launch.setRcon(new RconClient.Options());
+        return launch;
+    }
+
+    private static void fillLag(ServerTelemetry serverTelemetry, LoadTestReport report) {
+        report.setLagEvents(serverTelemetry.getLagEvents().get());
+        report.setTicksBehind(serverTelemetry.getTicksBehind().get());
+    }
+
+    private static int findFreePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if(!Files.exists(dir))
+            return;
+        try(Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        } catch(IOException e) {
+            logger.warn("Unable to delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private int bots = 20;
+        /** time between bot joins, so logins do not all land in the same tick */
+        private int joinIntervalMillis = 250;
+        /** length of the test, counted from the first join */
+        private int durationSeconds = 120;
+        /** one position update per tick, as a walking client sends */
+        private int moveIntervalMillis = 50;
+        private double speedBlocksPerSecond = 4.3;
+        /** 0 for no chat */
+        private int chatIntervalSeconds = 15;
+        private int pingIntervalSeconds = 5;
+        private int startTimeoutSeconds = 600;
+        /** instance whose memory, CPUs and JVM settings the server runs with; the first one if unset */
+        private String instance;
+        /** stored version to test; the live jar if unset */
+        private String version;
+        /** test directory; &lt;path&gt;/loadtest if unset */
+        private String path;
+        private String seed = "ez-minecraft-server";
+        /** generate a new world every run, so runs start from the same state */
+        private boolean freshWorld = true;
+        /** protocol to speak instead of the one the server reports, 0 to detect it */
+        private int protocolVersion = 0;
+    }
+}
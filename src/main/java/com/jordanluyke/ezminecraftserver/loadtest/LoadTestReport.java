@@ -0,0 +1,80 @@
+package com.jordanluyke.ezminecraftserver.loadtest;
+
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of one load test, written as JSON so runs against different versions and launch
+ * settings can be compared side by side.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+@Setter
+@ToString
+public class LoadTestReport {
+    private String startedAt;
+    private String version;
+    private int protocol;
+    /** memory, cpus and jvm settings the server was launched with */
+    private ServerInstance.Options launch;
+    private int bots;
+    private int durationSeconds;
+    private long attempted;
+    private long loggedIn;
+    private long joined;
+    private double joinPercent;
+    /** bots that were in the game and lost their connection before the end */
+    private long disconnected;
+    private Map<String, Long> failures;
+    /** ticks per second over the test, from "debug stop"; null if the server did not report it */
+    private Double tps;
+    private long lagEvents;
+    private long ticksBehind;
+    private Latency joinMillis;
+    private Latency pingMillis;
+    private long pingFailures;
+    private long moves;
+    private long chats;
+    private long keepAlives;
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Latency {
+        private int samples;
+        private double p50;
+        private double p95;
+        private double p99;
+        private double max;
+
+        static Latency of(List<Double> values) {
+            List<Double> sorted;
+            synchronized(values) {
+                sorted = new ArrayList<>(values);
+            }
+            Collections.sort(sorted);
+            Latency latency = new Latency();
+            latency.setSamples(sorted.size());
+            if(sorted.isEmpty())
+                return latency;
+            latency.setP50(percentile(sorted, 50));
+            latency.setP95(percentile(sorted, 95));
+            latency.setP99(percentile(sorted, 99));
+            latency.setMax(sorted.get(sorted.size() - 1));
+            return latency;
+        }
+
+        private static double percentile(List<Double> sorted, int percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index));
+        }
+    }
+}
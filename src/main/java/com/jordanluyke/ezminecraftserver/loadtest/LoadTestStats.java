@@ -0,0 +1,101 @@
+package com.jordanluyke.ezminecraftserver.loadtest;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the bots saw during a load test, updated from their event loops.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+class LoadTestStats {
+    private final AtomicLong attempted = new AtomicLong();
+    private final AtomicLong loggedIn = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final AtomicLong moves = new AtomicLong();
+    private final AtomicLong chats = new AtomicLong();
+    private final AtomicLong keepAlives = new AtomicLong();
+    private final AtomicLong pingFailures = new AtomicLong();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    private final List<Double> joinMillis = Collections.synchronizedList(new ArrayList<>());
+    private final List<Double> pingMillis = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean finished;
+
+    /**
+     * Connections closed from here on are the test shutting down, not failures.
+     */
+    void finish() {
+        finished = true;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    void onAttempt() {
+        attempted.incrementAndGet();
+    }
+
+    void onLoggedIn() {
+        loggedIn.incrementAndGet();
+    }
+
+    void onJoined(double millis) {
+        joined.incrementAndGet();
+        joinMillis.add(millis);
+    }
+
+    /**
+     * A bot that never got into the game.
+     */
+    void onFailure(String reason) {
+        failures.computeIfAbsent(reason, r -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * A bot that was in the game and lost its connection before the test ended.
+     */
+    void onDisconnected(String reason) {
+        disconnected.incrementAndGet();
+        onFailure("disconnected: " + reason);
+    }
+
+    void onMove() {
+        moves.incrementAndGet();
+    }
+
+    void onChat() {
+        chats.incrementAndGet();
+    }
+
+    void onKeepAlive() {
+        keepAlives.incrementAndGet();
+    }
+
+    void onPing(double millis) {
+        pingMillis.add(millis);
+    }
+
+    void onPingFailure() {
+        pingFailures.incrementAndGet();
+    }
+
+    void fill(LoadTestReport report) {
+        report.setAttempted(attempted.get());
+        report.setLoggedIn(loggedIn.get());
+        report.setJoined(joined.get());
+        report.setDisconnected(disconnected.get());
+        report.setJoinPercent(attempted.get() > 0 ? joined.get() * 100.0 / attempted.get() : 0);
+        report.setMoves(moves.get());
+        report.setChats(chats.get());
+        report.setKeepAlives(keepAlives.get());
+        report.setPingFailures(pingFailures.get());
+        Map<String, Long> failureCounts = new TreeMap<>();
+        failures.forEach((reason, count) -> failureCounts.put(reason, count.get()));
+        report.setFailures(failureCounts);
+        report.setJoinMillis(LoadTestReport.Latency.of(joinMillis));
+        report.setPingMillis(LoadTestReport.Latency.of(pingMillis));
+    }
+}
@@ -0,0 +1,267 @@
+package com.jordanluyke.ezminecraftserver.metrics;
+
+import com.google.inject.Inject;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.telemetry.Histogram;
+import com.jordanluyke.ezminecraftserver.telemetry.ServerTelemetry;
+import com.jordanluyke.ezminecraftserver.telemetry.Telemetry;
+import com.jordanluyke.ezminecraftserver.util.NettyHttpClient;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.reactivex.rxjava3.core.Completable;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Serves supervisor, process and server telemetry in the Prometheus text format on /metrics, and the
+ * {@link UpdateLog} as JSON on /updates (newest first, ?limit=N). Everything rendered here is already
+ * in memory; process figures come from the last {@link ProcessSampler} sample.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Singleton
+public class MetricsServer {
+    private static final Logger logger = LogManager.getLogger(MetricsServer.class);
+    private static final String contentType = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String jsonContentType = "application/json; charset=utf-8";
+
+    private final SupervisorStats stats;
+    private final ProcessSampler sampler;
+    private final Telemetry telemetry;
+    private final ConsolePump consolePump;
+    private final UpdateLog updateLog;
+
+    @Inject
+    public MetricsServer(SupervisorStats stats, ProcessSampler sampler, Telemetry telemetry, ConsolePump consolePump, UpdateLog updateLog) {
+        this.stats = stats;
+        this.sampler = sampler;
+        this.telemetry = telemetry;
+        this.consolePump = consolePump;
+        this.updateLog = updateLog;
+    }
+
+    public Completable start(Options options) {
+        return Completable.defer(() -> {
+            sampler.start(options.getSampleIntervalSeconds());
+            ServerBootstrap bootstrap = new ServerBootstrap()
+                    .group(new NioEventLoopGroup(1, new DefaultThreadFactory("metrics", true)))
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new HttpServerCodec());
+                            channel.pipeline().addLast(new HttpObjectAggregator(8192));
+                            channel.pipeline().addLast(new MetricsHandler());
+                        }
+                    });
+            ChannelFuture bindFuture = bootstrap.bind(options.getHost(), options.getPort());
+            return Completable.create(emitter -> bindFuture.addListener((ChannelFuture future) -> {
+                if(future.isSuccess()) {
+                    logger.info("Metrics available on http://{}:{}/metrics, update history on /updates", options.getHost(), options.getPort());
+                    emitter.onComplete();
+                } else {
+                    emitter.onError(new RuntimeException("Unable to bind metrics port " + options.getPort() + ": " + future.cause().getMessage()));
+                }
+            }));
+        });
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        long now = System.currentTimeMillis();
+
+        gauge(sb, "ezmc_supervisor_uptime_seconds", "Seconds since the supervisor started", (now - stats.getStartedAt()) / 1000.0);
+        counter(sb, "ezmc_server_restarts_total", "Server restarts performed by the supervisor", stats.getRestarts().get());
+        counter(sb, "ezmc_updates_total", "Server updates installed", stats.getUpdates().get());
+        if(stats.getLastUpdateMillis() >= 0)
+            gauge(sb, "ezmc_update_last_duration_seconds", "Duration of the last update from manifest fetch to the new jar being staged", stats.getLastUpdateMillis() / 1000.0);
+        // traces change the run from other threads
+        synchronized(updateLog) {
+            updateLog.getLast().ifPresent(run -> renderLastUpdate(sb, run));
+        }
+        counter(sb, "ezmc_backups_total", "World backups completed", stats.getBackups().get());
+        if(stats.getLastBackupMillis() >= 0)
+            gauge(sb, "ezmc_backup_last_duration_seconds", "Duration of the last world backup including the save", stats.getLastBackupMillis() / 1000.0);
+        List<ServerInstance> instances = stats.getInstances();
+        header(sb, "ezmc_server_up", "gauge", "Whether the server process is running");
+        instances.forEach(i -> sample(sb, "ezmc_server_up", label(i), i.getServer().map(server -> server.isAlive() ? 1 : 0).orElse(0)));
+        header(sb, "ezmc_server_uptime_seconds", "gauge", "Seconds since the server process started");
+        instances.forEach(i -> i.getServer().ifPresent(server -> sample(sb, "ezmc_server_uptime_seconds", label(i), (now - server.getStartedAt()) / 1000.0)));
+        header(sb, "ezmc_proxy_connections", "gauge", "Open client connections through the proxy");
+        instances.forEach(i -> i.getProxy().ifPresent(proxy -> sample(sb, "ezmc_proxy_connections", label(i), proxy.getConnectionCount())));
+        header(sb, "ezmc_proxy_held_dropped_total", "counter", "Client connections lost while the proxy held them for a backend");
+        instances.forEach(i -> i.getProxy().ifPresent(proxy -> sample(sb, "ezmc_proxy_held_dropped_total", label(i), proxy.getHeldDropped())));
+
+        processMetric(sb, instances, "ezmc_process_cpu_seconds_total", "counter", "User and system CPU time of the server process", ProcessSampler.Sample::getCpuSeconds);
+        processMetric(sb, instances, "ezmc_process_resident_memory_bytes", "gauge", "Resident set size of the server process", ProcessSampler.Sample::getResidentBytes);
+        processMetric(sb, instances, "ezmc_process_threads", "gauge", "Threads in the server process", ProcessSampler.Sample::getThreads);
+        processMetric(sb, instances, "ezmc_process_open_fds", "gauge", "Open file descriptors of the server process", ProcessSampler.Sample::getOpenFds);
+
+        counter(sb, "ezmc_http_requests_total", "HTTP requests made by the supervisor", NettyHttpClient.getRequestCount());
+        counter(sb, "ezmc_http_connections_opened_total", "HTTP connections opened by the supervisor", NettyHttpClient.getConnectionsOpened());
+        counter(sb, "ezmc_http_received_bytes_total", "HTTP response body bytes received", NettyHttpClient.getBytesReceived());
+        counter(sb, "ezmc_downloads_total", "Files downloaded to disk", NettyHttpClient.getDownloadCount());
+        gauge(sb, "ezmc_download_last_bytes_per_second", "Throughput of the last file download", NettyHttpClient.getLastDownloadBytesPerSecond());
+
+        counter(sb, "ezmc_console_lines_total", "Console lines read from the server", consolePump.getLinesRead());
+        counter(sb, "ezmc_console_lines_dropped_total", "Console lines dropped from the log under overload", consolePump.getLinesDropped());
+
+        header(sb, "ezmc_lag_events_total", "counter", "Can't keep up warnings");
+        telemetry.getAll().forEach(t -> sample(sb, "ezmc_lag_events_total", label(t), t.getLagEvents().get()));
+        header(sb, "ezmc_lag_events_recent", "gauge", "Can't keep up warnings in the rolling window");
+        telemetry.getAll().forEach(t -> sample(sb, "ezmc_lag_events_recent", label(t), t.getRecentLagEvents().sum()));
+        header(sb, "ezmc_ticks_behind_total", "counter", "Ticks skipped according to Can't keep up warnings");
+        telemetry.getAll().forEach(t -> sample(sb, "ezmc_ticks_behind_total", label(t), t.getTicksBehind().get()));
+        header(sb, "ezmc_players_online", "gauge", "Players online according to join and leave messages");
+        telemetry.getAll().forEach(t -> sample(sb, "ezmc_players_online", label(t), t.getOnlineCount()));
+        header(sb, "ezmc_player_joins_total", "counter", "Player joins");
+        telemetry.getAll().forEach(t -> sample(sb, "ezmc_player_joins_total", label(t), t.getJoins().get()));
+        histogram(sb, "ezmc_lag_milliseconds", "Time behind per Can't keep up warning", ServerTelemetry::getLagMillis);
+        histogram(sb, "ezmc_startup_seconds", "Server startup time from the Done line", ServerTelemetry::getStartupSeconds);
+        histogram(sb, "ezmc_save_milliseconds", "Duration of save-all", ServerTelemetry::getSaveMillis);
+        histogram(sb, "ezmc_ping_milliseconds", "Server List Ping status response time seen by the watchdog", ServerTelemetry::getPingMillis);
+        header(sb, "ezmc_ping_failures_total", "counter", "Watchdog pings that failed or timed out");
+        telemetry.getAll().forEach(t -> sample(sb, "ezmc_ping_failures_total", label(t), t.getPingFailures().get()));
+        return sb.toString();
+    }
+
+    private void renderLastUpdate(StringBuilder sb, UpdateRun run) {
+        String version = "version=\"" + escape(String.valueOf(run.getVersion())) + "\"";
+        header(sb, "ezmc_update_last_restart_downtime_seconds", "gauge", "Wall-clock time servers were down for the last update, summed over instances");
+        sample(sb, "ezmc_update_last_restart_downtime_seconds", version, run.getDowntimeMillis() / 1000.0);
+        header(sb, "ezmc_update_last_stage_seconds", "gauge", "Duration of each stage of the last update");
+        // a stage that ran more than once, such as a retried restart, is shown with its latest duration
+        Map<String, Long> stages = new LinkedHashMap<>();
+        for(UpdateRun.Span span : run.getSpans())
+            stages.put(version + ",stage=\"" + escape(span.getName()) + "\"" + (span.getInstance() != null ? ",instance=\"" + escape(span.getInstance()) + "\"" : ""), span.getDurationMillis());
+        stages.forEach((labels, millis) -> sample(sb, "ezmc_update_last_stage_seconds", labels, millis / 1000.0));
+    }
+
+    private void processMetric(StringBuilder sb, List<ServerInstance> instances, String name, String type, String help, ToDoubleFunction<ProcessSampler.Sample> field) {
+        header(sb, name, type, help);
+        instances.forEach(i -> sampler.getSample(i.getName()).ifPresent(s -> sample(sb, name, label(i), field.applyAsDouble(s))));
+    }
+
+    private void histogram(StringBuilder sb, String name, String help, Function<ServerTelemetry, Histogram> field) {
+        header(sb, name, "histogram", help);
+        for(ServerTelemetry t : telemetry.getAll()) {
+            Histogram histogram = field.apply(t);
+            double[] bounds = histogram.getBounds();
+            long[] counts = histogram.getCumulativeCounts();
+            for(int i = 0; i < bounds.length; i++)
+                sample(sb, name + "_bucket", label(t) + ",le=\"" + format(bounds[i]) + "\"", counts[i]);
+            sample(sb, name + "_bucket", label(t) + ",le=\"+Inf\"", histogram.getCount());
+            sample(sb, name + "_sum", label(t), histogram.getSum());
+            sample(sb, name + "_count", label(t), histogram.getCount());
+        }
+    }
+
+    private static String label(ServerInstance instance) {
+        return "instance=\"" + escape(instance.getName()) + "\"";
+    }
+
+    private static String label(ServerTelemetry t) {
+        return "instance=\"" + escape(t.getInstance()) + "\",version=\"" + escape(t.getVersion()) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, "gauge", help);
+        sample(sb, name, null, value);
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, "counter", help);
+        sample(sb, name, null, value);
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if(labels != null)
+            sb.append('{').append(labels).append('}');
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if(value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return String.valueOf((long) value);
+        return String.valueOf(value);
+    }
+
+    private class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+            FullHttpResponse res;
+            QueryStringDecoder decoder = new QueryStringDecoder(req.uri());
+            if(req.method().equals(HttpMethod.GET) && decoder.path().equals("/metrics")) {
+                ByteBuf content = Unpooled.copiedBuffer(render(), StandardCharsets.UTF_8);
+                res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+                res.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            } else if(req.method().equals(HttpMethod.GET) && decoder.path().equals("/updates")) {
+                res = renderUpdates(decoder);
+            } else {
+                res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND, Unpooled.EMPTY_BUFFER);
+            }
+            HttpUtil.setContentLength(res, res.content().readableBytes());
+            boolean keepAlive = HttpUtil.isKeepAlive(req);
+            HttpUtil.setKeepAlive(res, keepAlive);
+            ChannelFuture future = ctx.writeAndFlush(res);
+            if(!keepAlive)
+                future.addListener(ChannelFutureListener.CLOSE);
+        }
+
+        private FullHttpResponse renderUpdates(QueryStringDecoder decoder) {
+            List<String> limit = decoder.parameters().get("limit");
+            try {
+                byte[] json = updateLog.toJson(limit != null ? Integer.parseInt(limit.get(0)) : Integer.MAX_VALUE);
+                FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(json));
+                res.headers().set(HttpHeaderNames.CONTENT_TYPE, jsonContentType);
+                return res;
+            } catch(NumberFormatException | IOException e) {
+                return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST, Unpooled.EMPTY_BUFFER);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        private String host = "127.0.0.1";
+        private int port = 9225;
+        private long sampleIntervalSeconds = 10;
+    }
+}
@@ -0,0 +1,115 @@
+package com.jordanluyke.ezminecraftserver.metrics;
+
+import com.google.inject.Inject;
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.util.ErrorHandlingObserver;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Reads /proc for each running server on a fixed schedule, so scrapes only ever read the last sample.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Singleton
+public class ProcessSampler {
+    private static final Logger logger = LogManager.getLogger(ProcessSampler.class);
+    // USER_HZ is 100 on every mainstream Linux build and cannot be read from Java without JNI
+    private static final double clockTicksPerSecond = 100;
+
+    private final SupervisorStats stats;
+    private volatile Map<String, Sample> samples = Collections.emptyMap();
+    private boolean started;
+
+    @Inject
+    public ProcessSampler(SupervisorStats stats) {
+        this.stats = stats;
+    }
+
+    public synchronized void start(long intervalSeconds) {
+        if(started)
+            return;
+        started = true;
+        Observable.interval(0, intervalSeconds, TimeUnit.SECONDS, Schedulers.single())
+                .doOnNext(Void -> {
+                    Map<String, Sample> next = new HashMap<>();
+                    for(ServerInstance instance : stats.getInstances()) {
+                        instance.getServer()
+                                .flatMap(MinecraftServer::getPid)
+                                .flatMap(ProcessSampler::read)
+                                .ifPresent(sample -> next.put(instance.getName(), sample));
+                    }
+                    samples = next;
+                })
+                .subscribe(new ErrorHandlingObserver<>());
+    }
+
+    public Optional<Sample> getSample(String instance) {
+        return Optional.ofNullable(samples.get(instance));
+    }
+
+    private static Optional<Sample> read(long pid) {
+        Path procPath = Paths.get("/proc", String.valueOf(pid));
+        try {
+            Sample sample = new Sample();
+            sample.pid = pid;
+
+            // comm may contain spaces and parentheses, so fields are counted from the last ')'
+            String stat = new String(Files.readAllBytes(procPath.resolve("stat")), StandardCharsets.UTF_8);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            // fields[0] is field 3 (state); utime and stime are fields 14 and 15
+            sample.cpuSeconds = (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) / clockTicksPerSecond;
+
+            for(String line : Files.readAllLines(procPath.resolve("status"), StandardCharsets.UTF_8)) {
+                if(line.startsWith("VmRSS:"))
+                    sample.residentBytes = parseKb(line) * 1024;
+                else if(line.startsWith("Threads:"))
+                    sample.threads = Long.parseLong(line.substring("Threads:".length()).trim());
+            }
+
+            try(Stream<Path> fds = Files.list(procPath.resolve("fd"))) {
+                sample.openFds = fds.count();
+            }
+            sample.sampledAt = System.currentTimeMillis();
+            return Optional.of(sample);
+        } catch(IOException | RuntimeException e) {
+            logger.debug("Unable to sample process {}: {}", pid, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static long parseKb(String line) {
+        String value = line.substring(line.indexOf(':') + 1).trim();
+        int space = value.indexOf(' ');
+        return Long.parseLong(space == -1 ? value : value.substring(0, space));
+    }
+
+    @Getter
+    @ToString
+    public static class Sample {
+        private long pid;
+        private double cpuSeconds;
+        private long residentBytes;
+        private long threads;
+        private long openFds;
+        private long sampledAt;
+    }
+}
@@ -0,0 +1,41 @@
+package com.jordanluyke.ezminecraftserver.metrics;
+
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supervisor-level counters and the supervised instances, shared with the metrics endpoint.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+@Singleton
+public class SupervisorStats {
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private volatile long lastUpdateMillis = -1;
+    private final AtomicLong backups = new AtomicLong();
+    private volatile long lastBackupMillis = -1;
+    @Setter private volatile List<ServerInstance> instances = Collections.emptyList();
+
+    public void recordRestart() {
+        restarts.incrementAndGet();
+    }
+
+    public void recordBackup(long millis) {
+        backups.incrementAndGet();
+        lastBackupMillis = millis;
+    }
+
+    public void recordUpdate(long millis) {
+        updates.incrementAndGet();
+        lastUpdateMillis = millis;
+    }
+}
@@ -0,0 +1,124 @@
+package com.jordanluyke.ezminecraftserver.metrics;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * The last runs of the update pipeline with the timing of each stage, kept in a JSON file so the
+ * history outlives the supervisor and served on /updates by the metrics endpoint. Update checks that
+ * find nothing new are not kept.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Singleton
+public class UpdateLog {
+    private static final Logger logger = LogManager.getLogger(UpdateLog.class);
+
+    private final Deque<UpdateRun> runs = new ArrayDeque<>();
+    private Path file;
+    private int keep = 20;
+    private long nextId = 1;
+
+    public synchronized void load(Path file, int keep) {
+        this.file = file;
+        this.keep = keep;
+        runs.clear();
+        if(Files.exists(file)) {
+            try {
+                List<UpdateRun> stored = NodeUtil.mapper.readValue(file.toFile(), new TypeReference<List<UpdateRun>>() {});
+                runs.addAll(stored);
+            } catch(IOException e) {
+                logger.warn("Ignoring unreadable update log: {}", e.getMessage());
+            }
+        }
+        nextId = runs.stream().mapToLong(UpdateRun::getId).max().orElse(0) + 1;
+    }
+
+    /**
+     * Starts tracing an update check. The run enters the log once it finds a version or fails.
+     */
+    public synchronized UpdateTrace begin(String fromVersion) {
+        UpdateRun run = new UpdateRun();
+        run.setId(nextId++);
+        run.setStartedAt(Instant.now().toString());
+        run.setFromVersion(fromVersion);
+        return new UpdateTrace(this, run);
+    }
+
+    /**
+     * The latest run that installed the version, for restarts onto it. A version that was not staged
+     * by a traced run gets a new one.
+     */
+    public synchronized UpdateTrace trace(String version) {
+        Iterator<UpdateRun> newestFirst = runs.descendingIterator();
+        while(newestFirst.hasNext()) {
+            UpdateRun run = newestFirst.next();
+            if(version.equals(run.getVersion()))
+                return new UpdateTrace(this, run);
+        }
+        UpdateTrace trace = begin(null);
+        trace.setVersion(version);
+        return trace;
+    }
+
+    /**
+     * @return up to limit runs, newest first
+     */
+    public synchronized List<UpdateRun> getRuns(int limit) {
+        List<UpdateRun> newestFirst = new ArrayList<>();
+        Iterator<UpdateRun> it = runs.descendingIterator();
+        while(it.hasNext() && newestFirst.size() < limit)
+            newestFirst.add(it.next());
+        return newestFirst;
+    }
+
+    public synchronized Optional<UpdateRun> getLast() {
+        return Optional.ofNullable(runs.peekLast());
+    }
+
+    /**
+     * Serializes the runs while holding the lock, since traces change them from other threads.
+     */
+    public synchronized byte[] toJson(int limit) throws IOException {
+        return NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(getRuns(limit));
+    }
+
+    synchronized void record(UpdateTrace trace) {
+        if(!runs.contains(trace.getRun())) {
+            runs.addLast(trace.getRun());
+            while(runs.size() > keep)
+                runs.removeFirst();
+        }
+        save();
+    }
+
+    /**
+     * Saves after a change to a run, unless it is a check that has not entered the log.
+     */
+    synchronized void changed(UpdateRun run) {
+        if(runs.contains(run))
+            save();
+    }
+
+    private void save() {
+        if(file == null)
+            return;
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(tempFile, NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(runs));
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            logger.warn("Unable to save update log: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.jordanluyke.ezminecraftserver.metrics;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One update as kept in the update log: the stages from the manifest check to the last instance
+ * serving the new version again.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+@Setter
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UpdateRun {
+    private long id;
+    private String startedAt;
+    private String fromVersion;
+    private String version;
+    /** staged, restarted or failed */
+    private String outcome;
+    private String error;
+    /** from the manifest check to the new jar being live and its archives trained */
+    private Long stagedMillis;
+    /** wall-clock time servers were down for this update, from stop to the new "Done" line, summed over instances */
+    private long downtimeMillis;
+    private List<Span> spans = new ArrayList<>();
+
+    @Getter
+    @Setter
+    @ToString
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Span {
+        private String name;
+        private String instance;
+        /** start relative to the start of the run */
+        private long offsetMillis;
+        private long durationMillis;
+        private Long bytes;
+        private Long bytesPerSecond;
+        /** ok, error or cancelled */
+        private String outcome;
+        private String error;
+    }
+}
@@ -0,0 +1,167 @@
+package com.jordanluyke.ezminecraftserver.metrics;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Single;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Times the stages of one update run into its entry in the {@link UpdateLog}. Every stage is logged
+ * as it ends, with its throughput when it moved bytes.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class UpdateTrace {
+    private static final Logger logger = LogManager.getLogger(UpdateTrace.class);
+
+    private final UpdateLog log;
+    private final UpdateRun run;
+    private final long startedAt;
+
+    UpdateTrace(UpdateLog log, UpdateRun run) {
+        this.log = log;
+        this.run = run;
+        this.startedAt = Instant.parse(run.getStartedAt()).toEpochMilli();
+    }
+
+    UpdateRun getRun() {
+        return run;
+    }
+
+    /**
+     * The version this run installs. From here on the run is kept in the log.
+     */
+    public void setVersion(String version) {
+        synchronized(log) {
+            run.setVersion(version);
+        }
+        log.record(this);
+    }
+
+    public Stage start(String name, String instance) {
+        UpdateRun.Span span = new UpdateRun.Span();
+        span.setName(name);
+        span.setInstance(instance);
+        span.setOffsetMillis(System.currentTimeMillis() - startedAt);
+        span.setOutcome("running");
+        synchronized(log) {
+            run.getSpans().add(span);
+        }
+        return new Stage(span);
+    }
+
+    public <T> Single<T> time(String name, Single<T> source, ToLongFunction<T> bytes) {
+        return Single.defer(() -> {
+            Stage stage = start(name, null);
+            return source.doOnSuccess(value -> stage.end(bytes.applyAsLong(value)))
+                    .doOnError(stage::fail)
+                    .doOnDispose(stage::cancel);
+        });
+    }
+
+    public <T> Maybe<T> time(String name, Maybe<T> source, ToLongFunction<T> bytes) {
+        return Maybe.defer(() -> {
+            Stage stage = start(name, null);
+            return source.doOnSuccess(value -> stage.end(bytes.applyAsLong(value)))
+                    .doOnComplete(stage::end)
+                    .doOnError(stage::fail)
+                    .doOnDispose(stage::cancel);
+        });
+    }
+
+    public Completable time(String name, String instance, Completable source) {
+        return Completable.defer(() -> {
+            Stage stage = start(name, instance);
+            return source.doOnComplete(stage::end)
+                    .doOnError(stage::fail)
+                    .doOnDispose(stage::cancel);
+        });
+    }
+
+    /**
+     * The new jar is live; instances restart onto it as the restart scheduler allows.
+     */
+    public void staged() {
+        synchronized(log) {
+            run.setOutcome("staged");
+            run.setStagedMillis(System.currentTimeMillis() - startedAt);
+        }
+        log.changed(run);
+        logger.info("Update to {} staged in {}ms", run.getVersion(), run.getStagedMillis());
+    }
+
+    public void restarted(String instance, long downtimeMillis) {
+        synchronized(log) {
+            run.setOutcome("restarted");
+            run.setDowntimeMillis(run.getDowntimeMillis() + downtimeMillis);
+        }
+        log.changed(run);
+        logger.info("Instance {} was down {}ms for the update to {}", instance, downtimeMillis, run.getVersion());
+    }
+
+    public void fail(Throwable e) {
+        synchronized(log) {
+            run.setOutcome("failed");
+            run.setError(e.getMessage());
+        }
+        log.record(this);
+    }
+
+    public class Stage {
+        private final UpdateRun.Span span;
+        private final long startedNanos = System.nanoTime();
+        private boolean ended;
+
+        private Stage(UpdateRun.Span span) {
+            this.span = span;
+        }
+
+        public void end() {
+            finish("ok", null, -1);
+        }
+
+        /**
+         * @param bytes moved by the stage, for its throughput
+         */
+        public void end(long bytes) {
+            finish("ok", null, bytes);
+        }
+
+        public void fail(Throwable e) {
+            finish("error", e.getMessage(), -1);
+        }
+
+        private void cancel() {
+            finish("cancelled", null, -1);
+        }
+
+        private void finish(String outcome, String error, long bytes) {
+            long durationNanos = System.nanoTime() - startedNanos;
+            synchronized(log) {
+                if(ended)
+                    return;
+                ended = true;
+                span.setDurationMillis(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+                span.setOutcome(outcome);
+                span.setError(error);
+                if(bytes >= 0) {
+                    span.setBytes(bytes);
+                    span.setBytesPerSecond(durationNanos > 0 ? bytes * 1_000_000_000L / durationNanos : null);
+                }
+            }
+            log.changed(run);
+            String stage = span.getInstance() != null ? span.getName() + " of " + span.getInstance() : span.getName();
+            if(error != null)
+                logger.info("Update stage {} failed after {}ms: {}", stage, span.getDurationMillis(), error);
+            else if(span.getBytes() != null)
+                logger.info("Update stage {} {} in {}ms, {} KB at {} KB/s", stage, outcome, span.getDurationMillis(), bytes / 1024, span.getBytesPerSecond() != null ? span.getBytesPerSecond() / 1024 : "-");
+            else
+                logger.info("Update stage {} {} in {}ms", stage, outcome, span.getDurationMillis());
+        }
+    }
+}
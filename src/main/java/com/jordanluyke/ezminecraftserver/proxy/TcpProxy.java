@@ -0,0 +1,247 @@
+package com.jordanluyke.ezminecraftserver.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.reactivex.rxjava3.core.Completable;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the public port and forwards each new connection to whichever backend is live at the time.
+ * Connections that arrive while no backend is live are held, not refused, until one becomes live.
+ * Held clients get no answer to their login, so they give up after about 30 seconds; holding only
+ * bridges short handovers, and connections lost while held are counted as the downtime they are.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class TcpProxy {
+    private static final Logger logger = LogManager.getLogger(TcpProxy.class);
+
+    private final Options options;
+    private final ChannelGroup connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final Queue<Channel> held = new ConcurrentLinkedQueue<>();
+    private final AtomicLong heldDropped = new AtomicLong();
+    private volatile InetSocketAddress backend;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+
+    public TcpProxy(Options options) {
+        this.options = options;
+    }
+
+    public Completable start() {
+        return Completable.defer(() -> {
+            boolean epoll = Epoll.isAvailable();
+            bossGroup = epoll ? new EpollEventLoopGroup(1, new DefaultThreadFactory("proxy-boss")) : new NioEventLoopGroup(1, new DefaultThreadFactory("proxy-boss"));
+            workerGroup = epoll ? new EpollEventLoopGroup(0, new DefaultThreadFactory("proxy-worker")) : new NioEventLoopGroup(0, new DefaultThreadFactory("proxy-worker"));
+            ServerBootstrap bootstrap = new ServerBootstrap()
+                    .group(bossGroup, workerGroup)
+                    .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                    .childOption(ChannelOption.AUTO_READ, false)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new FrontendHandler());
+                        }
+                    });
+            ChannelFuture bindFuture = bootstrap.bind(options.getPort());
+            return Completable.create(emitter -> bindFuture.addListener((ChannelFuture future) -> {
+                if(future.isSuccess()) {
+                    serverChannel = future.channel();
+                    logger.info("Proxy listening on port {}", options.getPort());
+                    emitter.onComplete();
+                } else {
+                    emitter.onError(new RuntimeException("Unable to bind proxy port " + options.getPort() + ": " + future.cause().getMessage()));
+                }
+            }));
+        });
+    }
+
+    public void stop() {
+        if(serverChannel != null)
+            serverChannel.close();
+        connections.close();
+        if(bossGroup != null)
+            bossGroup.shutdownGracefully();
+        if(workerGroup != null)
+            workerGroup.shutdownGracefully();
+    }
+
+    /**
+     * Routes new connections to the given backend and releases any held connections to it.
+     * Passing null holds new connections until a backend is set again.
+     */
+    public void setBackend(InetSocketAddress backend) {
+        this.backend = backend;
+        if(backend == null) {
+            logger.info("Proxy holding new connections");
+            return;
+        }
+        logger.info("Proxy routing new connections to {}", backend);
+        Channel channel;
+        while((channel = held.poll()) != null) {
+            if(channel.isActive())
+                connect(channel, backend);
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Connections that were closed, by the client or the hold timeout, before a backend became live.
+     */
+    public long getHeldDropped() {
+        return heldDropped.get();
+    }
+
+    private void connect(Channel inbound, InetSocketAddress target) {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(inbound.eventLoop())
+                .channel(inbound.getClass().asSubclass(Channel.class))
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) TimeUnit.SECONDS.toMillis(5))
+                .handler(new RelayHandler(inbound));
+        ChannelFuture connectFuture = bootstrap.connect(target);
+        Channel outbound = connectFuture.channel();
+        inbound.attr(RelayHandler.PEER).set(outbound);
+        connectFuture.addListener((ChannelFuture future) -> {
+            if(future.isSuccess()) {
+                outbound.read();
+                inbound.read();
+            } else {
+                logger.warn("Unable to reach backend {}: {}", target, future.cause().getMessage());
+                inbound.close();
+            }
+        });
+    }
+
+    private void hold(Channel inbound) {
+        held.add(inbound);
+        inbound.eventLoop().schedule(() -> {
+            if(held.remove(inbound)) {
+                heldDropped.incrementAndGet();
+                logger.warn("No backend became live within {}s, closing {}", options.getHoldTimeoutSeconds(), inbound.remoteAddress());
+                inbound.close();
+            }
+        }, options.getHoldTimeoutSeconds(), TimeUnit.SECONDS);
+        // the backend may have been set between the check and the add
+        InetSocketAddress target = backend;
+        if(target != null && held.remove(inbound))
+            connect(inbound, target);
+    }
+
+    private class FrontendHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            connections.add(ctx.channel());
+            InetSocketAddress target = backend;
+            if(target != null)
+                connect(ctx.channel(), target);
+            else
+                hold(ctx.channel());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            Channel outbound = ctx.channel().attr(RelayHandler.PEER).get();
+            RelayHandler.forward(ctx.channel(), outbound, msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if(held.remove(ctx.channel())) {
+                heldDropped.incrementAndGet();
+                logger.warn("{} disconnected while held for a backend", ctx.channel().remoteAddress());
+            }
+            RelayHandler.closeOnFlush(ctx.channel().attr(RelayHandler.PEER).get());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private static class RelayHandler extends ChannelInboundHandlerAdapter {
+        static final AttributeKey<Channel> PEER = AttributeKey.valueOf("peer");
+
+        private final Channel inbound;
+
+        RelayHandler(Channel inbound) {
+            this.inbound = inbound;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            forward(ctx.channel(), inbound, msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            closeOnFlush(inbound);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        static void forward(Channel from, Channel to, Object msg) {
+            if(to == null || !to.isActive()) {
+                ReferenceCountUtil.release(msg);
+                from.close();
+                return;
+            }
+            to.writeAndFlush(msg).addListener((ChannelFuture future) -> {
+                if(future.isSuccess())
+                    from.read();
+                else
+                    future.channel().close();
+            });
+        }
+
+        static void closeOnFlush(Channel channel) {
+            if(channel != null && channel.isActive())
+                channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        private int port = 25565;
+        /** how long a connection waits for a backend, just under the 30s a client waits for a login reply */
+        private int holdTimeoutSeconds = 25;
+        /** how long a starting server has to log "Done" before the proxy switches to it anyway */
+        private int startTimeoutSeconds = 300;
+    }
+}
@@ -0,0 +1,301 @@
+package com.jordanluyke.ezminecraftserver.rcon;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one authenticated RCON connection to a server and queues commands over it, so callers never
+ * hold a thread while the server works. Commands are serialized, not pipelined: the server reads one
+ * packet per socket read and drops the connection when a read holds more, so only one request is in
+ * flight at a time and the next is written once the previous response has ended. A response can span
+ * several packets; once its first packet arrives an empty packet of the response type is sent as a
+ * sentinel, and the server's reply to it marks the end of the response. The connection is opened on
+ * first use and reopened after it drops.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RconClient {
+    private static final Logger logger = LogManager.getLogger(RconClient.class);
+    // the server splits responses into packets of at most this many characters, up to 3 UTF-8 bytes each
+    private static final int maxFragmentLength = 4096;
+    // length prefix, request id, type, body and two nuls
+    static final int maxFrameLength = 4 + 4 + 4 + maxFragmentLength * 3 + 2;
+    private static final String passwordAlphabet = "ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz23456789";
+    private static EventLoopGroup eventLoopGroup;
+
+    private final InetSocketAddress address;
+    private final String password;
+    private final Options options;
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+    // requests by the id of their sentinel
+    private final Map<Integer, PendingRequest> sentinels = new ConcurrentHashMap<>();
+    private final Deque<PendingRequest> queued = new ArrayDeque<>();
+    private PendingRequest inFlight;
+    private Single<Channel> connection;
+    private Channel channel;
+
+    public RconClient(InetSocketAddress address, String password, Options options) {
+        this.address = address;
+        this.password = password;
+        this.options = options;
+    }
+
+    /**
+     * Opens and authenticates the connection now instead of on the first command.
+     */
+    public Completable connect() {
+        return getConnection().ignoreElement();
+    }
+
+    /**
+     * @return the server's response to the command, which may be empty
+     */
+    public Single<String> command(String command) {
+        return getConnection()
+                .flatMap(channel -> send(channel, RconPacket.TYPE_COMMAND, command))
+                .observeOn(Schedulers.io());
+    }
+
+    public synchronized void close() {
+        if(connection != null) {
+            Single<Channel> closing = connection;
+            connection = null;
+            channel = null;
+            closing.subscribe(Channel::close, e -> {});
+        }
+    }
+
+    public static String generatePassword() {
+        SecureRandom random = new SecureRandom();
+        StringBuilder sb = new StringBuilder(24);
+        for(int i = 0; i < 24; i++)
+            sb.append(passwordAlphabet.charAt(random.nextInt(passwordAlphabet.length())));
+        return sb.toString();
+    }
+
+    private synchronized Single<Channel> getConnection() {
+        if(connection == null) {
+            Single<Channel> opening = openConnection().cache();
+            connection = opening;
+            opening.subscribe(channel -> {}, e -> resetConnection(opening));
+        }
+        return connection;
+    }
+
+    private synchronized void resetConnection(Single<Channel> failed) {
+        if(connection == failed)
+            connection = null;
+    }
+
+    private Single<Channel> openConnection() {
+        return Single.<Channel>create(emitter -> {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(getEventLoopGroup())
+                    .channel(Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, options.getConnectTimeoutMillis())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new LengthFieldBasedFrameDecoder(ByteOrder.LITTLE_ENDIAN, maxFrameLength, 0, 4, 0, 4, true));
+                            channel.pipeline().addLast(new RconCodec());
+                            channel.pipeline().addLast(new ResponseHandler());
+                        }
+                    });
+            bootstrap.connect(address).addListener((ChannelFuture future) -> {
+                if(future.isSuccess())
+                    emitter.onSuccess(future.channel());
+                else
+                    emitter.onError(new RuntimeException("Unable to connect to RCON at " + address + ": " + future.cause().getMessage()));
+            });
+        })
+                .flatMap(channel -> send(channel, RconPacket.TYPE_LOGIN, password)
+                        .map(Void -> channel)
+                        .doOnError(e -> channel.close()))
+                .doOnSuccess(channel -> {
+                    synchronized(this) {
+                        this.channel = channel;
+                    }
+                    logger.debug("RCON connected to {}", address);
+                });
+    }
+
+    private Single<String> send(Channel channel, int type, String body) {
+        return Single.defer(() -> {
+            int requestId = nextRequestId();
+            PendingRequest request = new PendingRequest(channel, new RconPacket(requestId, type, body));
+            pending.put(requestId, request);
+            request.completion.whenComplete((response, e) -> writeNext(request));
+            enqueue(request);
+            return Single.<String>create(emitter -> request.completion.whenComplete((response, e) -> {
+                if(e != null)
+                    emitter.tryOnError(e);
+                else
+                    emitter.onSuccess(response);
+            }))
+                    .timeout(options.getRequestTimeoutSeconds(), TimeUnit.SECONDS)
+                    .doOnError(request::fail)
+                    .doFinally(() -> {
+                        pending.remove(requestId);
+                        if(request.sentinelId != 0)
+                            sentinels.remove(request.sentinelId);
+                    });
+        });
+    }
+
+    private synchronized void enqueue(PendingRequest request) {
+        queued.addLast(request);
+        if(inFlight == null)
+            writeNext(null);
+    }
+
+    /**
+     * Writes the next queued request once the one in flight has finished.
+     *
+     * @param finished the request that finished, or null to start an idle queue
+     */
+    private synchronized void writeNext(PendingRequest finished) {
+        if(finished != null && finished != inFlight)
+            return;
+        inFlight = queued.pollFirst();
+        if(inFlight == null)
+            return;
+        PendingRequest request = inFlight;
+        request.channel.writeAndFlush(request.packet).addListener((ChannelFuture future) -> {
+            if(!future.isSuccess())
+                request.fail(future.cause());
+        });
+    }
+
+    /**
+     * Positive ids only, since the server answers a failed login with -1.
+     */
+    private int nextRequestId() {
+        return requestIds.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+    }
+
+    private static synchronized EventLoopGroup getEventLoopGroup() {
+        if(eventLoopGroup == null) {
+            DefaultThreadFactory threadFactory = new DefaultThreadFactory("rcon", true);
+            eventLoopGroup = Epoll.isAvailable() ? new EpollEventLoopGroup(1, threadFactory) : new NioEventLoopGroup(1, threadFactory);
+        }
+        return eventLoopGroup;
+    }
+
+    private static class PendingRequest {
+        final Channel channel;
+        final RconPacket packet;
+        final CompletableFuture<String> completion = new CompletableFuture<>();
+        final StringBuilder body = new StringBuilder();
+        volatile int sentinelId;
+
+        PendingRequest(Channel channel, RconPacket packet) {
+            this.channel = channel;
+            this.packet = packet;
+        }
+
+        void fail(Throwable e) {
+            completion.completeExceptionally(e);
+        }
+    }
+
+    private class ResponseHandler extends SimpleChannelInboundHandler<RconPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, RconPacket packet) {
+            if(packet.getRequestId() == RconPacket.AUTH_FAILED_ID) {
+                failAll(ctx.channel(), new RuntimeException("RCON authentication failed"));
+                ctx.close();
+                return;
+            }
+            PendingRequest ended = sentinels.remove(packet.getRequestId());
+            if(ended != null) {
+                ended.completion.complete(ended.body.toString());
+                return;
+            }
+            PendingRequest request = pending.get(packet.getRequestId());
+            if(request == null)
+                return;
+            // a login is answered with a single packet
+            if(request.packet.getType() == RconPacket.TYPE_LOGIN) {
+                request.completion.complete(packet.getBody());
+                return;
+            }
+            request.body.append(packet.getBody());
+            // the server has read the command by now, so the sentinel arrives in a read of its own
+            if(request.sentinelId == 0) {
+                request.sentinelId = nextRequestId();
+                sentinels.put(request.sentinelId, request);
+                ctx.writeAndFlush(new RconPacket(request.sentinelId, RconPacket.TYPE_RESPONSE, ""));
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            synchronized(RconClient.this) {
+                if(channel == ctx.channel()) {
+                    channel = null;
+                    connection = null;
+                }
+            }
+            failAll(ctx.channel(), new RuntimeException("RCON connection closed"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("RCON connection to {} failed: {}", address, cause.getMessage());
+            ctx.close();
+        }
+
+        private void failAll(Channel channel, Throwable e) {
+            synchronized(RconClient.this) {
+                queued.removeIf(request -> request.channel == channel);
+            }
+            pending.values()
+                    .stream()
+                    .filter(request -> request.channel == channel)
+                    .forEach(request -> request.fail(e));
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        /** 0 picks a free port on each launch */
+        private int port = 0;
+        /** generated and kept in server.properties when unset */
+        private String password;
+        private int connectTimeoutMillis = 5000;
+        private int requestTimeoutSeconds = 10;
+    }
+}
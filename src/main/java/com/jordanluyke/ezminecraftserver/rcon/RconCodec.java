@@ -0,0 +1,43 @@
+package com.jordanluyke.ezminecraftserver.rcon;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Converts between {@link RconPacket}s and frames of the form: request id, type, body, two nul
+ * bytes, all little-endian. The length prefix is read by a LengthFieldBasedFrameDecoder ahead of
+ * this codec and written here.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RconCodec extends MessageToMessageCodec<ByteBuf, RconPacket> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, RconPacket packet, List<Object> out) {
+        byte[] body = packet.getBody().getBytes(StandardCharsets.UTF_8);
+        ByteBuf buf = ctx.alloc().buffer(4 + 4 + 4 + body.length + 2);
+        buf.writeIntLE(4 + 4 + body.length + 2);
+        buf.writeIntLE(packet.getRequestId());
+        buf.writeIntLE(packet.getType());
+        buf.writeBytes(body);
+        buf.writeShort(0);
+        out.add(buf);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) {
+        int requestId = frame.readIntLE();
+        int type = frame.readIntLE();
+        // the body is followed by one nul terminator and one empty-string nul
+        int bodyLength = frame.readableBytes();
+        while(bodyLength > 0 && frame.getByte(frame.readerIndex() + bodyLength - 1) == 0)
+            bodyLength--;
+        String body = frame.toString(frame.readerIndex(), bodyLength, StandardCharsets.UTF_8);
+        frame.skipBytes(frame.readableBytes());
+        out.add(new RconPacket(requestId, type, body));
+    }
+}
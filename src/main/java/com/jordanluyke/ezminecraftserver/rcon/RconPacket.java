@@ -0,0 +1,27 @@
+package com.jordanluyke.ezminecraftserver.rcon;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+@ToString
+public class RconPacket {
+    public static final int TYPE_RESPONSE = 0;
+    public static final int TYPE_COMMAND = 2;
+    public static final int TYPE_LOGIN = 3;
+    /** request id the server answers a login with when the password is wrong */
+    public static final int AUTH_FAILED_ID = -1;
+
+    private final int requestId;
+    private final int type;
+    private final String body;
+
+    public RconPacket(int requestId, int type, String body) {
+        this.requestId = requestId;
+        this.type = type;
+        this.body = body;
+    }
+}
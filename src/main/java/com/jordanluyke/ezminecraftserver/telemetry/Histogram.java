@@ -0,0 +1,58 @@
+package com.jordanluyke.ezminecraftserver.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram. Bucket counts are cumulative on read, matching the Prometheus text format.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class Histogram {
+    private final double[] bounds;
+    private final AtomicLongArray counts;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    public Histogram(double... bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length);
+    }
+
+    public void record(double value) {
+        for(int i = 0; i < bounds.length; i++) {
+            if(value <= bounds[i]) {
+                counts.incrementAndGet(i);
+                break;
+            }
+        }
+        count.increment();
+        sum.add(value);
+    }
+
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return the number of samples at or below each bound
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[bounds.length];
+        long running = 0;
+        for(int i = 0; i < bounds.length; i++) {
+            running += counts.get(i);
+            cumulative[i] = running;
+        }
+        return cumulative;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+}
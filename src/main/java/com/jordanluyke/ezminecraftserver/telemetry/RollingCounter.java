@@ -0,0 +1,46 @@
+package com.jordanluyke.ezminecraftserver.telemetry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sum of values added over a trailing window, kept in one slot per minute.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RollingCounter {
+    private final long[] slots;
+    private final long[] slotMinutes;
+
+    public RollingCounter(int windowMinutes) {
+        this.slots = new long[windowMinutes];
+        this.slotMinutes = new long[windowMinutes];
+    }
+
+    public synchronized void add(long value) {
+        long minute = currentMinute();
+        int i = (int) (minute % slots.length);
+        if(slotMinutes[i] != minute) {
+            slotMinutes[i] = minute;
+            slots[i] = 0;
+        }
+        slots[i] += value;
+    }
+
+    public synchronized long sum() {
+        long minute = currentMinute();
+        long total = 0;
+        for(int i = 0; i < slots.length; i++) {
+            if(minute - slotMinutes[i] < slots.length)
+                total += slots[i];
+        }
+        return total;
+    }
+
+    public int getWindowMinutes() {
+        return slots.length;
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,147 @@
+package com.jordanluyke.ezminecraftserver.telemetry;
+
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performance signals for one server version on one instance, parsed from its console output.
+ * Lines are matched with plain index scans rather than regexes, and most lines are
+ * rejected after a single character check.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Getter
+public class ServerTelemetry {
+    private static final Logger logger = LogManager.getLogger(ServerTelemetry.class);
+    private static final int windowMinutes = 15;
+
+    private final String instance;
+    private final String version;
+    private final AtomicLong lagEvents = new AtomicLong();
+    private final AtomicLong ticksBehind = new AtomicLong();
+    private final RollingCounter recentLagEvents = new RollingCounter(windowMinutes);
+    private final RollingCounter recentLagMillis = new RollingCounter(windowMinutes);
+    private final Histogram lagMillis = new Histogram(100, 500, 1000, 2000, 5000, 10000, 30000, 60000);
+    private final Histogram startupSeconds = new Histogram(5, 10, 20, 30, 60, 120, 300, 600);
+    private final Histogram saveMillis = new Histogram(100, 250, 500, 1000, 2500, 5000, 10000, 30000);
+    private final Histogram pingMillis = new Histogram(5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000);
+    private final AtomicLong pingFailures = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong leaves = new AtomicLong();
+    private final Set<String> onlinePlayers = ConcurrentHashMap.newKeySet();
+    private volatile long saveStartedNanos = -1;
+
+    public ServerTelemetry(String instance, String version) {
+        this.instance = instance;
+        this.version = version;
+    }
+
+    public int getOnlineCount() {
+        return onlinePlayers.size();
+    }
+
+    public Set<String> getOnlinePlayers() {
+        return Collections.unmodifiableSet(onlinePlayers);
+    }
+
+    /**
+     * Clears state that only applies to a running process, such as who is online.
+     */
+    public void onServerStarted() {
+        onlinePlayers.clear();
+        saveStartedNanos = -1;
+    }
+
+    public void onLine(String line) {
+        int start = line.indexOf("]: ");
+        if(start == -1)
+            return;
+        start += 3;
+        if(start >= line.length())
+            return;
+        char first = line.charAt(start);
+        // chat lines start with "<name>" and must never be mistaken for server events
+        if(first == '<' || first == '[')
+            return;
+        if(first == 'C' && line.startsWith("Can't keep up!", start))
+            parseLag(line, start);
+        else if(first == 'D' && line.startsWith("Done (", start))
+            parseDone(line, start + "Done (".length());
+        else if(first == 'S' && line.startsWith("Saving the game", start))
+            saveStartedNanos = System.nanoTime();
+        else if(first == 'S' && line.startsWith("Saved the game", start))
+            parseSaved();
+        else if(line.endsWith(" joined the game"))
+            playerJoined(line.substring(start, line.length() - " joined the game".length()));
+        else if(line.endsWith(" left the game"))
+            playerLeft(line.substring(start, line.length() - " left the game".length()));
+    }
+
+    private void parseLag(String line, int start) {
+        int running = line.indexOf("Running ", start);
+        if(running == -1)
+            return;
+        long millis = parseLong(line, running + "Running ".length());
+        int or = line.indexOf("ms or ", running);
+        long ticks = or == -1 ? 0 : parseLong(line, or + "ms or ".length());
+        if(millis < 0)
+            return;
+        lagEvents.incrementAndGet();
+        ticksBehind.addAndGet(Math.max(ticks, 0));
+        recentLagEvents.add(1);
+        recentLagMillis.add(millis);
+        lagMillis.record(millis);
+    }
+
+    private void parseDone(String line, int start) {
+        int end = line.indexOf("s)", start);
+        if(end == -1)
+            return;
+        try {
+            double seconds = Double.parseDouble(line.substring(start, end));
+            startupSeconds.record(seconds);
+            logger.info("Server {} ({}) started in {}s", instance, version, seconds);
+        } catch(NumberFormatException e) {
+            logger.debug("Unparsable startup time: {}", line);
+        }
+    }
+
+    private void parseSaved() {
+        long started = saveStartedNanos;
+        if(started == -1)
+            return;
+        saveStartedNanos = -1;
+        saveMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private void playerJoined(String name) {
+        if(name.indexOf(' ') != -1)
+            return;
+        joins.incrementAndGet();
+        onlinePlayers.add(name);
+    }
+
+    private void playerLeft(String name) {
+        if(name.indexOf(' ') != -1)
+            return;
+        leaves.incrementAndGet();
+        onlinePlayers.remove(name);
+    }
+
+    private static long parseLong(String s, int from) {
+        long value = 0;
+        int i = from;
+        while(i < s.length() && Character.isDigit(s.charAt(i))) {
+            value = value * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        return i == from ? -1 : value;
+    }
+}
@@ -0,0 +1,24 @@
+package com.jordanluyke.ezminecraftserver.telemetry;
+
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server telemetry kept per instance and server version, so regressions between versions stay visible.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+@Singleton
+public class Telemetry {
+    private final Map<List<String>, ServerTelemetry> byInstanceVersion = new ConcurrentHashMap<>();
+
+    public ServerTelemetry forServer(String instance, String version) {
+        String v = version == null ? "unknown" : version;
+        return byInstanceVersion.computeIfAbsent(Arrays.asList(instance, v), key -> new ServerTelemetry(instance, v));
+    }
+
+    public Collection<ServerTelemetry> getAll() {
+        return Collections.unmodifiableCollection(byInstanceVersion.values());
+    }
+}
@@ -0,0 +1,115 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * On-disk store of response bodies and their validators (ETag / Last-Modified), keyed by url.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class HttpCache {
+    private static final Logger logger = LogManager.getLogger(HttpCache.class);
+
+    private final Path dir;
+
+    public HttpCache(Path dir) {
+        this.dir = dir;
+    }
+
+    public Optional<Entry> get(String url) {
+        String key = key(url);
+        Path metaPath = dir.resolve(key + ".json");
+        Path bodyPath = dir.resolve(key + ".body");
+        if(!Files.exists(metaPath) || !Files.exists(bodyPath))
+            return Optional.empty();
+        try {
+            JsonNode meta = NodeUtil.getJsonNode(Files.readAllBytes(metaPath));
+            Entry entry = new Entry();
+            entry.setBodyPath(bodyPath);
+            NodeUtil.get("etag", meta).ifPresent(entry::setEtag);
+            NodeUtil.get("lastModified", meta).ifPresent(entry::setLastModified);
+            if(entry.getEtag() == null && entry.getLastModified() == null)
+                return Optional.empty();
+            return Optional.of(entry);
+        } catch(IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable cache entry for {}: {}", url, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    public synchronized void put(String url, NettyHttpClient.ClientResponse res) {
+        Optional<String> etag = getHeader(res.getHeaders(), HttpHeaderNames.ETAG.toString());
+        Optional<String> lastModified = getHeader(res.getHeaders(), HttpHeaderNames.LAST_MODIFIED.toString());
+        if(!etag.isPresent() && !lastModified.isPresent())
+            return;
+        String key = key(url);
+        ObjectNode meta = NodeUtil.mapper.createObjectNode();
+        meta.put("url", url);
+        etag.ifPresent(e -> meta.put("etag", e));
+        lastModified.ifPresent(l -> meta.put("lastModified", l));
+        try {
+            Files.createDirectories(dir);
+            write(dir.resolve(key + ".body"), res.getRawBody());
+            write(dir.resolve(key + ".json"), NodeUtil.writeValueAsBytes(meta));
+        } catch(IOException e) {
+            logger.warn("Unable to cache {}: {}", url, e.getMessage());
+        }
+    }
+
+    public byte[] readBody(Entry entry) {
+        try {
+            return Files.readAllBytes(entry.getBodyPath());
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private void write(Path path, byte[] bytes) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, bytes);
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Optional<String> getHeader(Map<String, String> headers, String name) {
+        return headers.entrySet()
+                .stream()
+                .filter(entry -> entry.getKey().equalsIgnoreCase(name))
+                .map(Map.Entry::getValue)
+                .findFirst();
+    }
+
+    private static String key(String url) {
+        try {
+            return ByteBufUtil.hexDump(MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8)));
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Entry {
+        private String etag;
+        private String lastModified;
+        private Path bodyPath;
+    }
+}
@@ -5,17 +5,30 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.FixedChannelPool;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
 import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -28,10 +41,25 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -39,6 +67,17 @@ import java.util.stream.Collectors;
  */
 public class NettyHttpClient {
     private static final Logger logger = LogManager.getLogger(NettyHttpClient.class);
+    private static final String RESPONSE_HANDLER = "response";
+    private static final Map<String, ChannelPool> pools = new ConcurrentHashMap<>();
+    private static final AtomicLong connectionsOpened = new AtomicLong();
+    private static final AtomicLong requestCount = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+    private static final AtomicLong downloadCount = new AtomicLong();
+    private static volatile double lastDownloadBytesPerSecond;
+
+    private static Options options = new Options();
+    private static EventLoopGroup eventLoopGroup;
+    private static SslContext sslContext;
 
     public static Single<ClientResponse> get(String url) {
         return get(url, Collections.emptyMap());
@@ -53,6 +92,33 @@ public class NettyHttpClient {
         return request(_url, HttpMethod.GET, new byte[0], headers);
     }
 
+    /**
+     * Conditional GET against the validators stored in the cache. On a 304 the cached body is
+     * returned and the response is flagged as not modified, so callers can skip reprocessing it.
+     */
+    public static Single<ClientResponse> get(String url, HttpCache cache) {
+        return Single.defer(() -> {
+            Optional<HttpCache.Entry> entry = cache.get(url);
+            Map<String, String> headers = new HashMap<>();
+            entry.ifPresent(e -> {
+                if(e.getEtag() != null)
+                    headers.put(HttpHeaderNames.IF_NONE_MATCH.toString(), e.getEtag());
+                if(e.getLastModified() != null)
+                    headers.put(HttpHeaderNames.IF_MODIFIED_SINCE.toString(), e.getLastModified());
+            });
+            return request(url, HttpMethod.GET, new byte[0], headers)
+                    .map(res -> {
+                        if(res.getStatusCode() == HttpResponseStatus.NOT_MODIFIED.code() && entry.isPresent()) {
+                            res.setNotModified(true);
+                            res.setRawBody(cache.readBody(entry.get()));
+                        } else if(res.getStatusCode() == HttpResponseStatus.OK.code()) {
+                            cache.put(url, res);
+                        }
+                        return res;
+                    });
+        });
+    }
+
     public static Single<ClientResponse> post(String url) {
         return post(url, Collections.emptyMap());
     }
@@ -95,132 +161,207 @@ public class NettyHttpClient {
 
     public static Single<ClientResponse> request(String url, HttpMethod method, byte[] body, Map<String, String> headers) {
         return Single.defer(() -> {
-            URI uri;
-            try {
-                URI u = new URI(url);
-                uri = new URI(u.getScheme(),
-                        null,
-                        u.getHost(),
-                        HttpScheme.HTTPS.name().toString().equals(u.getScheme()) ? HttpScheme.HTTPS.port() : HttpScheme.HTTP.port(),
-                        u.getPath(),
-                        u.getQuery(),
-                        null);
-            } catch(URISyntaxException e) {
-                throw new RuntimeException(e.getMessage());
-            }
-
-            SslContext sslCtx;
-            try {
-                if(uri.getPort() == HttpScheme.HTTPS.port())
-                    sslCtx = SslContextBuilder.forClient()
-                        .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
-                else
-                    sslCtx = null;
-            } catch (SSLException e) {
-                throw new RuntimeException(e.getMessage());
-            }
-
-            EventLoopGroup group = new NioEventLoopGroup();
             ClientResponse res = new ClientResponse();
-            Bootstrap bootstrap = new Bootstrap()
-                    .group(group)
-                    .channel(NioSocketChannel.class)
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel channel) {
-                            ChannelPipeline pipeline = channel.pipeline();
-                            if(sslCtx != null)
-                                pipeline.addLast(sslCtx.newHandler(channel.alloc()));
-                            pipeline.addLast(new HttpClientCodec());
-                            pipeline.addLast(new HttpContentDecompressor());
-                            pipeline.addLast(new SimpleChannelInboundHandler<HttpObject>() {
-                                HttpResponse response;
-                                Timer timer;
-                                ByteBuf data = Unpooled.buffer();
-
-                                @Override
-                                public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
-                                    if(msg instanceof HttpResponse) {
-                                        response = (HttpResponse) msg;
-
-                                        if(isBinaryFile(response.headers())) {
-                                            long contentLength = HttpUtil.getContentLength(response);
-                                            logger.info("Downloading: {}", url);
-                                            timer = new Timer();
-                                            timer.schedule(new TimerTask() {
-                                                @Override
-                                                public void run() {
-                                                    int percent = (int) (((double) data.readableBytes() / contentLength) * 100);
-                                                    logger.info("Progress: {}%", percent);
-                                                }
-                                            }, 0, 3000);
-                                        }
-
-                                        res.setStatusCode(response.status().code());
-                                        res.setHeaders(response.headers()
-                                                .entries()
-                                                .stream()
-                                                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
-                                    } else if(msg instanceof HttpContent) {
-                                        HttpContent content = (HttpContent) msg;
-                                        data = Unpooled.copiedBuffer(data, content.content());
-
-                                        if(content instanceof LastHttpContent) {
-                                            if(timer != null) {
-                                                timer.cancel();
-                                                timer.purge();
-                                                logger.info("Download complete");
-                                            }
-
-                                            res.setRawBody(data.array());
-                                            data.release();
-                                            ctx.close();
-                                        }
-                                    }
-                                }
-
-                                @Override
-                                public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-                                }
-
-                                private boolean isBinaryFile(HttpHeaders httpHeaders) {
-                                    return httpHeaders.contains(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM, true);
-                                }
-                            });
-                        }
-                    });
-
-            return getChannel(bootstrap.connect(uri.getHost(), uri.getPort()))
-                    .flatMap(channel -> {
-                        ByteBuf content = Unpooled.copiedBuffer(body);
-                        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri.toString(), content);
-                        request.headers().set(HttpHeaderNames.HOST, uri.getHost());
-                        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
-                        request.headers().set(HttpHeaderNames.CONTENT_TYPE, headers.getOrDefault(HttpHeaderNames.CONTENT_TYPE.toString(), HttpHeaderValues.APPLICATION_JSON.toString()));
-                        request.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
-                        headers.forEach((key, value) -> request.headers().set(key, value));
-                        channel.config().setConnectTimeoutMillis((int) TimeUnit.SECONDS.toMillis(2));
-                        return getChannel(channel.writeAndFlush(request));
-                    })
-                    .flatMap(channel -> getChannel(channel.closeFuture()))
+            return execute(url, method, body, headers, new BodyHandler(url, res))
                     .flatMap(Void -> {
                         if(res.getRawBody() == null || res.getStatusCode() == -1)
                             return Single.error(new RuntimeException("Bad response"));
                         return Single.just(res);
-                    })
-                    .doFinally(group::shutdownGracefully);
+                    });
         });
     }
 
-    private static Single<Channel> getChannel(ChannelFuture channelFuture) {
-        CompletableFuture<Channel> completableFuture = new CompletableFuture<>();
-        channelFuture.addListener((ChannelFuture future) -> {
-            if(future.isSuccess())
-                completableFuture.complete(future.channel());
-            else
-                completableFuture.completeExceptionally(future.cause());
+    public static Single<DownloadResponse> download(String url, Path path) {
+        return download(url, path, Collections.emptyMap());
+    }
+
+    public static Single<DownloadResponse> download(String url, Path path, Map<String, String> headers) {
+        return Single.defer(() -> {
+            DownloadResponse res = new DownloadResponse();
+            res.setPath(path);
+            return execute(url, HttpMethod.GET, new byte[0], headers, new FileHandler(url, path, res))
+                    .map(Void -> res);
+        });
+    }
+
+    /**
+     * Status and headers only, for checking size and range support before a download.
+     */
+    public static Single<ClientResponse> head(String url) {
+        return Single.defer(() -> {
+            ClientResponse res = new ClientResponse();
+            return execute(url, HttpMethod.HEAD, new byte[0], Collections.emptyMap(), new HeadHandler(url, res))
+                    .map(Void -> res);
+        });
+    }
+
+    /**
+     * Fetches bytes start..end (inclusive) into the file at the same offset. The server must answer
+     * 206 for exactly that range. Received bytes are reported as they are written, so a caller can
+     * resume from the last reported offset.
+     */
+    public static Single<Long> downloadRange(String url, FileChannel file, long start, long end, LongConsumer onWritten) {
+        return Single.defer(() -> {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(HttpHeaderNames.RANGE.toString(), "bytes=" + start + "-" + end);
+            // a compressed body would not line up with file offsets
+            headers.put(HttpHeaderNames.ACCEPT_ENCODING.toString(), HttpHeaderValues.IDENTITY.toString());
+            RangeHandler handler = new RangeHandler(url, file, start, end, onWritten);
+            return execute(url, HttpMethod.GET, new byte[0], headers, handler)
+                    .map(Void -> handler.getWritten());
+        });
+    }
+
+    /**
+     * Replaces the connection settings. Pools that already exist keep the settings they were created with.
+     */
+    public static void configure(Options options) {
+        NettyHttpClient.options = options;
+    }
+
+    public static long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public static long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public static long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public static long getDownloadCount() {
+        return downloadCount.get();
+    }
+
+    public static double getLastDownloadBytesPerSecond() {
+        return lastDownloadBytesPerSecond;
+    }
+
+    static int getMaxConnectionsPerHost() {
+        return options.getMaxConnectionsPerHost();
+    }
+
+    static void recordDownload(long bytes, long elapsedNanos) {
+        lastDownloadBytesPerSecond = bytes / (Math.max(elapsedNanos, 1) / 1e9);
+        downloadCount.incrementAndGet();
+    }
+
+    private static Single<Boolean> execute(String url, HttpMethod method, byte[] body, Map<String, String> headers, ResponseHandler handler) {
+        URI uri;
+        try {
+            URI u = new URI(url);
+            uri = new URI(u.getScheme(),
+                    null,
+                    u.getHost(),
+                    u.getPort() != -1 ? u.getPort() : defaultPort(u),
+                    u.getPath(),
+                    u.getQuery(),
+                    null);
+        } catch(URISyntaxException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        ChannelPool pool = getPool(uri);
+        return fromFuture(pool.acquire())
+                .flatMap(channel -> {
+                    requestCount.incrementAndGet();
+                    channel.pipeline().addLast(RESPONSE_HANDLER, handler);
+                    ByteBuf content = Unpooled.wrappedBuffer(body);
+                    DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : ""), content);
+                    request.headers().set(HttpHeaderNames.HOST, uri.getPort() == defaultPort(uri) ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+                    request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                    request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+                    request.headers().set(HttpHeaderNames.CONTENT_TYPE, headers.getOrDefault(HttpHeaderNames.CONTENT_TYPE.toString(), HttpHeaderValues.APPLICATION_JSON.toString()));
+                    request.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+                    headers.forEach((key, value) -> request.headers().set(key, value));
+                    channel.writeAndFlush(request).addListener((ChannelFuture future) -> {
+                        if(!future.isSuccess())
+                            handler.fail(future.cause());
+                    });
+                    AtomicBoolean released = new AtomicBoolean();
+                    Runnable releaseOnce = () -> {
+                        if(released.compareAndSet(false, true))
+                            release(pool, channel, handler);
+                    };
+                    // the channel goes back before the result is emitted, so a caller's next request can reuse it
+                    return Single.<Boolean>create(emitter -> handler.getCompletion().whenComplete((Void, e) -> {
+                        releaseOnce.run();
+                        if(e != null)
+                            emitter.tryOnError(e);
+                        else
+                            emitter.onSuccess(true);
+                    }))
+                            .doOnDispose(releaseOnce::run);
+                })
+                .observeOn(Schedulers.io());
+    }
+
+    private static int defaultPort(URI uri) {
+        return HttpScheme.HTTPS.name().toString().equals(uri.getScheme()) ? HttpScheme.HTTPS.port() : HttpScheme.HTTP.port();
+    }
+
+    private static void release(ChannelPool pool, Channel channel, ResponseHandler handler) {
+        handler.fail(new CancellationException("Request cancelled"));
+        if(channel.pipeline().context(handler) != null)
+            channel.pipeline().remove(handler);
+        if(!handler.isReusable() || !channel.isActive())
+            channel.close();
+        pool.release(channel);
+    }
+
+    private static ChannelPool getPool(URI uri) {
+        String key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        return pools.computeIfAbsent(key, k -> {
+            Options opts = options;
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(getEventLoopGroup())
+                    .channel(Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, opts.getConnectTimeoutMillis())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .remoteAddress(uri.getHost(), uri.getPort());
+            SslContext sslCtx = HttpScheme.HTTPS.name().toString().equals(uri.getScheme()) ? getSslContext() : null;
+            return new FixedChannelPool(bootstrap,
+                    new ConnectionInitializer(sslCtx, uri.getHost(), uri.getPort(), opts.getIdleTimeoutSeconds()),
+                    ChannelHealthChecker.ACTIVE,
+                    FixedChannelPool.AcquireTimeoutAction.FAIL,
+                    opts.getAcquireTimeoutMillis(),
+                    opts.getMaxConnectionsPerHost(),
+                    opts.getMaxPendingAcquires());
         });
-        return Single.fromFuture(completableFuture);
+    }
+
+    private static synchronized EventLoopGroup getEventLoopGroup() {
+        if(eventLoopGroup == null) {
+            ThreadFactory threadFactory = new DefaultThreadFactory("http-client", true);
+            eventLoopGroup = Epoll.isAvailable()
+                    ? new EpollEventLoopGroup(options.getEventLoopThreads(), threadFactory)
+                    : new NioEventLoopGroup(options.getEventLoopThreads(), threadFactory);
+        }
+        return eventLoopGroup;
+    }
+
+    private static synchronized SslContext getSslContext() {
+        if(sslContext == null) {
+            try {
+                sslContext = SslContextBuilder.forClient()
+                        .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+            } catch(SSLException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        return sslContext;
+    }
+
+    private static <T> Single<T> fromFuture(Future<T> future) {
+        return Single.create(emitter -> future.addListener((Future<T> f) -> {
+            if(f.isSuccess())
+                emitter.onSuccess(f.getNow());
+            else
+                emitter.onError(f.cause());
+        }));
     }
 
     private static byte[] bodyToBytes(Map<String, Object> body, Map<String, String> headers) {
@@ -252,12 +393,364 @@ public class NettyHttpClient {
         }
     }
 
+    private static Map<String, String> toHeaderMap(HttpHeaders httpHeaders) {
+        return httpHeaders.entries()
+                .stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> b));
+    }
+
+    private static Timer startProgressTimer(String url, long contentLength, LongSupplier received) {
+        logger.info("Downloading: {}", url);
+        Timer timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                int percent = contentLength > 0 ? (int) (((double) received.getAsLong() / contentLength) * 100) : 0;
+                logger.info("Progress: {}%", percent);
+            }
+        }, 0, 3000);
+        return timer;
+    }
+
+    private static void stopProgressTimer(Timer timer) {
+        if(timer != null) {
+            timer.cancel();
+            timer.purge();
+            logger.info("Download complete");
+        }
+    }
+
+    private static class ConnectionInitializer extends AbstractChannelPoolHandler {
+        private final SslContext sslCtx;
+        private final String host;
+        private final int port;
+        private final int idleTimeoutSeconds;
+
+        ConnectionInitializer(SslContext sslCtx, String host, int port, int idleTimeoutSeconds) {
+            this.sslCtx = sslCtx;
+            this.host = host;
+            this.port = port;
+            this.idleTimeoutSeconds = idleTimeoutSeconds;
+        }
+
+        @Override
+        public void channelCreated(Channel channel) {
+            connectionsOpened.incrementAndGet();
+            logger.debug("Opened connection to {}:{}", host, port);
+            ChannelPipeline pipeline = channel.pipeline();
+            if(sslCtx != null)
+                pipeline.addLast(sslCtx.newHandler(channel.alloc(), host, port));
+            pipeline.addLast(new IdleStateHandler(0, 0, idleTimeoutSeconds));
+            pipeline.addLast(new ChannelDuplexHandler() {
+                @Override
+                public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+                    if(evt instanceof IdleStateEvent)
+                        ctx.close();
+                    else
+                        super.userEventTriggered(ctx, evt);
+                }
+            });
+            pipeline.addLast(new HttpClientCodec());
+            pipeline.addLast(new HttpContentDecompressor());
+        }
+    }
+
+    /**
+     * Handles a single response on a pooled connection. The connection goes back to the
+     * pool once the last chunk has been read, unless the server asked to close it.
+     */
+    private static abstract class ResponseHandler extends SimpleChannelInboundHandler<HttpObject> {
+        protected final String url;
+        @Getter private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private boolean keepAlive;
+
+        ResponseHandler(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if(completion.isDone())
+                return;
+            if(msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                keepAlive = HttpUtil.isKeepAlive(response);
+                onResponse(ctx, response);
+            }
+            if(msg instanceof HttpContent) {
+                HttpContent content = (HttpContent) msg;
+                bytesReceived.addAndGet(content.content().readableBytes());
+                onContent(ctx, content);
+                if(content instanceof LastHttpContent) {
+                    onComplete(ctx);
+                    completion.complete(null);
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            fail(new IOException("Connection closed before response completed: " + url));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(cause);
+            ctx.close();
+        }
+
+        void fail(Throwable cause) {
+            if(completion.completeExceptionally(cause))
+                onFailure();
+        }
+
+        boolean isReusable() {
+            return keepAlive && completion.isDone() && !completion.isCompletedExceptionally();
+        }
+
+        protected abstract void onResponse(ChannelHandlerContext ctx, HttpResponse response) throws Exception;
+
+        protected abstract void onContent(ChannelHandlerContext ctx, HttpContent content) throws Exception;
+
+        protected abstract void onComplete(ChannelHandlerContext ctx) throws Exception;
+
+        protected void onFailure() {
+        }
+    }
+
+    private static class BodyHandler extends ResponseHandler {
+        private final ClientResponse res;
+        private Timer timer;
+        private ByteBuf data;
+
+        BodyHandler(String url, ClientResponse res) {
+            super(url);
+            this.res = res;
+        }
+
+        @Override
+        protected void onResponse(ChannelHandlerContext ctx, HttpResponse response) {
+            long contentLength = HttpUtil.getContentLength(response, -1L);
+            data = ctx.alloc().heapBuffer(contentLength > 0 && contentLength <= Integer.MAX_VALUE ? (int) contentLength : 256);
+
+            if(isBinaryFile(response.headers())) {
+                ByteBuf received = data;
+                timer = startProgressTimer(url, contentLength, received::readableBytes);
+            }
+
+            res.setStatusCode(response.status().code());
+            res.setHeaders(toHeaderMap(response.headers()));
+        }
+
+        @Override
+        protected void onContent(ChannelHandlerContext ctx, HttpContent content) {
+            data.writeBytes(content.content());
+        }
+
+        @Override
+        protected void onComplete(ChannelHandlerContext ctx) {
+            stopProgressTimer(timer);
+            timer = null;
+            res.setRawBody(ByteBufUtil.getBytes(data));
+            data.release();
+            data = null;
+        }
+
+        @Override
+        protected void onFailure() {
+            stopProgressTimer(timer);
+            timer = null;
+            if(data != null) {
+                data.release();
+                data = null;
+            }
+        }
+
+        private boolean isBinaryFile(HttpHeaders httpHeaders) {
+            return httpHeaders.contains(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM, true);
+        }
+    }
+
+    private static class HeadHandler extends ResponseHandler {
+        private final ClientResponse res;
+
+        HeadHandler(String url, ClientResponse res) {
+            super(url);
+            this.res = res;
+        }
+
+        @Override
+        protected void onResponse(ChannelHandlerContext ctx, HttpResponse response) {
+            res.setStatusCode(response.status().code());
+            res.setHeaders(toHeaderMap(response.headers()));
+        }
+
+        @Override
+        protected void onContent(ChannelHandlerContext ctx, HttpContent content) {
+        }
+
+        @Override
+        protected void onComplete(ChannelHandlerContext ctx) {
+            res.setRawBody(new byte[0]);
+        }
+    }
+
+    /**
+     * Writes one byte range of a response into a shared file with positional writes, so several
+     * ranges of the same file can be fetched at once.
+     */
+    private static class RangeHandler extends ResponseHandler {
+        private final FileChannel file;
+        private final long start;
+        private final long end;
+        private final LongConsumer onWritten;
+        @Getter private long written;
+
+        RangeHandler(String url, FileChannel file, long start, long end, LongConsumer onWritten) {
+            super(url);
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.onWritten = onWritten;
+        }
+
+        @Override
+        protected void onResponse(ChannelHandlerContext ctx, HttpResponse response) throws IOException {
+            if(response.status().code() != HttpResponseStatus.PARTIAL_CONTENT.code())
+                throw new IOException("Unexpected status " + response.status() + " for range " + start + "-" + end + ": " + url);
+            String contentRange = response.headers().get(HttpHeaderNames.CONTENT_RANGE, "");
+            if(!contentRange.startsWith("bytes " + start + "-" + end + "/"))
+                throw new IOException("Unexpected range \"" + contentRange + "\", expected " + start + "-" + end + ": " + url);
+        }
+
+        @Override
+        protected void onContent(ChannelHandlerContext ctx, HttpContent content) throws IOException {
+            ByteBuf buf = content.content();
+            int length = buf.readableBytes();
+            if(start + written + length > end + 1)
+                throw new IOException("Range " + start + "-" + end + " overran: " + url);
+            for(ByteBuffer nioBuffer : buf.nioBuffers()) {
+                while(nioBuffer.hasRemaining())
+                    written += file.write(nioBuffer, start + written);
+            }
+            onWritten.accept(length);
+        }
+
+        @Override
+        protected void onComplete(ChannelHandlerContext ctx) throws IOException {
+            if(written != end - start + 1)
+                throw new IOException("Range " + start + "-" + end + " ended after " + written + " bytes: " + url);
+        }
+    }
+
+    /**
+     * Writes the response body to a temp file next to the target as chunks arrive,
+     * hashing as it goes, and moves it into place once the last chunk is written.
+     */
+    private static class FileHandler extends ResponseHandler {
+        private final Path path;
+        private final Path tempPath;
+        private final DownloadResponse res;
+        private final MessageDigest digest;
+        private FileChannel fileChannel;
+        private Timer timer;
+        private long received;
+        private long startNanos;
+
+        FileHandler(String url, Path path, DownloadResponse res) {
+            super(url);
+            this.path = path;
+            this.tempPath = path.resolveSibling(path.getFileName() + ".part");
+            this.res = res;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1");
+            } catch(NoSuchAlgorithmException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+
+        @Override
+        protected void onResponse(ChannelHandlerContext ctx, HttpResponse response) throws IOException {
+            res.setStatusCode(response.status().code());
+            res.setHeaders(toHeaderMap(response.headers()));
+            if(response.status().code() != HttpResponseStatus.OK.code())
+                throw new IOException("Unexpected status " + response.status() + ": " + url);
+            fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            timer = startProgressTimer(url, HttpUtil.getContentLength(response, -1L), () -> received);
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        protected void onContent(ChannelHandlerContext ctx, HttpContent content) throws IOException {
+            ByteBuf buf = content.content();
+            for(ByteBuffer nioBuffer : buf.nioBuffers()) {
+                digest.update(nioBuffer.duplicate());
+                while(nioBuffer.hasRemaining())
+                    fileChannel.write(nioBuffer);
+            }
+            received += buf.readableBytes();
+        }
+
+        @Override
+        protected void onComplete(ChannelHandlerContext ctx) throws IOException {
+            stopProgressTimer(timer);
+            timer = null;
+            fileChannel.force(false);
+            fileChannel.close();
+            fileChannel = null;
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            res.setSize(received);
+            res.setSha1(ByteBufUtil.hexDump(digest.digest()));
+            recordDownload(received, System.nanoTime() - startNanos);
+        }
+
+        @Override
+        protected void onFailure() {
+            stopProgressTimer(timer);
+            timer = null;
+            try {
+                if(fileChannel != null) {
+                    fileChannel.close();
+                    fileChannel = null;
+                }
+                Files.deleteIfExists(tempPath);
+            } catch(IOException e) {
+                logger.error("Unable to remove partial download: {}", tempPath);
+            }
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private int eventLoopThreads = 2;
+        private int maxConnectionsPerHost = 4;
+        private int maxPendingAcquires = 64;
+        private long acquireTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        private int connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(5);
+        private int idleTimeoutSeconds = 60;
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class DownloadResponse {
+        private int statusCode;
+        private Path path;
+        private String sha1;
+        private long size;
+        private Map<String, String> headers = new HashMap<>();
+    }
+
     @Getter
     @Setter
     @ToString
     public static class ClientResponse {
         private int statusCode;
         private byte[] rawBody;
+        private boolean notModified;
         private Map<String, String> headers = new HashMap<>();
 
         public String getBodyString() {
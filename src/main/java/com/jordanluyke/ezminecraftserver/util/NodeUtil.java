@@ -1,12 +1,17 @@
 package com.jordanluyke.ezminecraftserver.util;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -41,6 +46,92 @@ public class NodeUtil {
         }
     }
 
+    /**
+     * Streams through a version manifest and returns the entry for {@code latest.release}, or the first
+     * release listed if that is missing. Stops reading as soon as the entry is found and builds no tree.
+     */
+    public static Optional<ManifestVersion> getLatestRelease(byte[] manifest) {
+        try(JsonParser parser = mapper.getFactory().createParser(manifest)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT)
+                throw new RuntimeException("Bad manifest");
+            String latestRelease = null;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if(field.equals("latest") && token == JsonToken.START_OBJECT) {
+                    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String latestField = parser.getCurrentName();
+                        parser.nextToken();
+                        if(latestField.equals("release"))
+                            latestRelease = parser.getValueAsString();
+                        else
+                            parser.skipChildren();
+                    }
+                } else if(field.equals("versions") && token == JsonToken.START_ARRAY) {
+                    while(parser.nextToken() == JsonToken.START_OBJECT) {
+                        ManifestVersion version = readManifestVersion(parser);
+                        if(latestRelease != null ? latestRelease.equals(version.getId()) : "release".equals(version.getType()))
+                            return Optional.of(version);
+                    }
+                    return Optional.empty();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return Optional.empty();
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Streams through a version manifest and returns the entry with the given id.
+     */
+    public static Optional<ManifestVersion> getVersion(byte[] manifest, String id) {
+        try(JsonParser parser = mapper.getFactory().createParser(manifest)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT)
+                throw new RuntimeException("Bad manifest");
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if(field.equals("versions") && token == JsonToken.START_ARRAY) {
+                    while(parser.nextToken() == JsonToken.START_OBJECT) {
+                        ManifestVersion version = readManifestVersion(parser);
+                        if(id.equals(version.getId()))
+                            return Optional.of(version);
+                    }
+                    return Optional.empty();
+                }
+                parser.skipChildren();
+            }
+            return Optional.empty();
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private static ManifestVersion readManifestVersion(JsonParser parser) throws IOException {
+        ManifestVersion version = new ManifestVersion();
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch(field) {
+                case "id":
+                    version.setId(parser.getValueAsString());
+                    break;
+                case "type":
+                    version.setType(parser.getValueAsString());
+                    break;
+                case "url":
+                    version.setUrl(parser.getValueAsString());
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return version;
+    }
+
     public static byte[] writeValueAsBytes(Object o) {
         try {
             return mapper.writeValueAsBytes(o);
@@ -67,4 +158,13 @@ public class NodeUtil {
     public static Optional<Integer> getInteger(String field, JsonNode node) {
         return get(field, node).map(Integer::parseInt);
     }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class ManifestVersion {
+        private String id;
+        private String type;
+        private String url;
+    }
 }
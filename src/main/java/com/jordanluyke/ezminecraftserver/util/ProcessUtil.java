@@ -0,0 +1,30 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Optional;
+
+/**
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ProcessUtil {
+
+    /**
+     * Process.pid() only exists from Java 9, so fall back to the pid field of the Java 8 UNIXProcess.
+     */
+    public static Optional<Long> getPid(Process process) {
+        try {
+            Method pidMethod = Process.class.getMethod("pid");
+            return Optional.of((Long) pidMethod.invoke(process));
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Field pidField = process.getClass().getDeclaredField("pid");
+            pidField.setAccessible(true);
+            return Optional.of((long) pidField.getInt(process));
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+}
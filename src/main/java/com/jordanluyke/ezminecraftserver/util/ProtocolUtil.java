@@ -0,0 +1,47 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The field encodings of the Minecraft network protocol.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ProtocolUtil {
+    private static final int maxStringBytes = 32767 * 4;
+
+    public static void writeVarInt(ByteBuf buf, int value) {
+        while((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    public static int readVarInt(ByteBuf buf) {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new CorruptedFrameException("VarInt too long");
+    }
+
+    public static void writeString(ByteBuf buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    public static String readString(ByteBuf buf) {
+        int length = readVarInt(buf);
+        if(length < 0 || length > maxStringBytes || length > buf.readableBytes())
+            throw new CorruptedFrameException("Bad string length " + length);
+        return buf.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,265 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.exceptions.CompositeException;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Downloads large files as byte ranges fetched over several pooled connections at once. Which ranges
+ * have arrived is saved next to the file, so a download that fails or is interrupted by a restart
+ * carries on from where it stopped. Servers that do not advertise range support get one plain request.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RangedDownloader {
+    private static final Logger logger = LogManager.getLogger(RangedDownloader.class);
+
+    private final Options options;
+
+    public RangedDownloader(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Downloads the url to the path. The returned sha1 is computed over the assembled file, so callers
+     * can check it against a published hash.
+     */
+    public Single<NettyHttpClient.DownloadResponse> download(String url, Path path) {
+        return NettyHttpClient.head(url)
+                .retryWhen(this::retryWithDelay)
+                .flatMap(head -> {
+                    long size = getHeader(head.getHeaders(), HttpHeaderNames.CONTENT_LENGTH.toString()).map(Long::parseLong).orElse(-1L);
+                    boolean acceptsRanges = getHeader(head.getHeaders(), HttpHeaderNames.ACCEPT_RANGES.toString()).filter(v -> v.equalsIgnoreCase("bytes")).isPresent();
+                    if(head.getStatusCode() != HttpResponseStatus.OK.code() || !acceptsRanges || size <= options.getSegmentBytes()) {
+                        logger.info("Downloading {} in one request", url);
+                        Files.deleteIfExists(getStatePath(path));
+                        return NettyHttpClient.download(url, path)
+                                .retryWhen(this::retryWithDelay);
+                    }
+                    String validator = getHeader(head.getHeaders(), HttpHeaderNames.ETAG.toString())
+                            .orElseGet(() -> getHeader(head.getHeaders(), HttpHeaderNames.LAST_MODIFIED.toString()).orElse(null));
+                    return downloadRanges(url, path, size, validator);
+                });
+    }
+
+    private Single<NettyHttpClient.DownloadResponse> downloadRanges(String url, Path path, long size, String validator) throws IOException {
+        Path partPath = getPartPath(path);
+        Path statePath = getStatePath(path);
+        State state = loadState(statePath)
+                .filter(s -> s.getUrl().equals(url) && s.getSize() == size && Objects.equals(s.getValidator(), validator) && Files.exists(partPath))
+                .orElseGet(() -> newState(url, size, validator));
+        AtomicLong received = new AtomicLong(state.getReceived());
+        if(received.get() > 0)
+            logger.info("Resuming {} at {} of {} bytes", url, received.get(), size);
+        else
+            Files.deleteIfExists(partPath);
+        saveState(statePath, state, null);
+
+        List<Segment> pending = state.getSegments()
+                .stream()
+                .filter(segment -> !segment.isDone())
+                .collect(Collectors.toList());
+        int connections = Math.max(1, Math.min(options.getConnections(), NettyHttpClient.getMaxConnectionsPerHost()));
+        logger.info("Downloading {} as {} ranges over {} connections", url, pending.size(), connections);
+        FileChannel file = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long startNanos = System.nanoTime();
+        long resumedBytes = received.get();
+        Disposable progress = Observable.interval(3, 3, TimeUnit.SECONDS)
+                .subscribe(tick -> {
+                    double seconds = (System.nanoTime() - startNanos) / 1e9;
+                    logger.info("Progress: {}% ({} KB/s)", (int) (received.get() * 100 / size), (long) ((received.get() - resumedBytes) / seconds / 1024));
+                });
+
+        return Flowable.fromIterable(pending)
+                .flatMapSingle(segment -> fetchSegment(url, file, segment, received)
+                        .doOnSuccess(Void -> saveState(statePath, state, file)), true, connections)
+                .ignoreElements()
+                .doOnTerminate(() -> closeDownload(statePath, state, file, progress))
+                .doOnDispose(() -> closeDownload(statePath, state, file, progress))
+                .onErrorResumeNext(e -> {
+                    Throwable cause = e instanceof CompositeException ? ((CompositeException) e).getExceptions().get(0) : e;
+                    return Completable.error(new RuntimeException("Download stopped at " + received.get() + " of " + size + " bytes, will resume: " + cause.getMessage()));
+                })
+                .andThen(Single.fromCallable(() -> {
+                    NettyHttpClient.DownloadResponse res = new NettyHttpClient.DownloadResponse();
+                    res.setStatusCode(HttpResponseStatus.OK.code());
+                    res.setPath(path);
+                    res.setSize(Files.size(partPath));
+                    res.setSha1(sha1(partPath));
+                    Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.deleteIfExists(statePath);
+                    NettyHttpClient.recordDownload(received.get() - resumedBytes, System.nanoTime() - startNanos);
+                    logger.info("Download complete");
+                    return res;
+                }).subscribeOn(Schedulers.io()));
+    }
+
+    /**
+     * Keeps whatever arrived so the next attempt can resume from it.
+     */
+    private void closeDownload(Path statePath, State state, FileChannel file, Disposable progress) {
+        progress.dispose();
+        try {
+            saveState(statePath, state, file);
+            file.close();
+        } catch(IOException e) {
+            logger.warn("Unable to save download progress: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Each retry asks only for the part of the range that has not arrived yet.
+     */
+    private Single<Long> fetchSegment(String url, FileChannel file, Segment segment, AtomicLong received) {
+        return Single.defer(() -> NettyHttpClient.downloadRange(url, file, segment.getStart() + segment.getReceived(), segment.getEnd(), bytes -> {
+            segment.setReceived(segment.getReceived() + bytes);
+            received.addAndGet(bytes);
+        }))
+                .retryWhen(this::retryWithDelay);
+    }
+
+    private Flowable<Long> retryWithDelay(Flowable<Throwable> errors) {
+        AtomicInteger attempts = new AtomicInteger();
+        return errors.flatMap(e -> {
+            int attempt = attempts.incrementAndGet();
+            if(attempt > options.getRetries())
+                return Flowable.error(e);
+            logger.warn("Download attempt {} failed, retrying: {}", attempt, e.getMessage());
+            return Flowable.timer(options.getRetryDelaySeconds() * attempt, TimeUnit.SECONDS);
+        });
+    }
+
+    private State newState(String url, long size, String validator) {
+        State state = new State();
+        state.setUrl(url);
+        state.setSize(size);
+        state.setValidator(validator);
+        for(long start = 0; start < size; start += options.getSegmentBytes()) {
+            Segment segment = new Segment();
+            segment.setStart(start);
+            segment.setEnd(Math.min(start + options.getSegmentBytes(), size) - 1);
+            state.getSegments().add(segment);
+        }
+        return state;
+    }
+
+    private Optional<State> loadState(Path statePath) {
+        if(!Files.exists(statePath))
+            return Optional.empty();
+        try {
+            return Optional.of(NodeUtil.mapper.readValue(statePath.toFile(), State.class));
+        } catch(IOException e) {
+            logger.warn("Ignoring unreadable download state: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * The state is serialized before the file is forced, so it never claims bytes that are not yet on disk.
+     */
+    private synchronized void saveState(Path statePath, State state, FileChannel file) throws IOException {
+        byte[] bytes = NodeUtil.mapper.writeValueAsBytes(state);
+        if(file != null && file.isOpen())
+            file.force(false);
+        Path tempPath = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+        Files.write(tempPath, bytes);
+        Files.move(tempPath, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path getPartPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".part");
+    }
+
+    private static Path getStatePath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".part.json");
+    }
+
+    private static Optional<String> getHeader(Map<String, String> headers, String name) {
+        return headers.entrySet()
+                .stream()
+                .filter(entry -> entry.getKey().equalsIgnoreCase(name))
+                .map(Map.Entry::getValue)
+                .findFirst();
+    }
+
+    private static String sha1(Path path) {
+        try(InputStream in = Files.newInputStream(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+            return ByteBufUtil.hexDump(digest.digest());
+        } catch(IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class State {
+        private String url;
+        private long size;
+        /** ETag or Last-Modified of the remote file; progress is discarded if it changes */
+        private String validator;
+        private List<Segment> segments = new ArrayList<>();
+
+        long getReceived() {
+            return segments.stream()
+                    .mapToLong(Segment::getReceived)
+                    .sum();
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Segment {
+        private long start;
+        private long end;
+        private volatile long received;
+
+        boolean isDone() {
+            return received >= end - start + 1;
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        /** ranges fetched at once, capped by http.maxConnectionsPerHost */
+        private int connections = 4;
+        private long segmentBytes = 4 * 1024 * 1024;
+        private int retries = 5;
+        private int retryDelaySeconds = 2;
+    }
+}
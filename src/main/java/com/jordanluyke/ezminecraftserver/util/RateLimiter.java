@@ -0,0 +1,47 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by any number of threads, used to cap disk throughput in bytes per second.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RateLimiter {
+    private final long bytesPerSecond;
+    private double available;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the sustained rate, or 0 for no limit
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    /**
+     * Blocks until the given number of bytes may be read or written. Requests larger than one second
+     * of budget are allowed through and paid back by later callers.
+     */
+    public void acquire(long bytes) {
+        if(bytesPerSecond <= 0)
+            return;
+        long waitNanos;
+        synchronized(this) {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - refilledAt) * bytesPerSecond / 1e9);
+            refilledAt = now;
+            available -= bytes;
+            waitNanos = available < 0 ? (long) (-available * 1e9 / bytesPerSecond) : 0;
+        }
+        if(waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Edits server.properties in place, keeping comments and the order of keys the server wrote.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ServerProperties {
+    private final Path path;
+    private final List<String> lines;
+
+    private ServerProperties(Path path, List<String> lines) {
+        this.path = path;
+        this.lines = lines;
+    }
+
+    /**
+     * An empty file is used when the server has not written one yet; it fills in the remaining keys on first start.
+     */
+    public static ServerProperties load(Path path) {
+        try {
+            List<String> lines = Files.exists(path) ? Files.readAllLines(path, StandardCharsets.ISO_8859_1) : new ArrayList<>();
+            return new ServerProperties(path, new ArrayList<>(lines));
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public Optional<String> get(String key) {
+        int index = indexOf(key);
+        if(index == -1)
+            return Optional.empty();
+        String line = lines.get(index);
+        return Optional.of(line.substring(line.indexOf('=') + 1).trim());
+    }
+
+    public void set(String key, String value) {
+        int index = indexOf(key);
+        if(index == -1)
+            lines.add(key + "=" + value);
+        else
+            lines.set(index, key + "=" + value);
+    }
+
+    public void save() {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tempPath, lines, StandardCharsets.ISO_8859_1);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private int indexOf(String key) {
+        for(int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if(line.startsWith("#") || line.startsWith("!"))
+                continue;
+            int separator = line.indexOf('=');
+            if(separator != -1 && line.substring(0, separator).trim().equals(key))
+                return i;
+        }
+        return -1;
+    }
+}
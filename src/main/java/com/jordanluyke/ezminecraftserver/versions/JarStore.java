@@ -0,0 +1,227 @@
+package com.jordanluyke.ezminecraftserver.versions;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.RangedDownloader;
+import io.netty.buffer.ByteBufUtil;
+import io.reactivex.rxjava3.core.Single;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Server jars kept as versions/&lt;sha1&gt;.jar, each verified against the SHA-1 and size from its
+ * package before it enters the store. The live jar is a symlink to one of them, so switching to a
+ * stored version is a rename and needs no download. The least recently used jars beyond "keep" are deleted.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class JarStore {
+    private static final Logger logger = LogManager.getLogger(JarStore.class);
+    private static final String indexFile = "index.json";
+
+    private final Path dir;
+    private final Options options;
+    private final RangedDownloader downloader;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Single<Entry>> fetching = new ConcurrentHashMap<>();
+
+    public JarStore(Path dir, Options options, RangedDownloader downloader) {
+        this.dir = dir;
+        this.options = options;
+        this.downloader = downloader;
+        Path indexPath = dir.resolve(indexFile);
+        if(Files.exists(indexPath)) {
+            try {
+                List<Entry> stored = NodeUtil.mapper.readValue(indexPath.toFile(), new TypeReference<List<Entry>>() {});
+                stored.forEach(entry -> entries.put(entry.getSha1(), entry));
+            } catch(IOException e) {
+                logger.warn("Ignoring unreadable jar index: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the stored jar for a version id, if one is present on disk
+     */
+    public synchronized Optional<Entry> findByVersion(String version) {
+        return entries.values()
+                .stream()
+                .filter(entry -> entry.getVersion().equals(version))
+                .filter(entry -> Files.exists(getPath(entry)))
+                .findFirst();
+    }
+
+    /**
+     * Returns the stored jar with this hash, downloading it first if it is not in the store. The download
+     * only enters the store once its hash and size match. Concurrent fetches of one jar, such as an update
+     * and a mirror request, share a single download.
+     */
+    public Single<Entry> fetch(String version, String url, String sha1, long size) {
+        return Single.defer(() -> fetching.computeIfAbsent(sha1.toLowerCase(), key -> download(version, url, sha1, size)
+                .doFinally(() -> fetching.remove(key))
+                .cache()));
+    }
+
+    /**
+     * @return the stored jar with this hash, if it is present on disk
+     */
+    public synchronized Optional<Entry> get(String sha1) {
+        Entry entry = entries.get(sha1.toLowerCase());
+        if(entry == null || !Files.exists(getPath(entry)))
+            return Optional.empty();
+        return Optional.of(entry);
+    }
+
+    public Path getPath(Entry entry) {
+        return dir.resolve(entry.getSha1() + ".jar");
+    }
+
+    private Single<Entry> download(String version, String url, String sha1, long size) {
+        return Single.defer(() -> {
+            Optional<Entry> stored = get(sha1);
+            if(stored.isPresent()) {
+                logger.info("Server {} already stored", version);
+                return Single.just(stored.get());
+            }
+            Path path = dir.resolve(sha1 + ".jar");
+            Path unverifiedPath = dir.resolve(sha1 + ".jar.unverified");
+            Files.createDirectories(dir);
+            logger.info("Fetching server version: {}", version);
+            return downloader.download(url, unverifiedPath)
+                    .map(res -> {
+                        if(!res.getSha1().equalsIgnoreCase(sha1) || res.getSize() != size) {
+                            Files.deleteIfExists(unverifiedPath);
+                            throw new RuntimeException("Download of " + version + " does not match its package: sha1 " + res.getSha1() + " size " + res.getSize() + ", expected sha1 " + sha1 + " size " + size);
+                        }
+                        Files.move(unverifiedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        Entry entry = new Entry();
+                        entry.setVersion(version);
+                        entry.setSha1(sha1.toLowerCase());
+                        entry.setSize(size);
+                        entry.setLastUsed(System.currentTimeMillis());
+                        synchronized(this) {
+                            entries.put(entry.getSha1(), entry);
+                            saveIndex();
+                        }
+                        logger.info("Stored {} bytes of {} as {}", size, version, path.getFileName());
+                        return entry;
+                    });
+        });
+    }
+
+    /**
+     * Re-checks the stored jar's hash, then atomically points the link at it and prunes old jars.
+     */
+    public synchronized void activate(Entry entry, Path link) {
+        Path target = getPath(entry);
+        String actual = sha1(target);
+        if(!actual.equals(entry.getSha1())) {
+            entries.remove(entry.getSha1());
+            saveIndex();
+            throw new RuntimeException("Stored jar " + target.getFileName() + " is corrupt (sha1 " + actual + ")");
+        }
+        Path tempLink = link.resolveSibling(link.getFileName() + ".next");
+        try {
+            Files.deleteIfExists(tempLink);
+            try {
+                Files.createSymbolicLink(tempLink, link.getParent().relativize(target));
+            } catch(UnsupportedOperationException | IOException e) {
+                logger.warn("Unable to symlink, copying {} instead: {}", target.getFileName(), e.getMessage());
+                Files.copy(target, tempLink, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tempLink, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        entry.setLastUsed(System.currentTimeMillis());
+        logger.info("{} now points at {} ({})", link.getFileName(), target.getFileName(), entry.getVersion());
+        prune(entry);
+        saveIndex();
+    }
+
+    private void prune(Entry active) {
+        List<Entry> byRecentUse = entries.values()
+                .stream()
+                .sorted(Comparator.comparingLong(Entry::getLastUsed).reversed())
+                .collect(Collectors.toList());
+        int kept = 0;
+        for(Entry entry : byRecentUse) {
+            if(entry == active || kept < options.getKeep() - 1) {
+                if(entry != active)
+                    kept++;
+                continue;
+            }
+            try {
+                Files.deleteIfExists(getPath(entry));
+                // class data archives made from the jar are useless without it
+                try(DirectoryStream<Path> archives = Files.newDirectoryStream(dir, entry.getSha1() + ".*.jsa")) {
+                    for(Path archive : archives)
+                        Files.deleteIfExists(archive);
+                }
+                entries.remove(entry.getSha1());
+                logger.info("Pruned stored jar of {}", entry.getVersion());
+            } catch(IOException e) {
+                logger.warn("Unable to prune {}: {}", getPath(entry).getFileName(), e.getMessage());
+            }
+        }
+    }
+
+    private void saveIndex() {
+        Path indexPath = dir.resolve(indexFile);
+        Path tempPath = dir.resolve(indexFile + ".tmp");
+        try {
+            Files.write(tempPath, NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(new ArrayList<>(entries.values())));
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public static String sha1(Path path) {
+        try(InputStream in = Files.newInputStream(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+            return ByteBufUtil.hexDump(digest.digest());
+        } catch(IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Entry {
+        private String version;
+        private String sha1;
+        private long size;
+        private long lastUsed;
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        /** stored jars to keep, including the live one */
+        private int keep = 5;
+        /** run this version instead of the latest release; switching to a stored version needs no download */
+        private String pinnedVersion;
+    }
+}
@@ -0,0 +1,412 @@
+package com.jordanluyke.ezminecraftserver.versions;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jordanluyke.ezminecraftserver.util.HttpCache;
+import com.jordanluyke.ezminecraftserver.util.NettyHttpClient;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the version manifest, package JSON and verified server jars to other supervisors, so a fleet
+ * behind one link downloads each release once. Everything is read through: a request for something
+ * not yet held is fetched from upstream, stored, then served. URLs in the manifest and packages are
+ * rewritten to point back at the mirror, and jar bodies are sent from the file with sendfile.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class MirrorServer {
+    private static final Logger logger = LogManager.getLogger(MirrorServer.class);
+    public static final String manifestPath = "/mc/game/version_manifest.json";
+    private static final Pattern packagePath = Pattern.compile("/packages/(.+)\\.json");
+    private static final Pattern jarPath = Pattern.compile("/jars/([0-9a-f]{40})\\.jar");
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final String jsonContentType = "application/json";
+    private static final String jarContentType = "application/java-archive";
+
+    private final Options options;
+    private final String upstreamManifestUrl;
+    private final HttpCache cache;
+    private final JarStore jarStore;
+    // jars announced in served packages, so a request for one can be fetched from upstream
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    // package fetches under way by url, shared by requests for the same version
+    private final Map<String, Single<byte[]>> packageFetches = new ConcurrentHashMap<>();
+    private volatile long manifestCheckedAt;
+    // one upstream check at a time; requests arriving meanwhile share its result
+    private Single<byte[]> manifestCheck;
+
+    /**
+     * @param cache the supervisor's own manifest cache, so update checks and mirror requests share one copy
+     */
+    public MirrorServer(Options options, String upstreamManifestUrl, HttpCache cache, JarStore jarStore) {
+        this.options = options;
+        this.upstreamManifestUrl = upstreamManifestUrl;
+        this.cache = cache;
+        this.jarStore = jarStore;
+    }
+
+    public Completable start() {
+        return Completable.defer(() -> {
+            DefaultThreadFactory threadFactory = new DefaultThreadFactory("mirror", true);
+            ServerBootstrap bootstrap = new ServerBootstrap()
+                    .group(Epoll.isAvailable() ? new EpollEventLoopGroup(1, threadFactory) : new NioEventLoopGroup(1, threadFactory))
+                    .channel(Epoll.isAvailable() ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new HttpServerCodec());
+                            channel.pipeline().addLast(new HttpObjectAggregator(8192));
+                            channel.pipeline().addLast(new MirrorHandler());
+                        }
+                    });
+            ChannelFuture bindFuture = bootstrap.bind(options.getHost(), options.getPort());
+            return Completable.create(emitter -> bindFuture.addListener((ChannelFuture future) -> {
+                if(future.isSuccess()) {
+                    logger.info("Mirror serving on http://{}:{}{}", options.getHost(), options.getPort(), manifestPath);
+                    emitter.onComplete();
+                } else {
+                    emitter.onError(new RuntimeException("Unable to bind mirror port " + options.getPort() + ": " + future.cause().getMessage()));
+                }
+            }));
+        });
+    }
+
+    /**
+     * The upstream manifest, checked again once it is older than manifestTtlSeconds. If upstream cannot
+     * be reached the last copy is served.
+     */
+    private Single<byte[]> getManifest() {
+        return Single.defer(() -> {
+            Optional<HttpCache.Entry> cached = cache.get(upstreamManifestUrl);
+            boolean fresh = System.currentTimeMillis() - manifestCheckedAt < TimeUnit.SECONDS.toMillis(options.getManifestTtlSeconds());
+            if(cached.isPresent() && fresh)
+                return Single.fromCallable(() -> cache.readBody(cached.get()));
+            return checkManifest()
+                    .onErrorResumeNext(e -> {
+                        if(!cached.isPresent())
+                            return Single.error(e);
+                        logger.warn("Serving the last manifest, upstream failed: {}", e.getMessage());
+                        return Single.fromCallable(() -> cache.readBody(cached.get()));
+                    });
+        });
+    }
+
+    private synchronized Single<byte[]> checkManifest() {
+        if(manifestCheck == null) {
+            manifestCheck = NettyHttpClient.get(upstreamManifestUrl, cache)
+                    .map(res -> {
+                        if(res.getStatusCode() != HttpResponseStatus.OK.code() && !res.isNotModified())
+                            throw new RuntimeException("Upstream manifest returned " + res.getStatusCode());
+                        manifestCheckedAt = System.currentTimeMillis();
+                        return res.getRawBody();
+                    })
+                    .doFinally(() -> {
+                        synchronized(this) {
+                            manifestCheck = null;
+                        }
+                    })
+                    .cache();
+        }
+        return manifestCheck;
+    }
+
+    /**
+     * Package JSON never changes under its url, which carries its hash, so a cached copy is served
+     * without asking upstream.
+     */
+    private Single<byte[]> getPackage(String version) {
+        return getManifest()
+                .flatMap(manifest -> {
+                    String url = NodeUtil.getVersion(manifest, version)
+                            .map(NodeUtil.ManifestVersion::getUrl)
+                            .orElseThrow(() -> new NotFoundException("Version " + version + " not found"));
+                    Optional<HttpCache.Entry> cached = cache.get(url);
+                    if(cached.isPresent())
+                        return Single.fromCallable(() -> cache.readBody(cached.get()));
+                    return packageFetches.computeIfAbsent(url, key -> {
+                        logger.info("Mirroring package of {}", version);
+                        return NettyHttpClient.get(url, cache)
+                                .map(res -> {
+                                    if(res.getStatusCode() != HttpResponseStatus.OK.code())
+                                        throw new RuntimeException("Upstream package of " + version + " returned " + res.getStatusCode());
+                                    return res.getRawBody();
+                                })
+                                .doFinally(() -> packageFetches.remove(key))
+                                .cache();
+                    });
+                });
+    }
+
+    private Single<JarStore.Entry> getJar(String sha1) {
+        return Single.defer(() -> {
+            Optional<JarStore.Entry> stored = jarStore.get(sha1);
+            if(stored.isPresent())
+                return Single.just(stored.get());
+            Download download = downloads.get(sha1);
+            if(download == null)
+                return Single.error(new NotFoundException("Jar " + sha1 + " is not stored and no served package names it"));
+            logger.info("Mirroring server jar of {}", download.version);
+            return jarStore.fetch(download.version, download.url, sha1, download.size);
+        });
+    }
+
+    private byte[] rewriteManifest(byte[] manifest, String base) throws IOException {
+        ObjectNode root = (ObjectNode) NodeUtil.mapper.readTree(manifest);
+        for(JsonNode version : root.path("versions")) {
+            if(version.hasNonNull("id"))
+                ((ObjectNode) version).put("url", base + "/packages/" + encode(version.get("id").asText()) + ".json");
+        }
+        return NodeUtil.writeValueAsBytes(root);
+    }
+
+    /**
+     * Points the server download at the mirror and remembers where upstream has it.
+     */
+    private byte[] rewritePackage(byte[] packageBody, String version, String base) throws IOException {
+        ObjectNode root = (ObjectNode) NodeUtil.mapper.readTree(packageBody);
+        JsonNode server = root.path("downloads").path("server");
+        if(server.hasNonNull("sha1") && server.hasNonNull("url") && server.hasNonNull("size")) {
+            String sha1 = server.get("sha1").asText().toLowerCase();
+            downloads.put(sha1, new Download(version, server.get("url").asText(), server.get("size").asLong()));
+            ((ObjectNode) server).put("url", base + "/jars/" + sha1 + ".jar");
+        }
+        return NodeUtil.writeValueAsBytes(root);
+    }
+
+    private String getBase(HttpRequest req) {
+        if(options.getPublicUrl() != null)
+            return trimSlash(options.getPublicUrl());
+        String host = req.headers().get(HttpHeaderNames.HOST);
+        return "http://" + (host != null ? host : options.getHost() + ":" + options.getPort());
+    }
+
+    public static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            return "\"" + ByteBufUtil.hexDump(MessageDigest.getInstance("SHA-1").digest(body)) + "\"";
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private static class Download {
+        final String version;
+        final String url;
+        final long size;
+
+        Download(String version, String url, long size) {
+            this.version = version;
+            this.url = url;
+            this.size = size;
+        }
+    }
+
+    private static class NotFoundException extends RuntimeException {
+        NotFoundException(String message) {
+            super(message);
+        }
+    }
+
+    private class MirrorHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+            boolean keepAlive = HttpUtil.isKeepAlive(req);
+            boolean head = req.method().equals(HttpMethod.HEAD);
+            if(!req.method().equals(HttpMethod.GET) && !head) {
+                sendStatus(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, keepAlive);
+                return;
+            }
+            String path = new QueryStringDecoder(req.uri()).path();
+            String base = getBase(req);
+            String ifNoneMatch = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+            String range = req.headers().get(HttpHeaderNames.RANGE);
+            Matcher packageMatcher = packagePath.matcher(path);
+            Matcher jarMatcher = jarPath.matcher(path);
+            Single<Runnable> response;
+            if(path.equals(manifestPath)) {
+                response = getManifest()
+                        .map(manifest -> rewriteManifest(manifest, base))
+                        .map(body -> () -> sendJson(ctx, body, ifNoneMatch, head, keepAlive));
+            } else if(packageMatcher.matches()) {
+                String version = packageMatcher.group(1);
+                response = getPackage(version)
+                        .map(packageBody -> rewritePackage(packageBody, version, base))
+                        .map(body -> () -> sendJson(ctx, body, ifNoneMatch, head, keepAlive));
+            } else if(jarMatcher.matches()) {
+                response = getJar(jarMatcher.group(1))
+                        .map(entry -> () -> sendJar(ctx, entry, range, head, keepAlive));
+            } else {
+                sendStatus(ctx, HttpResponseStatus.NOT_FOUND, keepAlive);
+                return;
+            }
+            response.subscribeOn(Schedulers.io())
+                    .subscribe(Runnable::run, e -> {
+                        if(e instanceof NotFoundException) {
+                            logger.debug("Mirror request for {}: {}", path, e.getMessage());
+                            sendStatus(ctx, HttpResponseStatus.NOT_FOUND, keepAlive);
+                        } else {
+                            logger.warn("Mirror request for {} failed: {}", path, e.getMessage());
+                            sendStatus(ctx, HttpResponseStatus.BAD_GATEWAY, keepAlive);
+                        }
+                    });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        private void sendJson(ChannelHandlerContext ctx, byte[] body, String ifNoneMatch, boolean head, boolean keepAlive) {
+            String etag = etag(body);
+            if(etag.equals(ifNoneMatch)) {
+                FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+                res.headers().set(HttpHeaderNames.ETAG, etag);
+                send(ctx, res, keepAlive);
+                return;
+            }
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, head ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(body));
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, jsonContentType);
+            res.headers().set(HttpHeaderNames.ETAG, etag);
+            HttpUtil.setContentLength(res, body.length);
+            HttpUtil.setKeepAlive(res, keepAlive);
+            ChannelFuture future = ctx.writeAndFlush(res);
+            if(!keepAlive)
+                future.addListener(ChannelFutureListener.CLOSE);
+        }
+
+        /**
+         * Sends the jar, or the single byte range asked for, straight from the file. Ranges let the
+         * ranged downloader on the other side split the transfer over several connections.
+         */
+        private void sendJar(ChannelHandlerContext ctx, JarStore.Entry entry, String range, boolean head, boolean keepAlive) {
+            RandomAccessFile file;
+            long size;
+            try {
+                file = new RandomAccessFile(jarStore.getPath(entry).toFile(), "r");
+                size = file.length();
+            } catch(FileNotFoundException e) {
+                sendStatus(ctx, HttpResponseStatus.NOT_FOUND, keepAlive);
+                return;
+            } catch(IOException e) {
+                sendStatus(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, keepAlive);
+                return;
+            }
+            long start = 0;
+            long end = size - 1;
+            HttpResponseStatus status = HttpResponseStatus.OK;
+            Matcher rangeMatcher = range != null ? rangePattern.matcher(range) : null;
+            if(rangeMatcher != null && rangeMatcher.matches() && !(rangeMatcher.group(1).isEmpty() && rangeMatcher.group(2).isEmpty())) {
+                if(rangeMatcher.group(1).isEmpty()) {
+                    start = Math.max(0, size - Long.parseLong(rangeMatcher.group(2)));
+                } else {
+                    start = Long.parseLong(rangeMatcher.group(1));
+                    if(!rangeMatcher.group(2).isEmpty())
+                        end = Math.min(end, Long.parseLong(rangeMatcher.group(2)));
+                }
+                if(start > end) {
+                    closeQuietly(file);
+                    FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, Unpooled.EMPTY_BUFFER);
+                    res.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + size);
+                    send(ctx, res, keepAlive);
+                    return;
+                }
+                status = HttpResponseStatus.PARTIAL_CONTENT;
+            }
+            long length = end - start + 1;
+            HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, jarContentType);
+            res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            res.headers().set(HttpHeaderNames.ETAG, "\"" + entry.getSha1() + "\"");
+            if(status == HttpResponseStatus.PARTIAL_CONTENT)
+                res.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+            HttpUtil.setContentLength(res, length);
+            HttpUtil.setKeepAlive(res, keepAlive);
+            ctx.write(res);
+            if(!head) {
+                logger.debug("Sending {} bytes of {} to {}", length, entry.getVersion(), ctx.channel().remoteAddress());
+                ctx.write(new DefaultFileRegion(file.getChannel(), start, length));
+            } else {
+                closeQuietly(file);
+            }
+            ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if(!keepAlive)
+                future.addListener(ChannelFutureListener.CLOSE);
+        }
+
+        private void sendStatus(ChannelHandlerContext ctx, HttpResponseStatus status, boolean keepAlive) {
+            send(ctx, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER), keepAlive);
+        }
+
+        private void send(ChannelHandlerContext ctx, FullHttpResponse res, boolean keepAlive) {
+            HttpUtil.setContentLength(res, res.content().readableBytes());
+            HttpUtil.setKeepAlive(res, keepAlive);
+            ChannelFuture future = ctx.writeAndFlush(res);
+            if(!keepAlive)
+                future.addListener(ChannelFutureListener.CLOSE);
+        }
+
+        private void closeQuietly(RandomAccessFile file) {
+            try {
+                file.close();
+            } catch(IOException e) {
+                logger.debug("Unable to close jar: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        /** serve the manifest, packages and jars to other supervisors */
+        private boolean enabled = false;
+        private String host = "0.0.0.0";
+        private int port = 9226;
+        /** url other supervisors reach this mirror on, if not the Host they ask with */
+        private String publicUrl;
+        /** how long a served manifest is trusted before upstream is asked again */
+        private int manifestTtlSeconds = 60;
+        /** fetch the manifest, packages and jars from this mirror instead of Mojang, e.g. http://10.0.0.5:9226 */
+        private String baseUrl;
+    }
+}
@@ -0,0 +1,103 @@
+package com.jordanluyke.ezminecraftserver.watchdog;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the state of a server JVM with jcmd while it is still misbehaving, so the cause of a hang
+ * can be read afterwards. Without jcmd, as on a Java 8 JRE, the JVM is sent SIGQUIT instead, which
+ * makes it print a thread dump into its console log.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class Diagnostics {
+    private static final Logger logger = LogManager.getLogger(Diagnostics.class);
+    private static final DateTimeFormatter fileTimeFormat = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final List<String> commands = Arrays.asList("Thread.print", "GC.heap_info", "VM.uptime");
+    private static final long commandTimeoutSeconds = 30;
+
+    /**
+     * @param javaPath the java executable the server was launched with; jcmd is looked for next to it
+     * @return the written report
+     */
+    public static Path capture(long pid, Path dir, String javaPath) throws IOException {
+        Files.createDirectories(dir);
+        Path report = dir.resolve(LocalDateTime.now().format(fileTimeFormat) + "-" + pid + ".txt");
+        String jcmd = findJcmd(javaPath);
+        StringBuilder sb = new StringBuilder();
+        boolean captured = false;
+        for(String command : commands) {
+            sb.append("=== jcmd ").append(pid).append(' ').append(command).append(" ===\n");
+            try {
+                sb.append(run(Arrays.asList(jcmd, String.valueOf(pid), command))).append('\n');
+                captured = true;
+            } catch(IOException e) {
+                sb.append(e.getMessage()).append('\n');
+            }
+        }
+        if(!captured) {
+            logger.warn("jcmd unavailable, sending SIGQUIT to {} for a thread dump in the console log", pid);
+            try {
+                run(Arrays.asList("kill", "-QUIT", String.valueOf(pid)));
+                sb.append("Thread dump written to the console log by SIGQUIT\n");
+            } catch(IOException e) {
+                sb.append(e.getMessage()).append('\n');
+            }
+        }
+        Files.write(report, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return report;
+    }
+
+    private static String findJcmd(String javaPath) {
+        if(javaPath != null) {
+            Path jcmd = Paths.get(javaPath).resolveSibling("jcmd");
+            if(Files.isExecutable(jcmd))
+                return jcmd.toString();
+        }
+        Path jcmd = Paths.get(System.getProperty("java.home"), "bin", "jcmd");
+        if(Files.isExecutable(jcmd))
+            return jcmd.toString();
+        // a JRE's java.home is inside the JDK on Java 8
+        jcmd = Paths.get(System.getProperty("java.home"), "..", "bin", "jcmd").normalize();
+        if(Files.isExecutable(jcmd))
+            return jcmd.toString();
+        return "jcmd";
+    }
+
+    /**
+     * Output goes to a file rather than a pipe, so a command that hangs cannot block past the timeout.
+     */
+    private static String run(List<String> cmd) throws IOException {
+        Path output = Files.createTempFile("ezmc-diagnostics", ".txt");
+        try {
+            Process process = new ProcessBuilder(cmd)
+                    .redirectErrorStream(true)
+                    .redirectOutput(output.toFile())
+                    .start();
+            if(!process.waitFor(commandTimeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException(cmd.get(0) + " timed out after " + commandTimeoutSeconds + "s");
+            }
+            String text = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+            if(process.exitValue() != 0)
+                throw new IOException(String.join(" ", cmd) + " exited with " + process.exitValue() + ": " + text.trim());
+            return text;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(cmd.get(0) + " interrupted");
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.jordanluyke.ezminecraftserver.watchdog;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.ProtocolUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
+import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Minimal Server List Ping client: a handshake into the status state, then a status request. Every
+ * ping uses a fresh connection, as a game client's server list does.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ServerListPing {
+    // -1 asks for the status without claiming to be any particular client version
+    private static final int protocolVersion = -1;
+    private static final int statusState = 1;
+    private static EventLoopGroup eventLoopGroup;
+
+    /**
+     * @return the server's status, timed from sending the status request to receiving the response
+     */
+    public static Single<Status> ping(InetSocketAddress address, int timeoutMillis) {
+        return Single.<Status>create(emitter -> {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(getEventLoopGroup())
+                    .channel(Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            // packets are framed by a varint length, the same encoding protobuf uses
+                            channel.pipeline().addLast(new ProtobufVarint32FrameDecoder());
+                            channel.pipeline().addLast(new ProtobufVarint32LengthFieldPrepender());
+                            channel.pipeline().addLast(new StatusHandler(address, emitter::onSuccess, emitter::tryOnError));
+                        }
+                    });
+            ChannelFuture connectFuture = bootstrap.connect(address);
+            emitter.setCancellable(() -> connectFuture.channel().close());
+            connectFuture.addListener((ChannelFuture future) -> {
+                if(!future.isSuccess())
+                    emitter.tryOnError(new IOException("Unable to connect to " + address + ": " + future.cause().getMessage()));
+            });
+        })
+                .timeout(timeoutMillis, TimeUnit.MILLISECONDS, Single.error(() -> new IOException("No status response from " + address + " within " + timeoutMillis + "ms")))
+                .observeOn(Schedulers.io());
+    }
+
+    private static synchronized EventLoopGroup getEventLoopGroup() {
+        if(eventLoopGroup == null) {
+            DefaultThreadFactory threadFactory = new DefaultThreadFactory("server-list-ping", true);
+            eventLoopGroup = Epoll.isAvailable() ? new EpollEventLoopGroup(1, threadFactory) : new NioEventLoopGroup(1, threadFactory);
+        }
+        return eventLoopGroup;
+    }
+
+    private static class StatusHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        private final InetSocketAddress address;
+        private final Consumer<Status> onStatus;
+        private final Consumer<Throwable> onError;
+        private long requestedNanos;
+
+        StatusHandler(InetSocketAddress address, Consumer<Status> onStatus, Consumer<Throwable> onError) {
+            this.address = address;
+            this.onStatus = onStatus;
+            this.onError = onError;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ByteBuf handshake = ctx.alloc().buffer();
+            ProtocolUtil.writeVarInt(handshake, 0x00);
+            ProtocolUtil.writeVarInt(handshake, protocolVersion);
+            ProtocolUtil.writeString(handshake, address.getHostString());
+            handshake.writeShort(address.getPort());
+            ProtocolUtil.writeVarInt(handshake, statusState);
+            ctx.write(handshake);
+            ByteBuf request = ctx.alloc().buffer(1);
+            ProtocolUtil.writeVarInt(request, 0x00);
+            requestedNanos = System.nanoTime();
+            ctx.writeAndFlush(request);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf packet) {
+            long latencyNanos = System.nanoTime() - requestedNanos;
+            int packetId = ProtocolUtil.readVarInt(packet);
+            if(packetId != 0x00)
+                throw new CorruptedFrameException("Unexpected packet " + packetId);
+            JsonNode json = NodeUtil.getJsonNode(ProtocolUtil.readString(packet).getBytes(StandardCharsets.UTF_8));
+            Status status = new Status();
+            status.setLatencyMillis(latencyNanos / 1e6);
+            JsonNode players = json.get("players");
+            if(players != null) {
+                status.setOnline(players.path("online").asInt());
+                status.setMax(players.path("max").asInt());
+            }
+            status.setVersion(json.path("version").path("name").asText(null));
+            status.setProtocol(json.path("version").path("protocol").asInt(-1));
+            onStatus.accept(status);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            onError.accept(new IOException("Connection to " + address + " closed before a status response"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            onError.accept(cause);
+            ctx.close();
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Status {
+        private double latencyMillis;
+        private int online;
+        private int max;
+        private String version;
+        private int protocol;
+    }
+}
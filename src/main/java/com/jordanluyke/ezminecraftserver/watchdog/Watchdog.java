@@ -0,0 +1,157 @@
+package com.jordanluyke.ezminecraftserver.watchdog;
+
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.util.ErrorHandlingCompletableObserver;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Watches one instance. Its server is pinged with Server List Ping on a timer, and an exit the
+ * supervisor did not ask for is noticed as soon as the process goes away. After several slow or
+ * failed pings in a row a jcmd snapshot is written to the instance's diagnostics directory and,
+ * if configured, the server is restarted.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class Watchdog {
+    private static final Logger logger = LogManager.getLogger(Watchdog.class);
+    // a server that dies sooner than this after starting would only crash again
+    private static final long minUptimeForRestartMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private final ServerInstance instance;
+    private final Options options;
+    private final Function<MinecraftServer, Completable> restart;
+    private Disposable timer;
+    private MinecraftServer watched;
+    private int strikes;
+    private boolean diagnosed;
+
+    /**
+     * @param restart restarts the instance in place of the given server, through the supervisor's
+     *                restart path so it is serialized with update restarts and lands on the staged version
+     */
+    public Watchdog(ServerInstance instance, Options options, Function<MinecraftServer, Completable> restart) {
+        this.instance = instance;
+        this.options = options;
+        this.restart = restart;
+    }
+
+    public void start() {
+        timer = Observable.interval(options.getIntervalSeconds(), options.getIntervalSeconds(), TimeUnit.SECONDS)
+                .concatMapCompletable(tick -> check())
+                .subscribe(() -> {}, e -> logger.error("Watchdog for {} stopped: {}", instance.getName(), e.getMessage()));
+    }
+
+    public void stop() {
+        if(timer != null)
+            timer.dispose();
+    }
+
+    private Completable check() {
+        return Completable.defer(() -> {
+            Optional<MinecraftServer> current = instance.getServer();
+            if(!current.isPresent())
+                return Completable.complete();
+            MinecraftServer server = current.get();
+            if(server != watched) {
+                watched = server;
+                strikes = 0;
+                diagnosed = false;
+                watchExit(server);
+            }
+            Optional<InetSocketAddress> address = instance.getServerAddress();
+            if(!server.isReady() || server.isStopping() || !server.isAlive() || !address.isPresent())
+                return Completable.complete();
+            return ServerListPing.ping(address.get(), options.getTimeoutMillis())
+                    .flatMapCompletable(status -> {
+                        instance.getTelemetry().ifPresent(t -> t.getPingMillis().record(status.getLatencyMillis()));
+                        if(status.getLatencyMillis() > options.getSlowMillis())
+                            return strike(server, String.format("answered a ping in %.0fms", status.getLatencyMillis()));
+                        if(strikes > 0)
+                            logger.info("Instance {} is responding again", instance.getName());
+                        strikes = 0;
+                        diagnosed = false;
+                        return Completable.complete();
+                    })
+                    .onErrorResumeNext(e -> {
+                        instance.getTelemetry().ifPresent(t -> t.getPingFailures().incrementAndGet());
+                        return strike(server, "did not answer a ping: " + e.getMessage());
+                    });
+        });
+    }
+
+    private Completable strike(MinecraftServer server, String problem) {
+        strikes++;
+        logger.warn("Instance {} {} ({} of {})", instance.getName(), problem, strikes, options.getStrikes());
+        if(strikes < options.getStrikes())
+            return Completable.complete();
+        strikes = 0;
+        Completable diagnose = diagnosed || !options.isDiagnostics() ? Completable.complete() : diagnose(server);
+        diagnosed = true;
+        if(!options.isRestartOnHang())
+            return diagnose;
+        return diagnose.andThen(Completable.defer(() -> {
+            logger.warn("Restarting unresponsive instance {}", instance.getName());
+            return restart.apply(server);
+        }));
+    }
+
+    private Completable diagnose(MinecraftServer server) {
+        return Completable.fromAction(() -> {
+            long pid = server.getPid().orElseThrow(() -> new RuntimeException("pid unknown"));
+            Path report = Diagnostics.capture(pid, instance.getDirectory().resolve("diagnostics"), instance.getOptions().getJvm().getJavaPath());
+            logger.warn("Diagnostics for {} written to {}", instance.getName(), report);
+        })
+                .subscribeOn(Schedulers.io())
+                .doOnError(e -> logger.error("Unable to capture diagnostics for {}: {}", instance.getName(), e.getMessage()))
+                .onErrorComplete();
+    }
+
+    private void watchExit(MinecraftServer server) {
+        server.awaitExit()
+                .andThen(Completable.defer(() -> {
+                    if(server.isStopping() || timer.isDisposed())
+                        return Completable.complete();
+                    long uptime = System.currentTimeMillis() - server.getStartedAt();
+                    logger.error("Instance {} exited unexpectedly with code {} after {}s", instance.getName(), server.getExitCode(), TimeUnit.MILLISECONDS.toSeconds(uptime));
+                    if(!options.isRestartOnExit())
+                        return Completable.complete();
+                    if(uptime < minUptimeForRestartMillis) {
+                        logger.error("Not restarting {}, it exited too soon after starting", instance.getName());
+                        return Completable.complete();
+                    }
+                    return restart.apply(server);
+                }))
+                .subscribe(new ErrorHandlingCompletableObserver());
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        private int intervalSeconds = 15;
+        private int timeoutMillis = 5000;
+        /** a ping answered slower than this counts against the server */
+        private int slowMillis = 1000;
+        /** slow or failed pings in a row before diagnostics and a restart */
+        private int strikes = 4;
+        private boolean diagnostics = true;
+        private boolean restartOnHang = false;
+        private boolean restartOnExit = true;
+    }
+}
@@ -0,0 +1,76 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes and re-encodes chunk payloads: a compression type byte followed by the chunk NBT.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ChunkCompression {
+    public static final byte GZIP = 1;
+    public static final byte ZLIB = 2;
+    public static final byte NONE = 3;
+    /** set on the type when the chunk data lives in a separate .mcc file */
+    public static final int EXTERNAL_FLAG = 0x80;
+
+    /**
+     * @return the chunk NBT, or empty for external chunks and compression types this cannot read, such as LZ4
+     */
+    public static Optional<byte[]> decompress(byte[] payload) {
+        int type = payload[0] & 0xFF;
+        try {
+            switch(type) {
+                case GZIP:
+                    return Optional.of(readAll(new GZIPInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1))));
+                case ZLIB:
+                    return Optional.of(readAll(new InflaterInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1))));
+                case NONE:
+                    byte[] data = new byte[payload.length - 1];
+                    System.arraycopy(payload, 1, data, 0, data.length);
+                    return Optional.of(data);
+                default:
+                    return Optional.empty();
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("Corrupt chunk data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a zlib payload, the type the server writes by default
+     */
+    public static byte[] compress(byte[] data, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            out.write(ZLIB);
+            byte[] buffer = new byte[8192];
+            while(!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try(InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = stream.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+}
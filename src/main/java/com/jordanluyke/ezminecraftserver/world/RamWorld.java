@@ -0,0 +1,330 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.jvm.HostInfo;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs worlds from a RAM-backed mount such as /dev/shm. Before a launch the world on disk is mirrored
+ * into &lt;mount&gt;/ez-minecraft-server/&lt;instance&gt; and the server is pointed at that copy with
+ * --universe, leaving the world on disk untouched. Changed files are written back on a timer, once
+ * the server has stopped and when the supervisor exits.
+ * <p>
+ * A write-back copies each changed file to a temporary name, forces it to disk and renames it into
+ * place, so a crash leaves every file either old or new. level.dat goes last and deletions after it,
+ * so the world on disk never names data that is not there yet. A marker in the RAM directory records
+ * that the copy may be newer than the disk, and a copy left behind by an unclean stop is written back
+ * before the next launch.
+ * <p>
+ * A world is only staged when it, its room to grow and the server heap fit in available memory, so
+ * the RAM copy and the heap together cannot push the host out of memory. Otherwise the server runs
+ * from disk as usual.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RamWorld {
+    private static final Logger logger = LogManager.getLogger(RamWorld.class);
+    private static final long mb = 1024L * 1024;
+    private static final long gb = 1024L * mb;
+    private static final String markerFile = ".ez-staged";
+    private static final String tempSuffix = ".ez-sync";
+    private static final Set<String> levelFiles = new HashSet<>(Arrays.asList("level.dat", "level.dat_old"));
+
+    private final Options options;
+    private final Map<String, Staged> staged = new ConcurrentHashMap<>();
+
+    public RamWorld(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Mirrors the instance's world into RAM, copying only files that differ from an earlier copy.
+     *
+     * @param heapGb the heap the server will launch with, which has to fit next to the world
+     * @return the directory to pass as --universe, or empty to run from disk
+     */
+    public Optional<Path> stage(ServerInstance instance, int heapGb) {
+        if(!options.isEnabled())
+            return Optional.empty();
+        Path diskWorld = instance.getWorldDirectory();
+        Path universe = Paths.get(options.getMount(), "ez-minecraft-server", instance.getName());
+        Path ramWorld = universe.resolve(diskWorld.getFileName());
+        try {
+            Files.createDirectories(diskWorld);
+            Files.createDirectories(ramWorld);
+            if(Files.exists(universe.resolve(markerFile))) {
+                logger.warn("Writing back the RAM world of {} left by an unclean stop", instance.getName());
+                mirror(ramWorld, diskWorld, true);
+            }
+
+            long worldBytes = size(diskWorld);
+            long stagedBytes = size(ramWorld);
+            long budgetBytes = worldBytes * (100 + options.getGrowthPercent()) / 100;
+            long neededBytes = budgetBytes + heapGb * gb + options.getReservedMemoryMb() * mb - stagedBytes;
+            long availableBytes = HostInfo.detectAvailableMemory().orElse(HostInfo.detect().getTotalMemoryBytes());
+            long mountBytes = Files.getFileStore(universe).getUsableSpace() + stagedBytes;
+            if(neededBytes > availableBytes || budgetBytes > mountBytes) {
+                logger.warn("Running {} from disk: its {}MB world with {}% room to grow and a {}GB heap need {}MB, {}MB of memory and {}MB on {} are available",
+                        instance.getName(), worldBytes / mb, options.getGrowthPercent(), heapGb, neededBytes / mb, availableBytes / mb, mountBytes / mb, options.getMount());
+                deleteRecursively(universe);
+                return Optional.empty();
+            }
+
+            long start = System.nanoTime();
+            Mirrored copied = mirror(diskWorld, ramWorld, false);
+            Files.write(universe.resolve(markerFile), new byte[0]);
+            staged.put(instance.getName(), new Staged(diskWorld, ramWorld, budgetBytes));
+            logger.info("Staged {}MB world of {} in {}: {} in {}ms", worldBytes / mb, instance.getName(), ramWorld, copied, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return Optional.of(universe);
+        } catch(IOException e) {
+            logger.error("Running {} from disk, unable to stage its world: {}", instance.getName(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * The RAM copy the instance's server is running on, if it is staged.
+     */
+    public Optional<Path> getLiveWorld(String instance) {
+        return Optional.ofNullable(staged.get(instance))
+                .map(s -> s.ramWorld);
+    }
+
+    /**
+     * Writes a staged world back to disk. A running server is told to stop saving and flush first,
+     * and to resume saving afterwards. Holds the instance's world so a backup or restart cannot
+     * overlap the write-back.
+     */
+    public Completable sync(ServerInstance instance) {
+        return instance.exclusive(Completable.defer(() -> {
+            Staged world = staged.get(instance.getName());
+            if(world == null)
+                return Completable.complete();
+            Completable writeBack = Completable.fromAction(() -> writeBack(instance.getName(), world))
+                    .subscribeOn(Schedulers.io());
+            Optional<MinecraftServer> server = instance.getServer().filter(MinecraftServer::isAlive);
+            if(!server.isPresent())
+                return writeBack;
+            Completable saveOn = Completable.defer(() -> server.get().command("save-on").ignoreElement());
+            // save-on is sent before the world is released, so it cannot land in the next holder's window
+            return server.get().command("save-off")
+                    .ignoreElement()
+                    .andThen(server.get().saveAll())
+                    .andThen(writeBack)
+                    .onErrorResumeNext(e -> saveOn.onErrorComplete().andThen(Completable.error(e)))
+                    .andThen(saveOn);
+        }));
+    }
+
+    /**
+     * Writes the world back once its server has exited. The RAM copy is kept, so the next launch only
+     * copies files changed on disk in the meantime, e.g. by compaction.
+     */
+    public void unstage(ServerInstance instance) {
+        Staged world = staged.remove(instance.getName());
+        if(world == null)
+            return;
+        writeBack(instance.getName(), world);
+        try {
+            Files.deleteIfExists(world.ramWorld.getParent().resolve(markerFile));
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the world back and frees its RAM, for when the supervisor exits.
+     */
+    public void release(ServerInstance instance) {
+        Staged world = staged.get(instance.getName());
+        if(world == null)
+            return;
+        unstage(instance);
+        deleteRecursively(world.ramWorld.getParent());
+    }
+
+    private void writeBack(String instance, Staged world) {
+        synchronized(world) {
+            try {
+                long start = System.nanoTime();
+                Mirrored written = mirror(world.ramWorld, world.diskWorld, true);
+                logger.info("Wrote back world of {}: {} in {}ms", instance, written, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                long stagedBytes = size(world.ramWorld);
+                if(stagedBytes > world.budgetBytes)
+                    logger.warn("RAM world of {} has grown to {}MB, past the {}MB it was staged with; raise growthPercent or run it from disk", instance, stagedBytes / mb, world.budgetBytes / mb);
+            } catch(IOException e) {
+                throw new RuntimeException("Write-back of " + instance + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Makes the target match the source: files missing or differing in size or modification time are
+     * copied, files only in the target are deleted. When durable, every copy is forced to disk and
+     * renamed into place, level.dat files follow everything else and deletions come last.
+     */
+    private static Mirrored mirror(Path source, Path target, boolean durable) throws IOException {
+        Map<String, BasicFileAttributes> sourceFiles = list(source);
+        Map<String, BasicFileAttributes> targetFiles = list(target);
+        List<String> changed = sourceFiles.entrySet()
+                .stream()
+                .filter(entry -> {
+                    BasicFileAttributes existing = targetFiles.get(entry.getKey());
+                    return existing == null
+                            || existing.size() != entry.getValue().size()
+                            || existing.lastModifiedTime().toMillis() != entry.getValue().lastModifiedTime().toMillis();
+                })
+                .map(Map.Entry::getKey)
+                .sorted(Comparator.comparing(path -> levelFiles.contains(Paths.get(path).getFileName().toString())))
+                .collect(Collectors.toList());
+        List<String> removed = targetFiles.keySet()
+                .stream()
+                .filter(path -> !sourceFiles.containsKey(path))
+                .collect(Collectors.toList());
+
+        Mirrored mirrored = new Mirrored();
+        Set<Path> touchedDirs = new HashSet<>();
+        boolean levelPhase = false;
+        for(String path : changed) {
+            boolean levelFile = levelFiles.contains(Paths.get(path).getFileName().toString());
+            if(durable && levelFile && !levelPhase) {
+                forceDirectories(touchedDirs);
+                levelPhase = true;
+            }
+            Path from = source.resolve(path);
+            Path to = target.resolve(path);
+            Files.createDirectories(to.getParent());
+            Path temp = to.resolveSibling(to.getFileName() + tempSuffix);
+            Files.copy(from, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            if(durable) {
+                try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            Files.move(temp, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            touchedDirs.add(to.getParent());
+            mirrored.files++;
+            mirrored.bytes += sourceFiles.get(path).size();
+        }
+        if(durable)
+            forceDirectories(touchedDirs);
+        for(String path : removed) {
+            Path stale = target.resolve(path);
+            Files.deleteIfExists(stale);
+            touchedDirs.add(stale.getParent());
+            mirrored.deleted++;
+        }
+        if(durable)
+            forceDirectories(touchedDirs);
+        return mirrored;
+    }
+
+    /**
+     * Regular files by path relative to the directory. The server's lock and our own leftover
+     * temporary files are skipped.
+     */
+    private static Map<String, BasicFileAttributes> list(Path dir) throws IOException {
+        Map<String, BasicFileAttributes> files = new HashMap<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = file.getFileName().toString();
+                if(!attributes.isRegularFile() || name.equals("session.lock"))
+                    return FileVisitResult.CONTINUE;
+                if(name.endsWith(tempSuffix)) {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                files.put(dir.relativize(file).toString(), attributes);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Renames are only durable once the directory holding them is forced too.
+     */
+    private static void forceDirectories(Set<Path> dirs) {
+        for(Path dir : dirs) {
+            try(FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch(IOException e) {
+                logger.debug("Unable to force directory {}: {}", dir, e.getMessage());
+            }
+        }
+        dirs.clear();
+    }
+
+    private static long size(Path dir) throws IOException {
+        return list(dir).values()
+                .stream()
+                .mapToLong(BasicFileAttributes::size)
+                .sum();
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if(!Files.exists(dir))
+            return;
+        try(Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        } catch(IOException e) {
+            logger.warn("Unable to delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static class Staged {
+        final Path diskWorld;
+        final Path ramWorld;
+        final long budgetBytes;
+
+        Staged(Path diskWorld, Path ramWorld, long budgetBytes) {
+            this.diskWorld = diskWorld;
+            this.ramWorld = ramWorld;
+            this.budgetBytes = budgetBytes;
+        }
+    }
+
+    private static class Mirrored {
+        long files;
+        long bytes;
+        long deleted;
+
+        @Override
+        public String toString() {
+            return files + " files (" + bytes / mb + "MB) copied, " + deleted + " deleted";
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        /** a RAM-backed mount to stage worlds on */
+        private String mount = "/dev/shm";
+        private long syncIntervalMinutes = 5;
+        /** room left for the world to grow while it is staged, as a percentage of its size */
+        private int growthPercent = 50;
+        /** memory kept free for the OS and the supervisor */
+        private long reservedMemoryMb = 1024;
+    }
+}
@@ -0,0 +1,227 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Rewrites region files with their chunks packed back to back, dropping the free sectors the server
+ * leaves behind when chunks grow and move. Chunks can also be recompressed at a higher zlib level.
+ * Only run this while the server using the world is stopped.
+ *
+ * Each rewritten file is read back and checked chunk by chunk against the original before it
+ * replaces it: payloads must match byte for byte, and recompressed chunks must decompress to the
+ * same bytes.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RegionCompactor {
+    private static final Logger logger = LogManager.getLogger(RegionCompactor.class);
+
+    private final Options options;
+    private final ForkJoinPool pool;
+
+    public RegionCompactor(Options options) {
+        this.options = options;
+        this.pool = new ForkJoinPool(options.getParallelism() > 0 ? options.getParallelism() : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param dryRun only report how much space a compaction would reclaim
+     */
+    public Report compact(Path worldDir, boolean dryRun) {
+        long start = System.nanoTime();
+        List<Path> regions;
+        try(Stream<Path> walk = Files.walk(worldDir)) {
+            regions = walk.filter(path -> path.getFileName().toString().endsWith(".mca"))
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        Report report = new Report();
+        try {
+            pool.submit(() -> regions.parallelStream().forEach(path -> {
+                try {
+                    compactFile(path, dryRun, report);
+                } catch(RuntimeException e) {
+                    report.failed.incrementAndGet();
+                    logger.warn("Unable to compact {}: {}", worldDir.relativize(path), e.getMessage());
+                }
+            })).get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted");
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage());
+        }
+        logger.info("{} {}: {} regions, {} {}, {} failed, {} chunks ({} recompressed), {} -> {} bytes ({} reclaimable) in {}ms",
+                dryRun ? "Compaction dry run of" : "Compacted", worldDir.getFileName(), report.getFiles(), report.getRewritten(), dryRun ? "worth rewriting" : "rewritten",
+                report.getFailed(), report.getChunks(), report.getRecompressed(), report.getBytesBefore(), report.getBytesAfter(), report.getReclaimable(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return report;
+    }
+
+    private void compactFile(Path path, boolean dryRun, Report report) {
+        List<RegionFile.Chunk> original = readMapped(path);
+        long size = sizeOf(path);
+        AtomicLong recompressed = new AtomicLong();
+        List<RegionFile.Chunk> chunks = options.isRecompress()
+                ? original.parallelStream()
+                        .map(chunk -> {
+                            RegionFile.Chunk result = recompress(chunk);
+                            if(result != chunk)
+                                recompressed.incrementAndGet();
+                            return result;
+                        })
+                        .collect(Collectors.toList())
+                : original;
+        long packedSize = RegionFile.getPackedSize(chunks);
+
+        report.files.incrementAndGet();
+        report.chunks.addAndGet(original.size());
+        report.bytesBefore.addAndGet(size);
+        // recompression only counts when it frees whole sectors
+        boolean worthRewriting = size > packedSize && (size - packedSize) * 100 >= size * options.getMinReclaimablePercent();
+        if(!worthRewriting) {
+            report.bytesAfter.addAndGet(size);
+            return;
+        }
+        report.rewritten.incrementAndGet();
+        report.recompressed.addAndGet(recompressed.get());
+        report.bytesAfter.addAndGet(packedSize);
+        if(dryRun)
+            return;
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".compact");
+        try {
+            Files.write(tempPath, RegionFile.write(chunks));
+            verify(original, readMapped(tempPath));
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch(IOException ignored) {
+            }
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private RegionFile.Chunk recompress(RegionFile.Chunk chunk) {
+        Optional<byte[]> data = ChunkCompression.decompress(chunk.getPayload());
+        if(!data.isPresent())
+            return chunk;
+        byte[] payload = ChunkCompression.compress(data.get(), options.getCompressionLevel());
+        return payload.length < chunk.getPayload().length ? new RegionFile.Chunk(chunk.getIndex(), chunk.getTimestamp(), payload) : chunk;
+    }
+
+    private static void verify(List<RegionFile.Chunk> original, List<RegionFile.Chunk> rewritten) {
+        if(original.size() != rewritten.size())
+            throw new RuntimeException("Verify failed: " + rewritten.size() + " chunks, expected " + original.size());
+        Map<Integer, RegionFile.Chunk> byIndex = rewritten.stream()
+                .collect(Collectors.toMap(RegionFile.Chunk::getIndex, chunk -> chunk));
+        for(RegionFile.Chunk expected : original) {
+            RegionFile.Chunk actual = byIndex.get(expected.getIndex());
+            if(actual == null || actual.getTimestamp() != expected.getTimestamp())
+                throw new RuntimeException("Verify failed: chunk " + expected.getIndex() + " missing");
+            if(Arrays.equals(expected.getPayload(), actual.getPayload()))
+                continue;
+            boolean sameData = ChunkCompression.decompress(expected.getPayload())
+                    .map(data -> Arrays.equals(data, ChunkCompression.decompress(actual.getPayload()).orElse(null)))
+                    .orElse(false);
+            if(!sameData)
+                throw new RuntimeException("Verify failed: chunk " + expected.getIndex() + " differs");
+        }
+    }
+
+    private static List<RegionFile.Chunk> readMapped(Path path) {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return RegionFile.read(mapped);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @ToString
+    public static class Report {
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong rewritten = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong chunks = new AtomicLong();
+        private final AtomicLong recompressed = new AtomicLong();
+        private final AtomicLong bytesBefore = new AtomicLong();
+        private final AtomicLong bytesAfter = new AtomicLong();
+
+        public long getFiles() {
+            return files.get();
+        }
+
+        public long getRewritten() {
+            return rewritten.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getChunks() {
+            return chunks.get();
+        }
+
+        public long getRecompressed() {
+            return recompressed.get();
+        }
+
+        public long getBytesBefore() {
+            return bytesBefore.get();
+        }
+
+        public long getBytesAfter() {
+            return bytesAfter.get();
+        }
+
+        public long getReclaimable() {
+            return bytesBefore.get() - bytesAfter.get();
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        private boolean dryRun = false;
+        private boolean recompress = false;
+        private int compressionLevel = 6;
+        /** files that would shrink by less than this share of their size are left alone */
+        private int minReclaimablePercent = 10;
+        /** 0 uses one thread per core */
+        private int parallelism = 0;
+    }
+}
@@ -0,0 +1,117 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits Anvil region files (.mca) into their chunks and puts them back together. A region starts
+ * with a table of 1024 sector locations and a table of 1024 save timestamps, each 4KiB, followed by
+ * the chunks in 4KiB sectors. Each chunk is a length, a compression type and the compressed data.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RegionFile {
+    public static final int SECTOR_BYTES = 4096;
+    public static final int CHUNKS = 1024;
+    private static final int HEADER_BYTES = 2 * SECTOR_BYTES;
+    private static final int MAX_SECTORS = 255;
+
+    /**
+     * @throws RuntimeException if the file is not a well-formed region
+     */
+    public static List<Chunk> read(byte[] region) {
+        return read(ByteBuffer.wrap(region));
+    }
+
+    /**
+     * Reads from absolute positions, so a memory-mapped file can be passed without copying it first.
+     *
+     * @throws RuntimeException if the file is not a well-formed region
+     */
+    public static List<Chunk> read(ByteBuffer region) {
+        int regionLength = region.limit();
+        if(regionLength == 0)
+            return new ArrayList<>();
+        if(regionLength < HEADER_BYTES)
+            throw new RuntimeException("Region shorter than its header");
+        List<Chunk> chunks = new ArrayList<>();
+        for(int i = 0; i < CHUNKS; i++) {
+            int location = region.getInt(i * 4);
+            if(location == 0)
+                continue;
+            long position = (long) (location >>> 8) * SECTOR_BYTES;
+            int sectors = location & 0xFF;
+            if(position < HEADER_BYTES || position + 5 > regionLength)
+                throw new RuntimeException("Chunk " + i + " outside of region");
+            int length = region.getInt((int) position);
+            if(length < 1 || position + 4 + length > regionLength || 4 + length > sectors * SECTOR_BYTES)
+                throw new RuntimeException("Chunk " + i + " has a bad length");
+            byte[] payload = new byte[length];
+            ByteBuffer slice = region.duplicate();
+            slice.position((int) position + 4);
+            slice.get(payload);
+            chunks.add(new Chunk(i, region.getInt(SECTOR_BYTES + i * 4), payload));
+        }
+        return chunks;
+    }
+
+    /**
+     * Lays the chunks out back to back in index order, the same layout the server produces for a fresh region.
+     */
+    public static byte[] write(List<Chunk> chunks) {
+        List<Chunk> sorted = new ArrayList<>(chunks);
+        sorted.sort(Comparator.comparingInt(Chunk::getIndex));
+        long size = getPackedSize(sorted);
+        if(size > Integer.MAX_VALUE)
+            throw new RuntimeException("Region too large");
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        int sector = HEADER_BYTES / SECTOR_BYTES;
+        for(Chunk chunk : sorted) {
+            int sectors = sectorsFor(chunk);
+            buf.putInt(chunk.getIndex() * 4, sector << 8 | sectors);
+            buf.putInt(SECTOR_BYTES + chunk.getIndex() * 4, chunk.getTimestamp());
+            buf.position(sector * SECTOR_BYTES);
+            buf.putInt(chunk.getPayload().length);
+            buf.put(chunk.getPayload());
+            sector += sectors;
+        }
+        return buf.array();
+    }
+
+    /**
+     * @return the size of a region holding these chunks with no free sectors between them
+     */
+    public static long getPackedSize(List<Chunk> chunks) {
+        if(chunks.isEmpty())
+            return 0;
+        long size = HEADER_BYTES;
+        for(Chunk chunk : chunks)
+            size += sectorsFor(chunk) * (long) SECTOR_BYTES;
+        return size;
+    }
+
+    private static int sectorsFor(Chunk chunk) {
+        int sectors = (4 + chunk.getPayload().length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        if(sectors > MAX_SECTORS)
+            throw new RuntimeException("Chunk " + chunk.getIndex() + " too large for a region");
+        return sectors;
+    }
+
+    @Getter
+    public static class Chunk {
+        private final int index;
+        private final int timestamp;
+        /** compression type followed by the compressed chunk data */
+        private final byte[] payload;
+
+        public Chunk(int index, int timestamp, byte[] payload) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.util.ServerProperties;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Upgrades a world to a new version before the server goes live on it, so players entering old chunks
+ * do not pay for converting them while the server ticks. The new jar runs with --forceUpgrade on a copy
+ * of the world in a scratch directory next to the instance, and stops once it is done starting. Only a
+ * copy that finished within the time budget replaces the world; the world it replaces is kept as
+ * &lt;world&gt;.pre-upgrade so the upgrade can be rolled back by moving it back. Only run this while the
+ * server using the world is stopped.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class WorldUpgrader {
+    private static final Logger logger = LogManager.getLogger(WorldUpgrader.class);
+    private static final Pattern progressPattern = Pattern.compile("(\\d+)% completed \\((\\d+) / (\\d+) chunks\\)");
+    private static final String rollbackSuffix = ".pre-upgrade";
+
+    private final Options options;
+    private final MinecraftServer.Options serverOptions;
+    private final ConsolePump consolePump;
+
+    public WorldUpgrader(Options options, MinecraftServer.Options serverOptions, ConsolePump consolePump) {
+        this.options = options;
+        this.serverOptions = serverOptions;
+        this.consolePump = consolePump;
+    }
+
+    /**
+     * Upgrades the instance's world with the jar. Errors leave the world as it was.
+     */
+    public Completable upgrade(ServerInstance instance, Path jarPath, String version) {
+        return Completable.defer(() -> {
+            Path worldDir = instance.getWorldDirectory();
+            if(!options.isEnabled() || !Files.isDirectory(worldDir))
+                return Completable.complete();
+            if(!isEulaAccepted(instance.getDirectory())) {
+                logger.info("Not upgrading the world of {} until the EULA in {} is accepted", instance.getName(), instance.getDirectory());
+                return Completable.complete();
+            }
+            // on the same filesystem as the world, so the upgraded copy is moved into place by a rename
+            Path scratchDir = Files.createTempDirectory(instance.getDirectory(), "world-upgrade");
+            Path copy = scratchDir.resolve(worldDir.getFileName());
+            long start = System.nanoTime();
+            return Completable.fromAction(() -> {
+                long worldBytes = size(worldDir);
+                long usable = Files.getFileStore(scratchDir).getUsableSpace();
+                if(usable < worldBytes * 2)
+                    throw new RuntimeException("Upgrading needs room for two copies of the " + worldBytes / 1024 / 1024 + " MB world, " + usable / 1024 / 1024 + " MB free");
+                copyRecursively(worldDir, copy);
+                logger.info("Copied the world of {} for its upgrade to {} in {}ms", instance.getName(), version, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            })
+                    .andThen(Completable.defer(() -> runUpgrade(instance, jarPath, version, scratchDir, worldDir.getFileName().toString())))
+                    .andThen(Completable.fromAction(() -> swap(worldDir, copy)))
+                    .doOnComplete(() -> logger.info("World of {} upgraded to {} in {}ms, the previous world is kept as {}", instance.getName(), version, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), worldDir.getFileName() + rollbackSuffix))
+                    .doOnTerminate(() -> deleteRecursively(scratchDir));
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    private Completable runUpgrade(ServerInstance instance, Path jarPath, String version, Path scratchDir, String levelName) throws IOException {
+        Files.write(scratchDir.resolve("eula.txt"), "eula=true\n".getBytes(StandardCharsets.UTF_8));
+        Path properties = instance.getDirectory().resolve("server.properties");
+        if(Files.exists(properties))
+            Files.copy(properties, scratchDir.resolve("server.properties"));
+        String port = String.valueOf(findFreePort());
+        ServerProperties scratchProperties = ServerProperties.load(scratchDir.resolve("server.properties"));
+        scratchProperties.set("level-name", levelName);
+        scratchProperties.set("server-port", port);
+        scratchProperties.set("online-mode", "false");
+        scratchProperties.set("enable-query", "false");
+        scratchProperties.set("enable-rcon", "false");
+        scratchProperties.save();
+        List<String> cmd = new ArrayList<>(Arrays.asList(
+                instance.getOptions().getJvm().getJavaPath(),
+                "-Xms" + options.getMemoryMb() + "M",
+                "-Xmx" + options.getMemoryMb() + "M",
+                "-jar",
+                jarPath.toString(),
+                "nogui",
+                "--port",
+                port,
+                "--forceUpgrade"
+        ));
+        if(options.isEraseCache())
+            cmd.add("--eraseCache");
+        logger.info("Upgrading the world of {} to {}", instance.getName(), version);
+        Progress progress = new Progress(instance.getName());
+        MinecraftServer server = MinecraftServer.start(consolePump, scratchDir.toFile(), cmd, serverOptions, progress::onLine, -1, null);
+        return server.awaitReady(options.getTimeBudgetMinutes(), TimeUnit.MINUTES)
+                .onErrorResumeNext(e -> Completable.error(e instanceof TimeoutException ? new RuntimeException("Time budget of " + options.getTimeBudgetMinutes() + " minutes used up") : e))
+                .andThen(server.stop())
+                .andThen(Completable.fromAction(() -> {
+                    if(server.getExitCode() != 0)
+                        throw new RuntimeException("Upgrade run exited with code " + server.getExitCode());
+                }))
+                // the copy is thrown away, so an unfinished run is killed rather than saved
+                .onErrorResumeNext(e -> server.kill()
+                        .onErrorComplete()
+                        .andThen(Completable.error(new RuntimeException("Upgrade of " + instance.getName() + " to " + version + " failed after " + progress.describe() + ": " + e.getMessage()))));
+    }
+
+    /**
+     * Moves the upgraded copy into place, keeping the world it replaces as the single rollback copy.
+     */
+    private static void swap(Path worldDir, Path upgraded) throws IOException {
+        Path rollback = worldDir.resolveSibling(worldDir.getFileName() + rollbackSuffix);
+        if(Files.exists(rollback))
+            deleteRecursively(rollback);
+        Files.move(worldDir, rollback, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.move(upgraded, worldDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            Files.move(rollback, worldDir, StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+        }
+    }
+
+    private static boolean isEulaAccepted(Path serverDirectory) {
+        return ServerProperties.load(serverDirectory.resolve("eula.txt"))
+                .get("eula")
+                .map(value -> value.trim().equalsIgnoreCase("true"))
+                .orElse(false);
+    }
+
+    private static void copyRecursively(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                // session.lock is held by nothing once the server has stopped, and a fresh one is made on start
+                if(!file.getFileName().toString().equals("session.lock"))
+                    Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static long size(Path dir) throws IOException {
+        try(Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile)
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try(Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        } catch(IOException e) {
+            logger.warn("Unable to delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Follows the "42% completed (420 / 1000 chunks)..." lines the server logs after its single "Forcing
+     * world upgrade!" line, logging each new percentage with an estimate of the time left from the rate
+     * so far. A new chunk total or a count going backwards restarts the estimate.
+     */
+    private static class Progress {
+        private final String instance;
+        private long dimensionStart = System.nanoTime();
+        private int percent = -1;
+        private long chunks;
+        private long totalChunks;
+
+        Progress(String instance) {
+            this.instance = instance;
+        }
+
+        void onLine(String line) {
+            Matcher matcher = progressPattern.matcher(line);
+            if(!matcher.find())
+                return;
+            int newPercent = Integer.parseInt(matcher.group(1));
+            long newChunks = Long.parseLong(matcher.group(2));
+            long newTotal = Long.parseLong(matcher.group(3));
+            synchronized(this) {
+                if(newTotal != totalChunks || newChunks < chunks)
+                    dimensionStart = System.nanoTime();
+                if(newPercent == percent && newTotal == totalChunks)
+                    return;
+                percent = newPercent;
+                chunks = newChunks;
+                totalChunks = newTotal;
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dimensionStart);
+            if(newChunks > 0 && newChunks < newTotal)
+                logger.info("World upgrade of {} at {}% ({} / {} chunks), about {}s left", instance, newPercent, newChunks, newTotal, elapsedMillis * (newTotal - newChunks) / newChunks / 1000);
+            else
+                logger.info("World upgrade of {} at {}% ({} / {} chunks)", instance, newPercent, newChunks, newTotal);
+        }
+
+        synchronized String describe() {
+            return percent == -1 ? "no progress" : percent + "% (" + chunks + " / " + totalChunks + " chunks)";
+        }
+    }
+
+    @Getter
+    @Setter
+    @ToString
+    public static class Options {
+        private boolean enabled = false;
+        /** also drop cached lighting and heightmaps so the new version recomputes them */
+        private boolean eraseCache = false;
+        /** the upgrade is abandoned and the world left as it was if it takes longer */
+        private int timeBudgetMinutes = 60;
+        private int memoryMb = 4096;
+    }
+}
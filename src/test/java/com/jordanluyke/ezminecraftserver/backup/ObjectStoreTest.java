@@ -0,0 +1,99 @@
+package com.jordanluyke.ezminecraftserver.backup;
+
+import com.jordanluyke.ezminecraftserver.util.RateLimiter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Identical content is stored once, objects read back as written whether or not they were deflated,
+ * corruption is detected on read, and pruning keeps exactly the live objects.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class ObjectStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private ObjectStore store;
+
+    @Before
+    public void createStore() {
+        dir = folder.getRoot().toPath().resolve("objects");
+        store = new ObjectStore(dir, new RateLimiter(0));
+    }
+
+    @Test
+    public void storesIdenticalContentOnce() {
+        byte[] data = "level.dat".getBytes(StandardCharsets.UTF_8);
+        String hash = store.put(data);
+        assertEquals(hash, store.put(data.clone()));
+        assertEquals(ObjectStore.hash(data), hash);
+        assertEquals(1, store.getObjectsWritten());
+        assertTrue(Files.exists(dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2))));
+    }
+
+    @Test
+    public void readsBackCompressibleAndIncompressibleData() {
+        byte[] compressible = new byte[64 * 1024];
+        Arrays.fill(compressible, (byte) 'a');
+        byte[] incompressible = new byte[64 * 1024];
+        new Random(1).nextBytes(incompressible);
+
+        String compressibleHash = store.put(compressible);
+        long deflatedBytes = store.getBytesWritten();
+        String incompressibleHash = store.put(incompressible);
+
+        assertTrue("compressible object deflated", deflatedBytes < compressible.length / 10);
+        assertEquals("incompressible object stored as is", incompressible.length + 1, store.getBytesWritten() - deflatedBytes);
+        assertArrayEquals(compressible, store.get(compressibleHash));
+        assertArrayEquals(incompressible, store.get(incompressibleHash));
+    }
+
+    @Test
+    public void detectsCorruptObject() throws Exception {
+        byte[] data = new byte[1024];
+        new Random(2).nextBytes(data);
+        String hash = store.put(data);
+        Path path = dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+        byte[] stored = Files.readAllBytes(path);
+        stored[stored.length - 1] ^= 1;
+        Files.write(path, stored);
+        try {
+            store.get(hash);
+            fail("read a corrupt object");
+        } catch(RuntimeException e) {
+            assertEquals("Object " + hash + " is corrupt", e.getMessage());
+        }
+    }
+
+    @Test
+    public void pruneKeepsLiveObjects() {
+        String kept = store.put("kept".getBytes(StandardCharsets.UTF_8));
+        String dropped = store.put("dropped".getBytes(StandardCharsets.UTF_8));
+        String alsoDropped = store.put("also dropped".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(2, store.prune(Collections.singleton(kept)));
+        assertArrayEquals("kept".getBytes(StandardCharsets.UTF_8), store.get(kept));
+        assertFalse(Files.exists(dir.resolve(dropped.substring(0, 2)).resolve(dropped.substring(2))));
+        assertFalse(Files.exists(dir.resolve(alsoDropped.substring(0, 2)).resolve(alsoDropped.substring(2))));
+        assertEquals(0, store.prune(new HashSet<>(Collections.singletonList(kept))));
+    }
+
+    @Test
+    public void pruneOfMissingStoreDeletesNothing() {
+        assertEquals(0, store.prune(Collections.emptySet()));
+    }
+}
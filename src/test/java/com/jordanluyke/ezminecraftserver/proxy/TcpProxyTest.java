@@ -0,0 +1,142 @@
+package com.jordanluyke.ezminecraftserver.proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connections arriving without a live backend are held and released to the next one, switching the
+ * backend only moves new connections, and connections the hold gives up on are counted.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class TcpProxyTest {
+    // backend threads add the sockets they accept
+    private final List<Closeable> closeables = new CopyOnWriteArrayList<>();
+    private TcpProxy.Options options;
+    private TcpProxy proxy;
+
+    @Before
+    public void startProxy() throws Exception {
+        options = new TcpProxy.Options();
+        options.setEnabled(true);
+        options.setPort(findFreePort());
+        proxy = new TcpProxy(options);
+        proxy.start().blockingAwait();
+    }
+
+    @After
+    public void stopProxy() throws IOException {
+        proxy.stop();
+        for(Closeable closeable : closeables)
+            closeable.close();
+    }
+
+    @Test
+    public void heldConnectionIsReleasedToNextBackend() throws Exception {
+        BufferedReader client = connect();
+        Thread.sleep(200);
+        assertEquals(1, proxy.getConnectionCount());
+
+        proxy.setBackend(startBackend("first"));
+
+        assertEquals("first", client.readLine());
+        assertEquals(0, proxy.getHeldDropped());
+    }
+
+    @Test
+    public void switchingBackendKeepsExistingConnections() throws Exception {
+        proxy.setBackend(startBackend("old"));
+        Socket oldSocket = socket();
+        BufferedReader oldClient = reader(oldSocket);
+        assertEquals("old", oldClient.readLine());
+
+        proxy.setBackend(startBackend("new"));
+        BufferedReader newClient = connect();
+        assertEquals("new", newClient.readLine());
+
+        // the old server keeps serving the player who was on it
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(oldSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+        out.println("still here");
+        assertEquals("old: still here", oldClient.readLine());
+    }
+
+    @Test
+    public void connectionsLostWhileHeldAreCounted() throws Exception {
+        options.setHoldTimeoutSeconds(1);
+        BufferedReader timedOut = connect();
+        Socket gaveUp = socket();
+        Thread.sleep(200);
+        gaveUp.close();
+
+        // the hold timeout closes the connection it gave up on
+        assertNull(timedOut.readLine());
+        Thread.sleep(200);
+        assertEquals(2, proxy.getHeldDropped());
+    }
+
+    private Socket socket() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), options.getPort());
+        socket.setSoTimeout(5000);
+        closeables.add(socket);
+        return socket;
+    }
+
+    private BufferedReader connect() throws IOException {
+        return reader(socket());
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A backend that greets each connection with its name, then echoes lines prefixed with it.
+     */
+    private InetSocketAddress startBackend(String name) throws IOException {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        closeables.add(server);
+        Thread acceptor = new Thread(() -> {
+            while(!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    closeables.add(socket);
+                    Thread echo = new Thread(() -> {
+                        try {
+                            BufferedReader in = reader(socket);
+                            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                            out.println(name);
+                            String line;
+                            while((line = in.readLine()) != null)
+                                out.println(name + ": " + line);
+                        } catch(IOException ignored) {
+                        }
+                    });
+                    echo.setDaemon(true);
+                    echo.start();
+                } catch(IOException ignored) {
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    private static int findFreePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.jordanluyke.ezminecraftserver.rcon;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packets survive being split across reads and merged into one read, behind the same frame decoder
+ * the client uses, and are written in the little-endian layout the server expects.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RconCodecTest {
+    @Test
+    public void encodesLittleEndianFrame() {
+        EmbeddedChannel channel = channel();
+        assertTrue(channel.writeOutbound(new RconPacket(7, RconPacket.TYPE_COMMAND, "list")));
+        ByteBuf frame = channel.readOutbound();
+        assertEquals(4 + 4 + 4 + 4 + 2, frame.readableBytes());
+        assertEquals(4 + 4 + 4 + 2, frame.readIntLE());
+        assertEquals(7, frame.readIntLE());
+        assertEquals(RconPacket.TYPE_COMMAND, frame.readIntLE());
+        assertEquals("list", frame.readCharSequence(4, StandardCharsets.UTF_8).toString());
+        assertEquals(0, frame.readShort());
+        frame.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void decodesPacketSplitAcrossReads() {
+        EmbeddedChannel channel = channel();
+        ByteBuf frame = encode(3, RconPacket.TYPE_RESPONSE, "There are 0 of a max of 20 players online: ");
+        int length = frame.readableBytes();
+        for(int offset = 0; offset < length; offset += 3) {
+            assertNull("packet decoded before its last byte", channel.readInbound());
+            channel.writeInbound(frame.retainedSlice(offset, Math.min(3, length - offset)));
+        }
+        frame.release();
+        assertPacket(channel.readInbound(), 3, "There are 0 of a max of 20 players online: ");
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void decodesPacketsMergedIntoOneRead() {
+        EmbeddedChannel channel = channel();
+        ByteBuf merged = Unpooled.wrappedBuffer(encode(1, RconPacket.TYPE_RESPONSE, "first"), encode(2, RconPacket.TYPE_RESPONSE, ""), encode(3, RconPacket.TYPE_RESPONSE, "third"));
+        assertTrue(channel.writeInbound(merged));
+        assertPacket(channel.readInbound(), 1, "first");
+        assertPacket(channel.readInbound(), 2, "");
+        assertPacket(channel.readInbound(), 3, "third");
+        assertNull(channel.readInbound());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void decodesFullFragmentOfMultibyteCharacters() {
+        EmbeddedChannel channel = channel();
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i < 4096; i++)
+            body.append('€');
+        assertTrue(channel.writeInbound(encode(9, RconPacket.TYPE_RESPONSE, body.toString())));
+        assertPacket(channel.readInbound(), 9, body.toString());
+        assertFalse(channel.finish());
+    }
+
+    private static void assertPacket(RconPacket packet, int requestId, String body) {
+        assertNotNull(packet);
+        assertEquals(requestId, packet.getRequestId());
+        assertEquals(body, packet.getBody());
+    }
+
+    private static EmbeddedChannel channel() {
+        return new EmbeddedChannel(new LengthFieldBasedFrameDecoder(ByteOrder.LITTLE_ENDIAN, RconClient.maxFrameLength, 0, 4, 0, 4, true), new RconCodec());
+    }
+
+    private static ByteBuf encode(int requestId, int type, String body) {
+        EmbeddedChannel channel = new EmbeddedChannel(new RconCodec());
+        channel.writeOutbound(new RconPacket(requestId, type, body));
+        ByteBuf frame = channel.readOutbound();
+        channel.finish();
+        return frame;
+    }
+}
@@ -0,0 +1,95 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sequential requests to a local keep-alive server share one pooled connection, and requests that
+ * close their connection are not handed back to the pool. Timing belongs in the benchmarks module.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class NettyHttpClientTest {
+    private static final int requests = 200;
+    private static final byte[] body = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private EventLoopGroup group;
+    private String url;
+
+    @Before
+    public void startServer() throws Exception {
+        group = new NioEventLoopGroup(1);
+        Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new HttpServerCodec());
+                        channel.pipeline().addLast(new HttpObjectAggregator(1024));
+                        channel.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+                                FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(body));
+                                res.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+                                HttpUtil.setContentLength(res, body.length);
+                                boolean keepAlive = HttpUtil.isKeepAlive(req);
+                                HttpUtil.setKeepAlive(res, keepAlive);
+                                ChannelFuture written = ctx.writeAndFlush(res);
+                                if(!keepAlive)
+                                    written.addListener(ChannelFutureListener.CLOSE);
+                            }
+                        });
+                    }
+                })
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .sync()
+                .channel();
+        url = "http://127.0.0.1:" + ((InetSocketAddress) server.localAddress()).getPort() + "/";
+    }
+
+    @After
+    public void stopServer() {
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void sequentialRequestsReuseOneConnection() {
+        long opened = NettyHttpClient.getConnectionsOpened();
+        run(Collections.emptyMap());
+        assertEquals(1, NettyHttpClient.getConnectionsOpened() - opened);
+    }
+
+    @Test
+    public void freshConnectionsAreNotPooled() {
+        long opened = NettyHttpClient.getConnectionsOpened();
+        run(Collections.singletonMap("Connection", "close"));
+        assertEquals(requests, NettyHttpClient.getConnectionsOpened() - opened);
+
+        opened = NettyHttpClient.getConnectionsOpened();
+        run(Collections.emptyMap());
+        assertTrue("at most one connection for pooled requests", NettyHttpClient.getConnectionsOpened() - opened <= 1);
+    }
+
+    private void run(Map<String, String> headers) {
+        for(int i = 0; i < requests; i++)
+            assertEquals(200, NettyHttpClient.get(url, Collections.emptyMap(), headers).blockingGet().getStatusCode());
+    }
+}
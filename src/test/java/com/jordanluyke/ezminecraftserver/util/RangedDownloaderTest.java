@@ -0,0 +1,164 @@
+package com.jordanluyke.ezminecraftserver.util;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * A download interrupted part way resumes from its .part.json state against a local range server,
+ * asking only for the bytes that had not arrived, and starts over when the remote file changed.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RangedDownloaderTest {
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final int segmentBytes = 64 * 1024;
+    private static final String etag = "\"v2\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[3 * segmentBytes + 1000];
+    private final Queue<String> ranges = new ConcurrentLinkedQueue<>();
+    private EventLoopGroup group;
+    private String url;
+    private RangedDownloader downloader;
+
+    @Before
+    public void startServer() throws Exception {
+        new Random(1).nextBytes(content);
+        group = new NioEventLoopGroup(1);
+        Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new HttpServerCodec());
+                        channel.pipeline().addLast(new HttpObjectAggregator(1024));
+                        channel.pipeline().addLast(new RangeHandler());
+                    }
+                })
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .sync()
+                .channel();
+        url = "http://127.0.0.1:" + ((InetSocketAddress) server.localAddress()).getPort() + "/server.jar";
+        RangedDownloader.Options options = new RangedDownloader.Options();
+        options.setSegmentBytes(segmentBytes);
+        options.setRetries(0);
+        downloader = new RangedDownloader(options);
+    }
+
+    @After
+    public void stopServer() {
+        group.shutdownGracefully();
+    }
+
+    @Test
+    public void resumesFromSavedState() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("server.jar");
+        int half = segmentBytes / 2;
+        // the first range arrived whole and the second half way before the download stopped
+        byte[] part = new byte[segmentBytes + half];
+        System.arraycopy(content, 0, part, 0, part.length);
+        Files.write(path.resolveSibling("server.jar.part"), part);
+        RangedDownloader.State state = state(etag);
+        state.getSegments().get(0).setReceived(segmentBytes);
+        state.getSegments().get(1).setReceived(half);
+        NodeUtil.mapper.writeValue(path.resolveSibling("server.jar.part.json").toFile(), state);
+
+        NettyHttpClient.DownloadResponse res = downloader.download(url, path).blockingGet();
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertEquals(sha1(content), res.getSha1());
+        assertEquals(new HashSet<>(Arrays.asList(
+                "bytes=" + (segmentBytes + half) + "-" + (2 * segmentBytes - 1),
+                "bytes=" + 2 * segmentBytes + "-" + (3 * segmentBytes - 1),
+                "bytes=" + 3 * segmentBytes + "-" + (content.length - 1))), new HashSet<>(ranges));
+        assertFalse(Files.exists(path.resolveSibling("server.jar.part")));
+        assertFalse(Files.exists(path.resolveSibling("server.jar.part.json")));
+    }
+
+    @Test
+    public void startsOverWhenRemoteFileChanged() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("server.jar");
+        Files.write(path.resolveSibling("server.jar.part"), new byte[segmentBytes]);
+        RangedDownloader.State state = state("\"v1\"");
+        state.getSegments().get(0).setReceived(segmentBytes);
+        NodeUtil.mapper.writeValue(path.resolveSibling("server.jar.part.json").toFile(), state);
+
+        downloader.download(url, path).blockingGet();
+
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertEquals(4, ranges.size());
+        assertTrue(ranges.contains("bytes=0-" + (segmentBytes - 1)));
+    }
+
+    private RangedDownloader.State state(String validator) {
+        RangedDownloader.State state = new RangedDownloader.State();
+        state.setUrl(url);
+        state.setSize(content.length);
+        state.setValidator(validator);
+        for(long start = 0; start < content.length; start += segmentBytes) {
+            RangedDownloader.Segment segment = new RangedDownloader.Segment();
+            segment.setStart(start);
+            segment.setEnd(Math.min(start + segmentBytes, content.length) - 1);
+            state.getSegments().add(segment);
+        }
+        return state;
+    }
+
+    private static String sha1(byte[] bytes) throws Exception {
+        return ByteBufUtil.hexDump(MessageDigest.getInstance("SHA-1").digest(bytes));
+    }
+
+    private class RangeHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+            int start = 0;
+            int end = content.length - 1;
+            HttpResponseStatus status = HttpResponseStatus.OK;
+            String range = req.headers().get(HttpHeaderNames.RANGE);
+            if(range != null) {
+                ranges.add(range);
+                Matcher matcher = rangePattern.matcher(range);
+                assertTrue(range, matcher.matches());
+                start = Integer.parseInt(matcher.group(1));
+                end = Integer.parseInt(matcher.group(2));
+                status = HttpResponseStatus.PARTIAL_CONTENT;
+            }
+            boolean head = req.method().equals(HttpMethod.HEAD);
+            ByteBuf body = head ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(content, start, end - start + 1);
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body);
+            res.headers().set(HttpHeaderNames.CONTENT_LENGTH, end - start + 1);
+            res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            res.headers().set(HttpHeaderNames.ETAG, etag);
+            if(status == HttpResponseStatus.PARTIAL_CONTENT)
+                res.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + content.length);
+            ctx.writeAndFlush(res);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.jordanluyke.ezminecraftserver.versions;
+
+import com.jordanluyke.ezminecraftserver.util.HttpCache;
+import com.jordanluyke.ezminecraftserver.util.NettyHttpClient;
+import com.jordanluyke.ezminecraftserver.util.NodeUtil;
+import com.jordanluyke.ezminecraftserver.util.RangedDownloader;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * A stored jar is served whole, as a closed range, as a suffix range and as headers only, with the
+ * Content-Range a ranged downloader on the other side checks.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class MirrorServerTest {
+    private static final byte[] jar = new byte[10_000];
+    private static Path dir;
+    private static String jarUrl;
+
+    @BeforeClass
+    public static void startMirror() throws Exception {
+        new Random(1).nextBytes(jar);
+        dir = Files.createTempDirectory("mirror-test");
+        Path jarDir = dir.resolve("versions");
+        Files.createDirectories(jarDir);
+        Path jarPath = jarDir.resolve("stored.jar");
+        Files.write(jarPath, jar);
+        String sha1 = JarStore.sha1(jarPath);
+        Files.move(jarPath, jarDir.resolve(sha1 + ".jar"));
+        JarStore.Entry entry = new JarStore.Entry();
+        entry.setVersion("1.16.5");
+        entry.setSha1(sha1);
+        entry.setSize(jar.length);
+        NodeUtil.mapper.writeValue(jarDir.resolve("index.json").toFile(), Collections.singletonList(entry));
+
+        MirrorServer.Options options = new MirrorServer.Options();
+        options.setHost("127.0.0.1");
+        options.setPort(findFreePort());
+        JarStore jarStore = new JarStore(jarDir, new JarStore.Options(), new RangedDownloader(new RangedDownloader.Options()));
+        new MirrorServer(options, "http://127.0.0.1:1" + MirrorServer.manifestPath, new HttpCache(dir.resolve("cache")), jarStore)
+                .start()
+                .blockingAwait();
+        jarUrl = "http://127.0.0.1:" + options.getPort() + "/jars/" + sha1 + ".jar";
+    }
+
+    @AfterClass
+    public static void deleteDir() throws IOException {
+        try(Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void servesWholeJar() {
+        NettyHttpClient.ClientResponse res = get(null);
+        assertEquals(200, res.getStatusCode());
+        assertEquals("bytes", res.getHeaders().get("accept-ranges"));
+        assertArrayEquals(jar, res.getRawBody());
+    }
+
+    @Test
+    public void servesClosedRange() {
+        NettyHttpClient.ClientResponse res = get("bytes=100-1099");
+        assertEquals(206, res.getStatusCode());
+        assertEquals("bytes 100-1099/10000", res.getHeaders().get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(jar, 100, 1100), res.getRawBody());
+    }
+
+    @Test
+    public void clampsRangeEndToJar() {
+        NettyHttpClient.ClientResponse res = get("bytes=9000-20000");
+        assertEquals(206, res.getStatusCode());
+        assertEquals("bytes 9000-9999/10000", res.getHeaders().get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(jar, 9000, 10000), res.getRawBody());
+    }
+
+    @Test
+    public void servesSuffixRange() {
+        NettyHttpClient.ClientResponse res = get("bytes=-500");
+        assertEquals(206, res.getStatusCode());
+        assertEquals("bytes 9500-9999/10000", res.getHeaders().get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(jar, 9500, 10000), res.getRawBody());
+    }
+
+    @Test
+    public void suffixLongerThanJarServesWholeJar() {
+        NettyHttpClient.ClientResponse res = get("bytes=-20000");
+        assertEquals(206, res.getStatusCode());
+        assertEquals("bytes 0-9999/10000", res.getHeaders().get("content-range"));
+        assertArrayEquals(jar, res.getRawBody());
+    }
+
+    @Test
+    public void rejectsRangePastEnd() {
+        NettyHttpClient.ClientResponse res = get("bytes=10000-");
+        assertEquals(416, res.getStatusCode());
+        assertEquals("bytes */10000", res.getHeaders().get("content-range"));
+    }
+
+    @Test
+    public void headSendsSizeWithoutBody() {
+        NettyHttpClient.ClientResponse res = NettyHttpClient.head(jarUrl).blockingGet();
+        assertEquals(200, res.getStatusCode());
+        assertEquals("10000", res.getHeaders().get("content-length"));
+        assertEquals("bytes", res.getHeaders().get("accept-ranges"));
+    }
+
+    @Test
+    public void unknownJarIsNotFound() {
+        String url = jarUrl.substring(0, jarUrl.lastIndexOf('/') + 1) + "0000000000000000000000000000000000000000.jar";
+        assertEquals(404, NettyHttpClient.get(url).blockingGet().getStatusCode());
+    }
+
+    private static NettyHttpClient.ClientResponse get(String range) {
+        return NettyHttpClient.get(jarUrl, Collections.emptyMap(), range != null ? Collections.singletonMap("Range", range) : Collections.emptyMap())
+                .blockingGet();
+    }
+
+    private static int findFreePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import com.jordanluyke.ezminecraftserver.MinecraftServer;
+import com.jordanluyke.ezminecraftserver.ServerInstance;
+import com.jordanluyke.ezminecraftserver.console.ConsolePump;
+import com.jordanluyke.ezminecraftserver.jvm.ClassDataSharing;
+import com.jordanluyke.ezminecraftserver.metrics.SupervisorStats;
+import com.jordanluyke.ezminecraftserver.telemetry.Telemetry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * A write-back copies data before level.dat and deletes stale files last, so one that fails part way
+ * leaves the world on disk naming nothing it does not hold. A later write-back finishes the job.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RamWorldTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RamWorld ramWorld;
+    private ServerInstance instance;
+    private Path diskWorld;
+
+    @Before
+    public void createInstance() throws Exception {
+        RamWorld.Options options = new RamWorld.Options();
+        options.setEnabled(true);
+        options.setMount(folder.newFolder("shm").toString());
+        options.setReservedMemoryMb(0);
+        ramWorld = new RamWorld(options);
+
+        ServerInstance.Options instanceOptions = new ServerInstance.Options();
+        instanceOptions.setName("test");
+        instanceOptions.setPath(folder.newFolder("server").toString());
+        ConsolePump consolePump = new ConsolePump();
+        instance = new ServerInstance(instanceOptions, Paths.get("server.jar"), consolePump, new Telemetry(), new SupervisorStats(),
+                new ClassDataSharing(new ClassDataSharing.Options(), new MinecraftServer.Options(), consolePump), ramWorld);
+        diskWorld = instance.getWorldDirectory();
+        write(diskWorld.resolve("level.dat"), "old level");
+        write(diskWorld.resolve("region/r.0.0.mca"), "old region");
+        write(diskWorld.resolve("playerdata/gone.dat"), "player");
+        write(diskWorld.resolve("data/raids.dat/blocker"), "directory in the way");
+    }
+
+    @Test
+    public void failedWriteBackLeavesLevelAndDeletionsForLast() throws Exception {
+        Path universe = ramWorld.stage(instance, 0).orElseThrow(() -> new AssertionError("world not staged"));
+        Path staged = universe.resolve(diskWorld.getFileName());
+        assertEquals(staged, ramWorld.getLiveWorld("test").get());
+        assertEquals("old region", read(staged.resolve("region/r.0.0.mca")));
+
+        write(staged.resolve("level.dat"), "new level, longer");
+        write(staged.resolve("region/r.1.0.mca"), "new region");
+        Files.delete(staged.resolve("playerdata/gone.dat"));
+        // a file where the disk has a non-empty directory cannot be renamed into place
+        Files.delete(staged.resolve("data/raids.dat/blocker"));
+        Files.delete(staged.resolve("data/raids.dat"));
+        write(staged.resolve("data/raids.dat"), "raids");
+
+        try {
+            ramWorld.sync(instance).blockingAwait();
+            fail("write-back over a directory succeeded");
+        } catch(RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Write-back of test failed"));
+        }
+        assertEquals("old level", read(diskWorld.resolve("level.dat")));
+        assertTrue(Files.exists(diskWorld.resolve("playerdata/gone.dat")));
+
+        Files.delete(diskWorld.resolve("data/raids.dat/blocker"));
+        Files.delete(diskWorld.resolve("data/raids.dat"));
+        ramWorld.sync(instance).blockingAwait();
+
+        assertEquals("new level, longer", read(diskWorld.resolve("level.dat")));
+        assertEquals("new region", read(diskWorld.resolve("region/r.1.0.mca")));
+        assertEquals("raids", read(diskWorld.resolve("data/raids.dat")));
+        assertFalse(Files.exists(diskWorld.resolve("playerdata/gone.dat")));
+    }
+
+    @Test
+    public void releaseWritesBackAndFreesRam() throws Exception {
+        Files.delete(diskWorld.resolve("data/raids.dat/blocker"));
+        Path universe = ramWorld.stage(instance, 0).orElseThrow(() -> new AssertionError("world not staged"));
+        write(universe.resolve(diskWorld.getFileName()).resolve("level.dat"), "saved on exit");
+
+        ramWorld.release(instance);
+
+        assertEquals("saved on exit", read(diskWorld.resolve("level.dat")));
+        assertFalse(Files.exists(universe));
+        assertFalse(ramWorld.getLiveWorld("test").isPresent());
+    }
+
+    private static void write(Path path, String content) throws Exception {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path path) throws Exception {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
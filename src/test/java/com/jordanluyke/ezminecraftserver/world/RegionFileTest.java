@@ -0,0 +1,132 @@
+package com.jordanluyke.ezminecraftserver.world;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Regions survive a write and read unchanged, malformed regions are rejected, and the compactor
+ * packs a fragmented region without changing its chunks but leaves a region it cannot verify alone.
+ *
+ * @author Jordan Luyke <jordanluyke@gmail.com>
+ */
+public class RegionFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeThenReadKeepsEveryChunk() {
+        List<RegionFile.Chunk> chunks = chunks(new Random(1), 0, 5, 31, 1023);
+        byte[] region = RegionFile.write(chunks);
+        assertEquals(RegionFile.getPackedSize(chunks), region.length);
+
+        List<RegionFile.Chunk> read = RegionFile.read(region);
+        assertEquals(chunks.size(), read.size());
+        for(int i = 0; i < chunks.size(); i++) {
+            assertEquals(chunks.get(i).getIndex(), read.get(i).getIndex());
+            assertEquals(chunks.get(i).getTimestamp(), read.get(i).getTimestamp());
+            assertArrayEquals(chunks.get(i).getPayload(), read.get(i).getPayload());
+        }
+    }
+
+    @Test
+    public void emptyRegionHasNoChunks() {
+        assertTrue(RegionFile.read(new byte[0]).isEmpty());
+        assertEquals(0, RegionFile.write(new ArrayList<>()).length);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void readRejectsTruncatedHeader() {
+        RegionFile.read(new byte[RegionFile.SECTOR_BYTES]);
+    }
+
+    @Test
+    public void readRejectsChunkLongerThanItsSectors() {
+        byte[] region = RegionFile.write(chunks(new Random(2), 7));
+        // the chunk's length field, in the first sector after the header
+        ByteBuffer.wrap(region).putInt(2 * RegionFile.SECTOR_BYTES, RegionFile.SECTOR_BYTES * 4);
+        try {
+            RegionFile.read(region);
+            fail("read a chunk running past its sectors");
+        } catch(RuntimeException e) {
+            assertEquals("Chunk 7 has a bad length", e.getMessage());
+        }
+    }
+
+    @Test
+    public void compactorPacksFragmentedRegion() throws Exception {
+        List<RegionFile.Chunk> chunks = chunks(new Random(3), 0, 1, 2);
+        Path path = folder.newFolder("region").toPath().resolve("r.0.0.mca");
+        Files.write(path, fragmented(chunks));
+
+        RegionCompactor.Options options = new RegionCompactor.Options();
+        options.setParallelism(1);
+        RegionCompactor.Report report = new RegionCompactor(options).compact(path.getParent(), false);
+
+        assertEquals(1, report.getRewritten());
+        assertEquals(0, report.getFailed());
+        assertEquals(RegionFile.getPackedSize(chunks), Files.size(path));
+        List<RegionFile.Chunk> read = RegionFile.read(Files.readAllBytes(path));
+        for(int i = 0; i < chunks.size(); i++)
+            assertArrayEquals(chunks.get(i).getPayload(), read.get(i).getPayload());
+    }
+
+    @Test
+    public void compactorLeavesUnreadableRegionAlone() throws Exception {
+        byte[] region = fragmented(chunks(new Random(4), 0, 1));
+        // point chunk 1 past the end of the file
+        ByteBuffer.wrap(region).putInt(4, 1000 << 8 | 1);
+        Path path = folder.newFolder("region").toPath().resolve("r.0.0.mca");
+        Files.write(path, region);
+
+        RegionCompactor.Options options = new RegionCompactor.Options();
+        options.setParallelism(1);
+        RegionCompactor.Report report = new RegionCompactor(options).compact(path.getParent(), false);
+
+        assertEquals(1, report.getFailed());
+        assertArrayEquals(region, Files.readAllBytes(path));
+        assertFalse(Files.exists(path.resolveSibling("r.0.0.mca.compact")));
+    }
+
+    private static List<RegionFile.Chunk> chunks(Random random, int... indexes) {
+        List<RegionFile.Chunk> chunks = new ArrayList<>();
+        for(int index : indexes) {
+            // compression type 3 (uncompressed) and up to two sectors of data
+            byte[] payload = new byte[1 + random.nextInt(2 * RegionFile.SECTOR_BYTES - 5)];
+            random.nextBytes(payload);
+            payload[0] = 3;
+            chunks.add(new RegionFile.Chunk(index, random.nextInt(Integer.MAX_VALUE), payload));
+        }
+        return chunks;
+    }
+
+    /**
+     * The chunks with a free sector after each of them, as a server leaves a region after chunks shrink.
+     */
+    private static byte[] fragmented(List<RegionFile.Chunk> chunks) {
+        byte[] packed = RegionFile.write(chunks);
+        List<RegionFile.Chunk> read = RegionFile.read(packed);
+        ByteBuffer region = ByteBuffer.allocate(packed.length + chunks.size() * RegionFile.SECTOR_BYTES);
+        int sector = 2;
+        for(RegionFile.Chunk chunk : read) {
+            int sectors = (4 + chunk.getPayload().length + RegionFile.SECTOR_BYTES - 1) / RegionFile.SECTOR_BYTES;
+            region.putInt(chunk.getIndex() * 4, sector << 8 | sectors);
+            region.putInt(RegionFile.SECTOR_BYTES + chunk.getIndex() * 4, chunk.getTimestamp());
+            region.position(sector * RegionFile.SECTOR_BYTES);
+            region.putInt(chunk.getPayload().length);
+            region.put(chunk.getPayload());
+            sector += sectors + 1;
+        }
+        return Arrays.copyOf(region.array(), sector * RegionFile.SECTOR_BYTES);
+    }
+}